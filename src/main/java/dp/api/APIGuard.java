@@ -0,0 +1,175 @@
+package dp.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static dp.logging.LogEvent.warn;
+
+/**
+ * Makes calls to the dataset and filter APIs, retrying those which fail transiently - with an I/O error, a server
+ * error or too many requests - after an exponential backoff with full jitter. Every call is idempotent, so a retry
+ * never applies an update twice, and a blip in an API after a long conversion does not throw the result away.
+ * <p>
+ * A call is only retried if the retry could time out before the retry deadline, which is at most half the poll
+ * timeout, so retrying a call on the consumer thread never holds it long enough for the consumer to leave the group.
+ * <p>
+ * Transient failures are also tracked by a {@link CircuitBreaker} for each API, and while any circuit is open the
+ * consumer stops taking new messages rather than converting files whose results cannot be recorded. Open circuits are
+ * published as the {@code api.circuit.open} metric and retries as {@code api.retries}, both tagged by API.
+ */
+@Component
+public class APIGuard {
+
+    public static final String DATASET_API = "dataset-api";
+    public static final String FILTER_API = "filter-api";
+
+    // the most times each call is made, and the milliseconds waited before the first retry and at most before any
+    @Value("${API_RETRY_ATTEMPTS:5}")
+    private int retryAttempts;
+
+    @Value("${API_RETRY_BACKOFF:500}")
+    private long retryBackoff;
+
+    @Value("${API_RETRY_MAX_BACKOFF:10000}")
+    private long maxRetryBackoff;
+
+    // the most milliseconds a call and its retries may take, at most half the poll timeout
+    @Value("${API_RETRY_DEADLINE:60000}")
+    private long retryDeadline;
+
+    @Value("${KAFKA_POLL_TIMEOUT:120000}")
+    private long pollTimeout;
+
+    // the most milliseconds a single attempt at a call takes before it times out
+    @Value("${API_CONNECT_TIMEOUT:5000}")
+    private long connectTimeout;
+
+    @Value("${API_READ_TIMEOUT:30000}")
+    private long readTimeout;
+
+    // the number of transient failures in a row which open the circuit of an API, and the milliseconds it stays open
+    @Value("${API_CIRCUIT_FAILURES:5}")
+    private int circuitFailures;
+
+    @Value("${API_CIRCUIT_OPEN:30000}")
+    private long circuitOpen;
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retries = new ConcurrentHashMap<>();
+
+    private MeterRegistry registry;
+    private LongSupplier clock;
+
+    @PostConstruct
+    void start() {
+        start(Metrics.globalRegistry, System::currentTimeMillis);
+    }
+
+    void start(MeterRegistry registry, LongSupplier clock) {
+        this.registry = registry;
+        this.clock = clock;
+        getBreaker(DATASET_API);
+        getBreaker(FILTER_API);
+    }
+
+    /**
+     * Make a call to an API, retrying it if it fails transiently.
+     *
+     * @param api  the name of the API called.
+     * @param call the call, which throws a {@link RestClientException} if it fails.
+     * @return the result of the call.
+     */
+    public <T> T call(String api, Supplier<T> call) {
+        final CircuitBreaker breaker = getBreaker(api);
+        final long deadline = clock.getAsLong() + Math.min(retryDeadline, pollTimeout / 2);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final T result = call.get();
+                breaker.recordSuccess();
+                return result;
+            } catch (RestClientException e) {
+                if (!isTransient(e)) {
+                    // the API answered, so it is not failing
+                    breaker.recordSuccess();
+                    throw e;
+                }
+                breaker.recordFailure();
+                if (attempt >= retryAttempts) {
+                    throw e;
+                }
+
+                final long backoff = ThreadLocalRandom.current()
+                        .nextLong(Math.min(maxRetryBackoff, retryBackoff << Math.min(attempt - 1, 30)) + 1);
+                if (clock.getAsLong() + backoff + connectTimeout + readTimeout > deadline) {
+                    warn().data("api", api).data("attempt", attempt)
+                            .logException(e, "transient api error, no time left to retry before the deadline");
+                    throw e;
+                }
+                warn().data("api", api).data("attempt", attempt).data("backoff", backoff)
+                        .logException(e, "transient api error, retrying");
+                retries.get(api).increment();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public void run(String api, Runnable call) {
+        call(api, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return true if the circuit of any API is open.
+     */
+    public boolean isOpen() {
+        return breakers.values().stream().anyMatch(CircuitBreaker::isOpen);
+    }
+
+    /**
+     * @return the milliseconds until every open circuit may be tried again, or 0 if none is open.
+     */
+    public long getRemainingOpenMillis() {
+        return breakers.values().stream().mapToLong(CircuitBreaker::getRemainingOpenMillis).max().orElse(0);
+    }
+
+    private CircuitBreaker getBreaker(String api) {
+        return breakers.computeIfAbsent(api, name -> {
+            final CircuitBreaker breaker = new CircuitBreaker(name, circuitFailures, circuitOpen, clock);
+            Gauge.builder("api.circuit.open", breaker, b -> b.isOpen() ? 1 : 0).tag("api", name).register(registry);
+            retries.put(name, Counter.builder("api.retries").tag("api", name).register(registry));
+            return breaker;
+        });
+    }
+
+    private static boolean isTransient(RestClientException e) {
+        if (e instanceof ResourceAccessException) {
+            return true;
+        }
+        if (e instanceof RestClientResponseException) {
+            final int status = ((RestClientResponseException) e).getStatusCode().value();
+            return status >= 500 || status == 429;
+        }
+        return false;
+    }
+}
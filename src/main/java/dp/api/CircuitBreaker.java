@@ -0,0 +1,71 @@
+package dp.api;
+
+import java.util.function.LongSupplier;
+
+import static dp.logging.LogEvent.info;
+import static dp.logging.LogEvent.warn;
+
+/**
+ * Tracks whether an API is failing. After a number of failed calls in a row the circuit opens for a period, during
+ * which callers should not start work which needs the API. Once the period has passed it is closed again by the next
+ * call which succeeds, or opened for another period by the next which fails.
+ */
+class CircuitBreaker {
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    private int failures;
+    private long openedAt;
+    private boolean opened;
+
+    /**
+     * @param name             the name of the API.
+     * @param failureThreshold the number of failed calls in a row which open the circuit.
+     * @param openMillis       the milliseconds the circuit stays open for.
+     * @param clock            the current time in milliseconds.
+     */
+    CircuitBreaker(String name, int failureThreshold, long openMillis, LongSupplier clock) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    synchronized void recordSuccess() {
+        if (opened) {
+            info().data("api", name).log("api recovered, closing circuit");
+        }
+        failures = 0;
+        opened = false;
+    }
+
+    synchronized void recordFailure() {
+        failures++;
+        if (failures >= failureThreshold && (!opened || getRemainingOpenMillis() == 0)) {
+            warn().data("api", name).data("failures", failures).data("open_millis", openMillis)
+                    .log("api failing, opening circuit");
+            opened = true;
+            openedAt = clock.getAsLong();
+        }
+    }
+
+    /**
+     * @return true if the API has failed and the period it is left alone for has not yet passed.
+     */
+    synchronized boolean isOpen() {
+        return getRemainingOpenMillis() > 0;
+    }
+
+    /**
+     * @return the milliseconds until the circuit may be tried again, or 0 if it is not open.
+     */
+    synchronized long getRemainingOpenMillis() {
+        if (!opened) {
+            return 0;
+        }
+        return Math.max(0, openedAt + openMillis - clock.getAsLong());
+    }
+}
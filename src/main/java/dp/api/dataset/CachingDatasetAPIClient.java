@@ -0,0 +1,117 @@
+package dp.api.dataset;
+
+import dp.api.dataset.models.DownloadsList;
+import dp.api.dataset.models.Metadata;
+import dp.api.dataset.models.Version;
+import dp.exceptions.FilterAPIException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.net.MalformedURLException;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link DatasetAPIClient} which caches the metadata and versions returned by the dataset api, so a burst of
+ * filter outputs exported from the same version does not make the same requests for each of them.
+ * <p>
+ * A published version does not change state, so it is held for the published time to live. Unpublished versions are
+ * not cached at all, so a change of state is seen by the next message. Metadata is held for the published time to
+ * live if the version at the same path is published, and otherwise only for the shorter unpublished time to live.
+ * The state of the version is looked up before the metadata is fetched, so metadata fetched before a version was
+ * published is never held as if it were.
+ * Updating the downloads of a version removes it and its metadata from the caches.
+ */
+@Primary
+@Component
+public class CachingDatasetAPIClient implements DatasetAPIClient {
+
+    private static final String PUBLISHED_STATE = "published";
+
+    /**
+     * The most versions, and separately the most metadata, held at once
+     **/
+    @Value("${DATASET_API_CACHE_SIZE:256}")
+    private int cacheSize = 256;
+
+    /**
+     * The milliseconds published versions and their metadata are held for
+     **/
+    @Value("${DATASET_API_CACHE_TTL:600000}")
+    private long publishedTtl = 600000;
+
+    /**
+     * The milliseconds metadata of a version not known to be published is held for, 0 to not cache it
+     **/
+    @Value("${DATASET_API_UNPUBLISHED_CACHE_TTL:30000}")
+    private long unpublishedTtl = 30000;
+
+    @Autowired
+    private DatasetAPIClientImpl datasetAPIClient;
+
+    private ExpiringCache<String, Version> versions;
+
+    private ExpiringCache<String, Metadata> metadata;
+
+    @PostConstruct
+    void startCaches() {
+        startCaches(Metrics.globalRegistry, System::nanoTime);
+    }
+
+    void startCaches(MeterRegistry registry, LongSupplier clock) {
+        versions = new ExpiringCache<>("dataset-api-versions", cacheSize, registry, clock);
+        metadata = new ExpiringCache<>("dataset-api-metadata", cacheSize, registry, clock);
+    }
+
+    @Override
+    public Metadata getMetadata(final String versionPath) throws MalformedURLException, FilterAPIException {
+        final Metadata cached = metadata.get(versionPath);
+        if (cached != null) {
+            return cached;
+        }
+
+        final boolean published = isPublished(versionPath);
+        final Metadata fetched = datasetAPIClient.getMetadata(versionPath);
+        if (fetched != null) {
+            metadata.put(versionPath, fetched, published ? publishedTtl : unpublishedTtl);
+        }
+        return fetched;
+    }
+
+    /**
+     * @return true if the version at the path is published, from the cache if it is held there.
+     */
+    private boolean isPublished(final String versionPath) throws MalformedURLException, FilterAPIException {
+        final Version version = getVersion(versionPath);
+        return version != null && PUBLISHED_STATE.equals(version.getState());
+    }
+
+    @Override
+    public Version getVersion(final String versionPath) throws MalformedURLException, FilterAPIException {
+        final Version cached = versions.get(versionPath);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Version fetched = datasetAPIClient.getVersion(versionPath);
+        if (fetched != null && PUBLISHED_STATE.equals(fetched.getState())) {
+            versions.put(versionPath, fetched, publishedTtl);
+        }
+        return fetched;
+    }
+
+    @Override
+    public void putVersionDownloads(final String datasetVersionURL, DownloadsList downloads)
+            throws MalformedURLException, FilterAPIException {
+        try {
+            datasetAPIClient.putVersionDownloads(datasetVersionURL, downloads);
+        } finally {
+            versions.invalidate(datasetVersionURL);
+            metadata.invalidate(datasetVersionURL);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package dp.api.dataset;
 
+import dp.api.APIGuard;
 import dp.api.AuthUtils;
 import dp.api.dataset.models.DownloadsList;
 import dp.api.dataset.models.Metadata;
@@ -18,6 +19,7 @@ import org.springframework.web.client.RestTemplate;
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import static dp.api.APIGuard.DATASET_API;
 import static java.text.MessageFormat.format;
 import static dp.logging.LogEvent.info;
 
@@ -37,14 +39,17 @@ public class DatasetAPIClientImpl implements DatasetAPIClient {
 	@Autowired
 	private RestTemplate restTemplate;
 
+	@Autowired
+	private APIGuard apiGuard;
+
 	public Metadata getMetadata(final String versionPath) throws MalformedURLException, FilterAPIException {
 		URL metadataURL = new URL(datasetAPIURL + versionPath + "/metadata");
 
 		info().url(metadataURL.toString()).log("getting dataset version data from the dataset api");
 		try {
 			HttpEntity entity = AuthUtils.createHeaders(serviceToken, token, null);
-			ResponseEntity<Metadata> responseEntity = restTemplate.exchange(metadataURL.toString(), HttpMethod.GET,
-					entity, Metadata.class);
+			ResponseEntity<Metadata> responseEntity = apiGuard.call(DATASET_API,
+					() -> restTemplate.exchange(metadataURL.toString(), HttpMethod.GET, entity, Metadata.class));
 			info().url(metadataURL.toString()).statusCode(HttpStatus.valueOf(responseEntity.getStatusCode().value()))
 					.log("dataset api get response");
 			return responseEntity.getBody();
@@ -62,7 +67,8 @@ public class DatasetAPIClientImpl implements DatasetAPIClient {
 
 		try {
 			HttpEntity<Version> entity = AuthUtils.createHeaders(serviceToken, token, new Version(downloads));
-			ResponseEntity response = restTemplate.exchange(url, HttpMethod.PUT, entity, Void.class);
+			ResponseEntity response = apiGuard.call(DATASET_API,
+					() -> restTemplate.exchange(url, HttpMethod.PUT, entity, Void.class));
 			if (response.getStatusCode() != HttpStatus.OK) {
 				throw new RestClientException("incorrect status returned");
 			}
@@ -78,7 +84,8 @@ public class DatasetAPIClientImpl implements DatasetAPIClient {
 		info().url(url).log("getting dataset version from the dataset api");
 		try {
 			HttpEntity entity = AuthUtils.createHeaders(serviceToken, token, null);
-			ResponseEntity<Version> responseEntity = restTemplate.exchange(url, HttpMethod.GET, entity, Version.class);
+			ResponseEntity<Version> responseEntity = apiGuard.call(DATASET_API,
+					() -> restTemplate.exchange(url, HttpMethod.GET, entity, Version.class));
 			info().url(url).statusCode(HttpStatus.valueOf(responseEntity.getStatusCode().value())).log("dataset api get response");
 			return responseEntity.getBody();
 
@@ -0,0 +1,119 @@
+package dp.api.dataset;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded map whose entries expire a set time after they are put. Once the map is full the least recently used
+ * entry is evicted to make room for a new one.
+ * <p>
+ * Hits, misses and evictions are counted as the {@code cache.gets} and {@code cache.evictions} metrics, and the number
+ * of entries as the {@code cache.size} gauge, each tagged with the name of the cache.
+ */
+class ExpiringCache<K, V> {
+
+    private final int maxSize;
+    private final LongSupplier clock;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    /**
+     * @param name     the name the metrics of the cache are tagged with.
+     * @param maxSize  the most entries held at once.
+     * @param registry the registry the metrics are recorded in.
+     * @param clock    the source of the current time in nanoseconds.
+     */
+    ExpiringCache(String name, int maxSize, MeterRegistry registry, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("a cache must hold at least one entry");
+        }
+
+        this.maxSize = maxSize;
+        this.clock = clock;
+        this.hits = Counter.builder("cache.gets").tag("cache", name).tag("result", "hit").register(registry);
+        this.misses = Counter.builder("cache.gets").tag("cache", name).tag("result", "miss").register(registry);
+        this.evictions = Counter.builder("cache.evictions").tag("cache", name).register(registry);
+        Gauge.builder("cache.size", this, ExpiringCache::size).tag("cache", name).register(registry);
+    }
+
+    /**
+     * @return the value for the key, or null if there is none or it has expired.
+     */
+    synchronized V get(K key) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null || isExpired(entry)) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Hold a value until the time to live has passed. A time to live of zero or less is not cached at all.
+     */
+    synchronized void put(K key, V value, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            entries.remove(key);
+            return;
+        }
+
+        entries.put(key, new Entry<>(value, clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+        evict();
+    }
+
+    synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove expired entries and then, if the cache is still too large, the least recently used.
+     */
+    private void evict() {
+        if (entries.size() <= maxSize) {
+            return;
+        }
+
+        entries.values().removeIf(this::isExpired);
+
+        final Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxSize) {
+            eldest.next();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return clock.getAsLong() - entry.expiresAt >= 0;
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package dp.api.dataset.models;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.StringUtils;
+import java.security.MessageDigest;
 import java.util.Collection;
 import org.joda.time.format.ISODateTimeFormat;
 import org.joda.time.format.DateTimeFormat;
@@ -14,6 +17,8 @@ import org.joda.time.format.DateTimeFormatter;
  */
 public class Metadata {
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     @JsonProperty("alerts")
     private Collection<Alert> alerts;
 
@@ -363,4 +368,12 @@ public class Metadata {
                 .append(getUri())
                 .toHashCode();
     }
+
+    /**
+     * Add the metadata, as it is serialised to JSON, to a digest, so metadata which is the same is always digested the
+     * same way wherever it is used as a key.
+     */
+    public void digestInto(MessageDigest digest) throws JsonProcessingException {
+        digest.update(MAPPER.writeValueAsBytes(this));
+    }
 }
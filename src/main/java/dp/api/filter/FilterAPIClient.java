@@ -2,6 +2,7 @@ package dp.api.filter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dp.api.APIGuard;
 import dp.api.AuthUtils;
 import dp.api.authentication.ServiceIdentity;
 import dp.exceptions.FilterAPIException;
@@ -16,6 +17,7 @@ import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import static dp.api.APIGuard.FILTER_API;
 import static dp.logging.LogEvent.info;
 
 @Component
@@ -37,6 +39,9 @@ public class FilterAPIClient {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private APIGuard apiGuard;
+
     public void addXLSXFile(final String id, final String s3Location, final String s3PublicUrl, final long size, boolean filterIsPublished) throws JsonProcessingException {
 
         final String url = UriComponentsBuilder.fromHttpUrl(filterAPIURL + "/filter-outputs/{filterId}").buildAndExpand(id).toUriString();
@@ -55,7 +60,7 @@ public class FilterAPIClient {
 
         try {
             info().url(url).json(objectMapper.writeValueAsString(r)).log("updating filter api");
-            restTemplate.put(url, AuthUtils.createHeaders(serviceToken, token, r));
+            apiGuard.run(FILTER_API, () -> restTemplate.put(url, AuthUtils.createHeaders(serviceToken, token, r)));
 
         } catch (RestClientException e) {
             throw new FilterAPIException("expected 200 status code", e);
@@ -72,7 +77,7 @@ public class FilterAPIClient {
 
       try {
           info().url(url).json(objectMapper.writeValueAsString(r)).log("updating filter api");
-          restTemplate.put(url, AuthUtils.createHeaders(serviceToken, token, r));
+          apiGuard.run(FILTER_API, () -> restTemplate.put(url, AuthUtils.createHeaders(serviceToken, token, r)));
 
       } catch (RestClientException e) {
           throw new FilterAPIException("expected 200 status code", e);
@@ -89,7 +94,8 @@ public class FilterAPIClient {
         try {
 
             HttpEntity<ServiceIdentity> entity = AuthUtils.createAuthHeaders(serviceToken);
-            ResponseEntity<Filter> responseEntity = restTemplate.exchange(url, HttpMethod.GET, entity, Filter.class);
+            ResponseEntity<Filter> responseEntity = apiGuard.call(FILTER_API,
+                    () -> restTemplate.exchange(url, HttpMethod.GET, entity, Filter.class));
 
             info().url(url).statusCode(HttpStatus.valueOf(responseEntity.getStatusCode().value())).log("filter api get response");
             return responseEntity.getBody();
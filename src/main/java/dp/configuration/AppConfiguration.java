@@ -1,7 +1,21 @@
 package dp.configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -9,13 +23,65 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 @Configuration
 public class AppConfiguration {
 
+    // the most connections open to the dataset, filter and zebedee APIs at once, and to each of them
+    @Value("${API_MAX_CONNECTIONS:50}")
+    private int maxConnections;
+
+    @Value("${API_MAX_CONNECTIONS_PER_ROUTE:20}")
+    private int maxConnectionsPerRoute;
+
+    // milliseconds to wait for a connection to be opened, and for a pooled connection to be free
+    @Value("${API_CONNECT_TIMEOUT:5000}")
+    private long connectTimeout;
+
+    // milliseconds to wait for a response
+    @Value("${API_READ_TIMEOUT:30000}")
+    private long readTimeout;
+
+    // the most milliseconds an idle connection is kept open to be reused
+    @Value("${API_KEEP_ALIVE:30000}")
+    private long keepAlive;
+
+    /**
+     * The client shared by every API client, which keeps connections open between requests. The connection pool is
+     * measured by the {@code httpcomponents.httpclient.pool} metrics.
+     */
     @Bean
-    RestTemplate restTemplate() {
-        return new RestTemplate();
+    CloseableHttpClient apiHttpClient() {
+        return createApiHttpClient(Metrics.globalRegistry);
+    }
+
+    @Bean
+    RestTemplate restTemplate(CloseableHttpClient apiHttpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(apiHttpClient));
     }
 
     @Bean
     ObjectMapper objectMapper() {
         return new ObjectMapper();
     }
+
+    CloseableHttpClient createApiHttpClient(MeterRegistry registry) {
+        final PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeout))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeout))
+                        .build())
+                .build();
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "api").bindTo(registry);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectTimeout))
+                        .setResponseTimeout(Timeout.ofMilliseconds(readTimeout))
+                        .build())
+                .setKeepAliveStrategy((response, context) -> TimeValue.ofMilliseconds(Math.min(keepAlive,
+                        DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context).toMilliseconds())))
+                .evictIdleConnections(TimeValue.ofMilliseconds(keepAlive))
+                .evictExpiredConnections()
+                .build();
+    }
 }
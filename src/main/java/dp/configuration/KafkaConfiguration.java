@@ -2,6 +2,8 @@ package dp.configuration;
 
 import dp.avro.ExportedFile;
 import dp.deserializer.AvroDeserializer;
+import org.apache.avro.Schema;
+import org.apache.avro.message.SchemaStore;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.config.SslConfigs;
@@ -14,6 +16,11 @@ import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.listener.ContainerProperties;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -61,6 +68,11 @@ public class KafkaConfiguration {
     @Value("${KAFKA_SESSION_TIMEOUT:10000}")
     private int kafkaSessionTimeout;
 
+    // a directory of the .avsc schemas producers may have written messages with in Avro's single object encoding
+    // unset to only read messages written as raw Avro binary with the current schema
+    @Value("${KAFKA_AVRO_SCHEMA_DIR:}")
+    private String avroSchemaDir;
+
     private static final String KEY_FILE_PREFIX = "client-key";
 
     /**
@@ -70,7 +82,7 @@ public class KafkaConfiguration {
      * @return A DefaultKafkaConsumerFactory with a AvroDeserializer
      */
     @Bean
-    ConsumerFactory<String, AvroDeserializer<ExportedFile>> consumerFactory() {
+    ConsumerFactory<String, AvroDeserializer<ExportedFile>> consumerFactory() throws IOException {
         Map<String, Object> props = new HashMap<>();
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaAddress);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, kafkaGroup);
@@ -88,15 +100,34 @@ public class KafkaConfiguration {
             }
         }
 
-        AvroDeserializer<ExportedFile> deserializer = new AvroDeserializer<>(ExportedFile.class);
+        AvroDeserializer<ExportedFile> deserializer = new AvroDeserializer<>(ExportedFile.class, writerSchemas());
         return new DefaultKafkaConsumerFactory(props, new StringDeserializer(), deserializer);
     }
 
     @Bean
-    ConcurrentKafkaListenerContainerFactory<String, AvroDeserializer<ExportedFile>> kafkaListenerContainerFactory() {
+    ConcurrentKafkaListenerContainerFactory<String, AvroDeserializer<ExportedFile>> kafkaListenerContainerFactory()
+            throws IOException {
         ConcurrentKafkaListenerContainerFactory<String, AvroDeserializer<ExportedFile>> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactory());
         factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
         return factory;
     }
+
+    /**
+     * @return the schemas in the schema directory, and the current schema, or null if there is no schema directory.
+     */
+    private SchemaStore writerSchemas() throws IOException {
+        if (avroSchemaDir.isEmpty()) {
+            return null;
+        }
+
+        final SchemaStore.Cache schemas = new SchemaStore.Cache();
+        schemas.addSchema(ExportedFile.getClassSchema());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(avroSchemaDir), "*.avsc")) {
+            for (Path file : files) {
+                schemas.addSchema(new Schema.Parser().parse(file.toFile()));
+            }
+        }
+        return schemas;
+    }
 }
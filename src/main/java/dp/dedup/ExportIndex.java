@@ -0,0 +1,48 @@
+package dp.dedup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import dp.api.dataset.models.Metadata;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * An index of the workbooks exported from each V4 file and metadata, by a content key of the two, so exporting the
+ * same V4 file with the same metadata again - when a message is re-emitted or a filter re-run - copies the workbook
+ * already exported rather than converting the file again.
+ * <p>
+ * The index may be held by each instance, or shared between them.
+ */
+public interface ExportIndex {
+
+    /**
+     * @return the workbook exported with the content key, or null if there is none.
+     */
+    ExportedWorkbook get(String contentKey);
+
+    void put(String contentKey, ExportedWorkbook workbook);
+
+    /**
+     * Forget a workbook which no longer exists.
+     */
+    void remove(String contentKey);
+
+    /**
+     * @param eTag     the S3 ETag of the V4 file, which changes whenever its content does.
+     * @param metadata the metadata of the dataset version the V4 file is exported with.
+     * @return the content key of a V4 file exported with metadata.
+     */
+    static String contentKeyOf(String eTag, Metadata metadata) throws JsonProcessingException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(eTag.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            metadata.digestInto(digest);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
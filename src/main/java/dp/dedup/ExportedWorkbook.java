@@ -0,0 +1,29 @@
+package dp.dedup;
+
+/**
+ * A XLSX workbook already exported to S3.
+ */
+public class ExportedWorkbook {
+
+    private final String bucket;
+    private final String key;
+    private final long contentLength;
+
+    public ExportedWorkbook(String bucket, String key, long contentLength) {
+        this.bucket = bucket;
+        this.key = key;
+        this.contentLength = contentLength;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+}
@@ -0,0 +1,47 @@
+package dp.dedup;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link ExportIndex} held by this instance, of the workbooks it exported most recently.
+ */
+@Component
+public class InMemoryExportIndex implements ExportIndex {
+
+    private final Map<String, ExportedWorkbook> workbooks;
+
+    /**
+     * @param maxSize the most workbooks indexed at once, the least recently used being forgotten first.
+     */
+    public InMemoryExportIndex(@Value("${XLSX_EXPORT_INDEX_SIZE:1024}") int maxSize) {
+        this.workbooks = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ExportedWorkbook> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @Override
+    public synchronized ExportedWorkbook get(String contentKey) {
+        return workbooks.get(contentKey);
+    }
+
+    @Override
+    public synchronized void put(String contentKey, ExportedWorkbook workbook) {
+        workbooks.put(contentKey, workbook);
+    }
+
+    @Override
+    public synchronized void remove(String contentKey) {
+        workbooks.remove(contentKey);
+    }
+
+    synchronized int size() {
+        return workbooks.size();
+    }
+}
@@ -0,0 +1,62 @@
+package dp.dedup;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link ProcessingRegistry} held by this instance, which drops messages delivered again to it while or shortly
+ * after they are processed. Exports are always completed or abandoned by the instance which claimed them, so claims
+ * do not expire.
+ */
+@Component
+public class InMemoryProcessingRegistry implements ProcessingRegistry {
+
+    private final long windowMillis;
+    private final LongSupplier clock;
+
+    // the time each completed export stops being a duplicate, or null while it is processed
+    private final Map<String, Long> exports = new HashMap<>();
+
+    /**
+     * @param windowMillis the milliseconds for which a completed export is dropped if it is delivered again.
+     */
+    @Autowired
+    public InMemoryProcessingRegistry(@Value("${DUPLICATE_MESSAGE_WINDOW:600000}") long windowMillis) {
+        this(windowMillis, System::currentTimeMillis);
+    }
+
+    InMemoryProcessingRegistry(long windowMillis, LongSupplier clock) {
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized boolean tryStart(String key) {
+        final long now = clock.getAsLong();
+        exports.values().removeIf(expiresAt -> expiresAt != null && expiresAt <= now);
+        if (exports.containsKey(key)) {
+            return false;
+        }
+        exports.put(key, null);
+        return true;
+    }
+
+    @Override
+    public synchronized void complete(String key) {
+        exports.put(key, clock.getAsLong() + windowMillis);
+    }
+
+    @Override
+    public synchronized void abandon(String key) {
+        exports.remove(key);
+    }
+
+    synchronized int size() {
+        return exports.size();
+    }
+}
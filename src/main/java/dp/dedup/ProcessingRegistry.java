@@ -0,0 +1,29 @@
+package dp.dedup;
+
+/**
+ * A registry of the exports being processed and those processed recently, so a message delivered twice - to another
+ * consumer after a rebalance, or again after its offset failed to commit - is dropped rather than exported twice.
+ * <p>
+ * The registry may be held by each instance, or shared between them. A shared registry should give each claim a lease
+ * which expires if the instance holding it dies before completing or abandoning it.
+ */
+public interface ProcessingRegistry {
+
+    /**
+     * Claim an export.
+     *
+     * @param key the key of the export.
+     * @return true if the export is to be processed, or false if it is being processed or was processed recently.
+     */
+    boolean tryStart(String key);
+
+    /**
+     * Record that a claimed export has been processed, so it is dropped if it is delivered again within the window.
+     */
+    void complete(String key);
+
+    /**
+     * Release a claimed export which failed, so it is processed if it is delivered again.
+     */
+    void abandon(String key);
+}
@@ -1,8 +1,12 @@
 package dp.deserializer;
 
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.Decoder;
 import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.message.SchemaStore;
+import org.apache.avro.specific.SpecificData;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificRecordBase;
 import org.apache.kafka.common.errors.SerializationException;
@@ -10,21 +14,49 @@ import org.apache.kafka.common.serialization.Deserializer;
 
 import static com.github.onsdigital.logging.v2.event.SimpleEvent.info;
 
-import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * A class used by kafka to deserialize any avro messages to Java Objects
+ * <p>
+ * The reader of the target type is created once, and each thread reuses its decoder. Messages are raw Avro binary
+ * written with the schema of the target type. If a {@link SchemaStore} is given, messages in Avro's single object
+ * encoding are also read, with the schema they were written with, found in the store by its fingerprint, resolved to
+ * the schema of the target type - so producers can move to a newer or older compatible schema.
  *
  * @param <T> The type of object to be returned must extend SpecificRecordBase
  */
 public class AvroDeserializer<T extends SpecificRecordBase> implements Deserializer<T> {
 
-    private final Class<T> targetType;
+    // the header of a message in single object encoding, followed by the fingerprint of the schema it was written with
+    private static final byte[] SINGLE_OBJECT_HEADER = {(byte) 0xC3, (byte) 0x01};
+    private static final int FINGERPRINT_LENGTH = 8;
+
+    private final Schema readerSchema;
+    private final long readerFingerprint;
+    private final DatumReader<T> reader;
+
+    private final SchemaStore writerSchemas;
+    private final Map<Long, DatumReader<T>> resolvingReaders = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<BinaryDecoder> decoders = new ThreadLocal<>();
 
     public AvroDeserializer(final Class<T> targetType) {
-        this.targetType = targetType;
+        this(targetType, null);
+    }
+
+    /**
+     * @param targetType    the type of object to be returned.
+     * @param writerSchemas the schemas messages in single object encoding may have been written with, or null to only
+     *                      read raw Avro binary.
+     */
+    public AvroDeserializer(final Class<T> targetType, final SchemaStore writerSchemas) {
+        this.readerSchema = SpecificData.get().getSchema(targetType);
+        this.readerFingerprint = SchemaNormalization.parsingFingerprint64(readerSchema);
+        this.reader = new SpecificDatumReader<>(readerSchema);
+        this.writerSchemas = writerSchemas;
     }
 
     @Override
@@ -34,19 +66,26 @@ public class AvroDeserializer<T extends SpecificRecordBase> implements Deseriali
 
     @Override
     public T deserialize(final String topic, final byte[] data) {
-        try {
-            T result = null;
+        if (data == null) {
+            return null;
+        }
+        info().data("topic", topic).data("size", data.length).log("deserializing message");
 
-            if (data != null) {
-                info().data("data", data).log("deserialized data");
-                final DatumReader<T> datumReader = new SpecificDatumReader<>(targetType.newInstance().getSchema());
-                final Decoder decoder = DecoderFactory.get().binaryDecoder(data, null);
-                result = datumReader.read(null, decoder);
+        try {
+            DatumReader<T> datumReader = reader;
+            int offset = 0;
+            if (writerSchemas != null && isSingleObjectEncoded(data)) {
+                datumReader = getReader(readFingerprint(data));
+                offset = SINGLE_OBJECT_HEADER.length + FINGERPRINT_LENGTH;
             }
-            return result;
+
+            final BinaryDecoder decoder = DecoderFactory.get()
+                    .binaryDecoder(data, offset, data.length - offset, decoders.get());
+            decoders.set(decoder);
+            return datumReader.read(null, decoder);
         } catch (Exception ex) {
             throw new SerializationException(
-                    "Can't deserialize data '" + Arrays.toString(data) + "' from topic '" + topic + "'", ex);
+                    "Can't deserialize " + data.length + " bytes of data from topic '" + topic + "'", ex);
         }
     }
 
@@ -54,4 +93,36 @@ public class AvroDeserializer<T extends SpecificRecordBase> implements Deseriali
     public void close() {
 
     }
+
+    /**
+     * @return the reader of messages written with the schema with the fingerprint.
+     */
+    private DatumReader<T> getReader(long fingerprint) {
+        if (fingerprint == readerFingerprint) {
+            return reader;
+        }
+        return resolvingReaders.computeIfAbsent(fingerprint, f -> {
+            final Schema writerSchema = writerSchemas.findByFingerprint(f);
+            if (writerSchema == null) {
+                throw new SerializationException("message was written with an unknown schema, fingerprint " + f);
+            }
+            return new SpecificDatumReader<>(writerSchema, readerSchema);
+        });
+    }
+
+    private static boolean isSingleObjectEncoded(byte[] data) {
+        return data.length >= SINGLE_OBJECT_HEADER.length + FINGERPRINT_LENGTH
+                && data[0] == SINGLE_OBJECT_HEADER[0] && data[1] == SINGLE_OBJECT_HEADER[1];
+    }
+
+    /**
+     * @return the little-endian fingerprint which follows the single object header.
+     */
+    private static long readFingerprint(byte[] data) {
+        long fingerprint = 0;
+        for (int i = FINGERPRINT_LENGTH - 1; i >= 0; i--) {
+            fingerprint = (fingerprint << 8) | (data[SINGLE_OBJECT_HEADER.length + i] & 0xFF);
+        }
+        return fingerprint;
+    }
 }
@@ -0,0 +1,135 @@
+package dp.handler;
+
+import dp.avro.ExportedFile;
+
+/**
+ * Reserves an estimate of the heap and temporary disk each export needs, from the row count of its message, from
+ * budgets shared by every export running at once. An export is only started once its estimate is reserved, so
+ * several small exports can run together but two large ones are never converted at the same time.
+ * <p>
+ * The heap of an export is estimated at most at the heap a V4 file may use before it is spilled to disk, as a larger
+ * file is spilled rather than held. Its disk is the local copy of the V4 file, the runs it is spilled to and the
+ * temporary files of the workbook, which grow with its rows however large it is. A Dataset sheet deflated in parallel is
+ * held in memory until it is written into the XLSX, so its heap is added to the estimate of a V4 file small enough to
+ * be deflated in parallel.
+ * <p>
+ * An export may be limited to part of the budgets, so that the rest is kept for other exports. An export estimated to
+ * need more than its limit reserves all of it, so it runs once nothing else is running rather than never.
+ */
+class AdmissionController {
+
+    private final long heapBudget;
+    private final long heapPerRow;
+    private final long spillBudget;
+    private final long diskBudget;
+    private final long diskPerRow;
+    private final long deflatedPerRow;
+    private final long deflateMaxRows;
+    private long reservedHeap;
+    private long reservedDisk;
+
+    /**
+     * @param heapBudget  the bytes of heap shared by every export running at once.
+     * @param heapPerRow  the bytes of heap each row of a V4 file is estimated to need while it is being converted.
+     * @param spillBudget the bytes of heap a V4 file may use before it is spilled to disk.
+     * @param diskBudget  the bytes of temporary disk shared by every export running at once.
+     * @param diskPerRow  the bytes of temporary disk each row of a V4 file is estimated to need while it is converted.
+     */
+    AdmissionController(long heapBudget, long heapPerRow, long spillBudget, long diskBudget, long diskPerRow) {
+        this(heapBudget, heapPerRow, spillBudget, diskBudget, diskPerRow, 0, 0);
+    }
+
+    /**
+     * @param deflatedPerRow the bytes of heap each row of a V4 file is estimated to need in the deflated Dataset sheet
+     *                       held until it is written into the XLSX, or 0 if the sheet is not held.
+     * @param deflateMaxRows the most rows of a V4 file whose Dataset sheet is deflated in parallel.
+     */
+    AdmissionController(long heapBudget, long heapPerRow, long spillBudget, long diskBudget, long diskPerRow,
+                        long deflatedPerRow, long deflateMaxRows) {
+        this.heapBudget = heapBudget;
+        this.heapPerRow = heapPerRow;
+        this.spillBudget = spillBudget;
+        this.diskBudget = diskBudget;
+        this.diskPerRow = diskPerRow;
+        this.deflatedPerRow = deflatedPerRow;
+        this.deflateMaxRows = deflateMaxRows;
+    }
+
+    /**
+     * @return the heap and disk the export of a message is estimated to need, each at most its whole budget.
+     */
+    Estimate estimate(ExportedFile message) {
+        return estimate(message, getBudget());
+    }
+
+    /**
+     * @param limit the most heap and disk the export may reserve.
+     * @return the heap and disk the export of a message is estimated to need, each at most its limit.
+     */
+    Estimate estimate(ExportedFile message, Estimate limit) {
+        return estimate(message.getRowCount() != null ? Math.max(0, message.getRowCount()) : 0, limit);
+    }
+
+    /**
+     * @param limit the most heap and disk the export may reserve.
+     * @return the heap and disk the export of a V4 file with a number of rows is estimated to need, each at most its
+     * limit.
+     */
+    Estimate estimate(long rows, Estimate limit) {
+        final long deflated = rows <= deflateMaxRows ? rows * deflatedPerRow : 0;
+        final long heap = Math.min(limit.heap(), Math.min(spillBudget, rows * heapPerRow) + deflated);
+        final long disk = Math.min(limit.disk(), rows * diskPerRow);
+        return new Estimate(heap, disk);
+    }
+
+    /**
+     * Reserve an estimate from the budgets if both its heap and its disk are available.
+     *
+     * @return true if the estimate was reserved.
+     */
+    synchronized boolean tryReserve(Estimate estimate) {
+        return tryReserve(estimate, getBudget());
+    }
+
+    /**
+     * Reserve an estimate if both its heap and its disk are available without the heap and disk reserved by every
+     * export exceeding a limit within the budgets.
+     *
+     * @param limit the most heap and disk which may be reserved once the estimate is.
+     * @return true if the estimate was reserved.
+     */
+    synchronized boolean tryReserve(Estimate estimate, Estimate limit) {
+        if (reservedHeap + estimate.heap() > limit.heap() || reservedDisk + estimate.disk() > limit.disk()) {
+            return false;
+        }
+        reservedHeap += estimate.heap();
+        reservedDisk += estimate.disk();
+        return true;
+    }
+
+    synchronized void release(Estimate estimate) {
+        reservedHeap -= estimate.heap();
+        reservedDisk -= estimate.disk();
+    }
+
+    synchronized long getReserved() {
+        return reservedHeap;
+    }
+
+    synchronized long getReservedDisk() {
+        return reservedDisk;
+    }
+
+    /**
+     * @return the heap and disk shared by every export.
+     */
+    Estimate getBudget() {
+        return new Estimate(heapBudget, diskBudget);
+    }
+
+    /**
+     * The bytes of heap and of temporary disk an export is estimated to need.
+     */
+    record Estimate(long heap, long disk) {
+    }
+}
@@ -4,7 +4,6 @@ import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3URI;
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import dp.api.dataset.DatasetAPIClient;
@@ -17,36 +16,53 @@ import dp.api.dataset.models.Version;
 import dp.api.filter.Filter;
 import dp.api.filter.FilterAPIClient;
 import dp.avro.ExportedFile;
+import dp.dedup.ExportIndex;
+import dp.dedup.ExportedWorkbook;
+import dp.dedup.ProcessingRegistry;
 import dp.exceptions.FilterAPIException;
+import dp.s3.MultipartUploadOutputStream;
+import dp.s3.RangedDownloadInputStream;
+import dp.xlsx.CMDWorkbook;
 import dp.xlsx.Converter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.apache.commons.codec.DecoderException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Workbook;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
-import java.util.Date;
-import java.util.TimeZone;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static dp.api.dataset.MessageType.FILTER;
 import static dp.api.dataset.MessageType.GetMessageType;
 import static java.text.MessageFormat.format;
 import static dp.logging.LogEvent.info;
 import static dp.logging.LogEvent.error;
+import static dp.logging.LogEvent.warn;
 
 
 /**
@@ -59,8 +75,9 @@ public class Handler {
     private static final String INSTANCE_URL = "/instances/{0}";
     private static final String PUBLISHED_STATE = "published";
     
-    private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss'Z'");
-    private static final TimeZone utc = TimeZone.getTimeZone("UTC");
+    // immutable, unlike a SimpleDateFormat, as filter outputs are named on several workers at once
+    private static final DateTimeFormatter df = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH-mm-ss'Z'")
+            .withZone(ZoneOffset.UTC);
 
     @Value("${S3_BUCKET_URL:}")
     private String bucketUrl;
@@ -87,6 +104,38 @@ public class Handler {
     @Value("${MAX_OBSERVATION_COUNT:999900}")
     private Integer maxObservationCount;
 
+    // the size of each part of a multipart upload to S3 - 16MB by default (the S3 minimum is 5MB)
+    @Value("${S3_UPLOAD_PART_SIZE:16777216}")
+    private Integer uploadPartSize;
+
+    // the number of parts of each file that may be uploaded to S3 concurrently
+    @Value("${S3_UPLOAD_CONCURRENCY:4}")
+    private Integer uploadConcurrency;
+
+    // the size of each byte range of the V4 file downloaded from S3 - 8MB by default
+    @Value("${S3_DOWNLOAD_PART_SIZE:8388608}")
+    private Integer downloadPartSize;
+
+    // the number of byte ranges of each V4 file that may be downloaded from S3 concurrently - 1 to use a single GET
+    @Value("${S3_DOWNLOAD_CONCURRENCY:4}")
+    private Integer downloadConcurrency;
+
+    // whether the V4 file is downloaded, and independent API calls made, at the same time for each export
+    @Value("${OVERLAP_EXPORT_IO:true}")
+    private Boolean overlapIO;
+
+    // whether a V4 file exported before with the same metadata has its workbook copied rather than converted again
+    @Value("${DEDUPLICATE_EXPORTS:true}")
+    private Boolean deduplicateExports;
+
+    // the level filter outputs and full downloads are deflated at, from 0 (stored) to 9 (smallest), or -1 for the
+    // default, which is 6 - a lower level writes the workbook faster but makes it larger
+    @Value("${FILTER_COMPRESSION_LEVEL:-1}")
+    private Integer filterCompressionLevel;
+
+    @Value("${FULL_DOWNLOAD_COMPRESSION_LEVEL:-1}")
+    private Integer fullDownloadCompressionLevel;
+
     @Autowired
     @Qualifier("s3-client")
     private AmazonS3 s3Client;
@@ -100,7 +149,61 @@ public class Handler {
     @Autowired
     private DatasetAPIClient datasetAPIClient;
 
-    @KafkaListener(topics = "${KAFKA_TOPIC:common-output-created}")
+    @Autowired
+    private ExportIndex exportIndex;
+
+    @Autowired
+    private ProcessingRegistry processingRegistry;
+
+    private ExecutorService uploadExecutor;
+
+    private ExecutorService downloadExecutor;
+
+    private ExecutorService ioExecutor;
+
+    private Counter dedupHits;
+
+    private Counter dedupMisses;
+
+    private Counter duplicates;
+
+    @PostConstruct
+    void startExecutors() {
+        checkCompressionLevel("FILTER_COMPRESSION_LEVEL", filterCompressionLevel);
+        checkCompressionLevel("FULL_DOWNLOAD_COMPRESSION_LEVEL", fullDownloadCompressionLevel);
+
+        uploadExecutor = Executors.newFixedThreadPool(uploadConcurrency);
+        downloadExecutor = Executors.newFixedThreadPool(Math.max(1, downloadConcurrency));
+        ioExecutor = Executors.newCachedThreadPool();
+        registerMetrics(Metrics.globalRegistry);
+    }
+
+    void registerMetrics(MeterRegistry registry) {
+        dedupHits = Counter.builder("exporter.dedup").tag("result", "hit").register(registry);
+        dedupMisses = Counter.builder("exporter.dedup").tag("result", "miss").register(registry);
+        duplicates = Counter.builder("exporter.duplicates").register(registry);
+    }
+
+    /**
+     * Fail at startup rather than on every export if a compression level is configured out of range.
+     */
+    private static void checkCompressionLevel(String name, int level) {
+        if (!CMDWorkbook.isCompressionLevel(level)) {
+            throw new IllegalStateException(format("{0} must be from -1 to 9, not {1}", name, level));
+        }
+    }
+
+    @PreDestroy
+    void stopExecutors() {
+        uploadExecutor.shutdownNow();
+        downloadExecutor.shutdownNow();
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * Export the file described by a message, acknowledging the message once it has been handled whether or not the
+     * export succeeded. Messages are passed in from kafka by the {@link MessageDispatcher}.
+     */
     public void listen(final ExportedFile message, Acknowledgment ack) {
         // reset traceID every time that we receive a new Kafka Message
         // This should be part of dp-logging, which should handle Kafka Messages in a more elegant way,
@@ -186,6 +289,21 @@ public class Handler {
     }
 
     private void handleFilterMessage(ExportedFile message) throws IOException, DecoderException {
+        final String processingKey = "filter/" + message.getFilterId();
+        if (!claim(processingKey)) {
+            return;
+        }
+
+        boolean exported = false;
+        try {
+            exportFilter(message);
+            exported = true;
+        } finally {
+            release(processingKey, exported);
+        }
+    }
+
+    private void exportFilter(ExportedFile message) throws IOException, DecoderException {
         final String filterId = message.getFilterId().toString();
         final String datasetId = message.getDatasetId().toString();
         final String edition = message.getEdition().toString();
@@ -194,36 +312,41 @@ public class Handler {
         info().filterID(filterId).log("handling filter");
 
         String s3uri = getS3URL(message.getS3URL().toString());
-        Filter filter = filterAPIClient.getFilter(filterId);
-
         final AmazonS3URI uri = new AmazonS3URI(s3uri);
-        final S3Object object = getObject(uri.getBucket(), uri.getKey(), filter.isPublished());
-        info().filterID(filterId).log("successfully got s3 object");
 
-        String metadataURL;
-        try {
-            URL url = new URL(filter.getLinks().getVersion().getHref());
-            metadataURL = url.getPath();
-        } catch (MalformedURLException e) {
-            throw new IOException(format("error while attempting to create metadata URL filterID {0}, value: {1}",
-                    filterId, filter.getLinks().getVersion().getHref()), e);
-        }
+        // the V4 file starts downloading while the filter and its metadata are fetched
+        final Future<S3Object> v4File = fetch(() -> getFirstPart(uri));
 
+        Filter filter;
         Metadata datasetMetadata;
         try {
-            datasetMetadata = datasetAPIClient.getMetadata(metadataURL);
-        } catch (FilterAPIException e) {
-            throw new IOException(format("dataset api get metadata returned error. filterID {0}, uri: {1}",
-                    filterId, metadataURL.toString()), e);
+            filter = filterAPIClient.getFilter(filterId);
+
+            String metadataURL;
+            try {
+                URL url = new URL(filter.getLinks().getVersion().getHref());
+                metadataURL = url.getPath();
+            } catch (MalformedURLException e) {
+                throw new IOException(format("error while attempting to create metadata URL filterID {0}, value: {1}",
+                        filterId, filter.getLinks().getVersion().getHref()), e);
+            }
+
+            try {
+                datasetMetadata = datasetAPIClient.getMetadata(metadataURL);
+            } catch (FilterAPIException e) {
+                throw new IOException(format("dataset api get metadata returned error. filterID {0}, uri: {1}",
+                        filterId, metadataURL.toString()), e);
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(v4File);
+            throw e;
         }
-        
-        df.setTimeZone(utc);
-        String datetime = df.format(new Date());
 
-        final String filename = filteredDatasetFilePrefix + filterId + "/" + datasetId + "-" + edition + "-v" + version + "-filtered-" + datetime + ".xlsx";
+        final String filename = getFilteredFilename(filterId, datasetId, edition, version);
         WorkbookDetails details;
         try {
-            details = createWorkbook(object, datasetMetadata, filename, filter.isPublished());
+            details = exportWorkbook(uri, v4File, datasetMetadata, filename, filter.isPublished(),
+                    filterCompressionLevel);
         } catch (IOException e) {
             throw new IOException(format("error while attempting to create xlsx workbook filterID: {0}, filename: {1}",
                     filterId, message.getFilename().toString()), e);
@@ -240,6 +363,14 @@ public class Handler {
         }
     }
 
+    /**
+     * @return the key a filter output is uploaded to, named from the time it is exported.
+     */
+    String getFilteredFilename(String filterId, String datasetId, String edition, String version) {
+        final String datetime = df.format(Instant.now());
+        return filteredDatasetFilePrefix + filterId + "/" + datasetId + "-" + edition + "-v" + version + "-filtered-" + datetime + ".xlsx";
+    }
+
     private void handleFullDownloadMessage(ExportedFile message)
             throws IOException, DecoderException {
 
@@ -247,29 +378,40 @@ public class Handler {
 
         String versionURL = format(VERSION_DOWNLOADS_URL, message.getDatasetId(), message.getEdition(),
                 message.getVersion());
-        String state = getVersionState(message);
-        boolean isPublished = PUBLISHED_STATE.equals(state);
         String s3uri = getS3URL(message.getS3URL().toString());
-
         final AmazonS3URI uri = new AmazonS3URI(s3uri);
-        S3Object object = getObject(uri.getBucket(), uri.getKey(), PUBLISHED_STATE.equals(state));
-        info().versionURL(versionURL).log("successfully got s3Object");
 
-        Metadata metadata;
-        try {
-            metadata = datasetAPIClient.getMetadata(versionURL);
-        } catch (MalformedURLException | FilterAPIException e) {
-            error().versionURL(versionURL).logException(e, "dataset api client error while attempting to get metadata");
-            throw e;
+        // the state is part of the key, as a version is exported again once it is published, so it is fetched before
+        // the export is claimed and anything else is fetched for it
+        final String versionState = getVersionState(message);
+        final boolean isPublished = PUBLISHED_STATE.equals(versionState);
+        final String processingKey = String.join("/", "version", message.getDatasetId(), message.getEdition(),
+                message.getVersion(), message.getInstanceId(), versionState);
+        if (!claim(processingKey)) {
+            return;
         }
 
+        boolean exported = false;
         WorkbookDetails details;
         try {
+            // the V4 file starts downloading while the metadata is fetched
+            final Future<S3Object> v4File = fetch(() -> getFirstPart(uri));
 
+            Metadata metadata;
+            try {
+                metadata = datasetAPIClient.getMetadata(versionURL);
+            } catch (MalformedURLException | FilterAPIException e) {
+                error().versionURL(versionURL).logException(e, "dataset api client error while attempting to get metadata");
+                discard(v4File);
+                throw e;
+            } catch (RuntimeException e) {
+                discard(v4File);
+                throw e;
+            }
 
             final String filename = fullDatasetFilePrefix + message.getFilename().toString() + ".xlsx";
 
-            details = createWorkbook(object, metadata, filename, isPublished);
+            details = exportWorkbook(uri, v4File, metadata, filename, isPublished, fullDownloadCompressionLevel);
 
             try {
                 String downloadUrl = downloadServiceUrl + "/downloads" + format(VERSION_DOWNLOADS_URL, message.getDatasetId(),
@@ -285,6 +427,7 @@ public class Handler {
                 DownloadsList downloadsList = new DownloadsList(download, null);
 
                 datasetAPIClient.putVersionDownloads(versionURL, downloadsList);
+                exported = true;
 
             } catch (MalformedURLException | FilterAPIException e) {
                 error().fileName(message.getFilename().toString()).versionURL(versionURL)
@@ -296,48 +439,225 @@ public class Handler {
             error().fileName(message.getFilename().toString())
                     .logException(e, "error while attempting to create xlsx workbook");
             throw e;
+        } finally {
+            release(processingKey, exported);
         }
         info().filterID(message.getFilterId().toString()).log("completed processing kafka message");
     }
 
-    private WorkbookDetails createWorkbook(S3Object object, Metadata datasetMetadata, String filename,
-                                           boolean isPublished) throws IOException {
-        try (final Workbook workbook = converter.toXLSX(object.getObjectContent(), datasetMetadata);
-             final ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            workbook.write(outputStream);
+    /**
+     * Claim an export in the {@link ProcessingRegistry}.
+     *
+     * @return true if the export is to be processed, or false if it is a duplicate to be dropped.
+     */
+    private boolean claim(String processingKey) {
+        if (processingRegistry.tryStart(processingKey)) {
+            return true;
+        }
+        info().data("key", processingKey).log("dropping duplicate message, export is being processed or was recently");
+        duplicates.increment();
+        return false;
+    }
+
+    private void release(String processingKey, boolean exported) {
+        if (exported) {
+            processingRegistry.complete(processingKey);
+        } else {
+            processingRegistry.abandon(processingKey);
+        }
+    }
 
-            byte[] xlsxBytes = outputStream.toByteArray();
+    /**
+     * Export a V4 file to a workbook, or if the same V4 file has been exported with the same metadata before, copy the
+     * workbook exported then - see {@link ExportIndex}. The V4 file is identified by the ETag of the first response of
+     * its download, and the rest of it is only downloaded if it is converted. The download is closed either way.
+     */
+    private WorkbookDetails exportWorkbook(AmazonS3URI source, Future<S3Object> v4File, Metadata metadata,
+                                           String filename, boolean isPublished, int compressionLevel)
+            throws IOException {
+        final S3Object first;
+        final String contentKey;
+        try {
+            first = await(v4File);
+            contentKey = getContentKey(first, metadata);
+        } catch (IOException | RuntimeException e) {
+            discard(v4File);
+            throw e;
+        }
 
-            final long contentLength = xlsxBytes.length;
-            final ObjectMetadata metadata = new ObjectMetadata();
+        if (contentKey != null) {
+            final WorkbookDetails copied = copyWorkbook(contentKey, filename, isPublished);
+            if (copied != null) {
+                discard(v4File);
+                return copied;
+            }
+        }
 
-            metadata.setContentLength(contentLength);
+        final WorkbookDetails details;
+        try (final InputStream object = getObject(source, first)) {
+            info().fileName(filename).log("successfully got s3 object");
+            details = createWorkbook(object, metadata, filename, isPublished, compressionLevel);
+        }
 
-            try (final ByteArrayInputStream stream = new ByteArrayInputStream(xlsxBytes)) {
-                final PutObjectRequest putObjectRequest = new PutObjectRequest(bucket, filename, stream, metadata);
-                if (isPublished) {
-                    s3Client.putObject(putObjectRequest);
-                } else {
-                    putObjectRequest.setBucketName(privateBucket);
-                    s3Client.putObject(putObjectRequest);
-                }
-                return new WorkbookDetails(s3Client.getUrl(bucket, filename).toString(), contentLength);
-            } catch (SdkClientException e) {
-                error().fileName(filename).bucket(bucket)
-                        .logException(e, "error while attempting put xlsx workbook to s3 bucket");
-                throw new FilterAPIException("error while attempting PUT XLSX workbook to S3 bucket", e);
+        if (contentKey != null) {
+            exportIndex.put(contentKey, new ExportedWorkbook(isPublished ? bucket : privateBucket, filename,
+                    details.getContentLength()));
+        }
+        return details;
+    }
+
+    /**
+     * @return the content key of a V4 file exported with metadata, from the ETag of the first response of its
+     * download, or null if the export is not deduplicated.
+     */
+    private String getContentKey(S3Object first, Metadata metadata) {
+        if (!deduplicateExports || first == null) {
+            return null;
+        }
+
+        final ObjectMetadata object = first.getObjectMetadata();
+        if (object == null || StringUtils.isEmpty(object.getETag())) {
+            return null;
+        }
+        try {
+            return ExportIndex.contentKeyOf(object.getETag(), metadata);
+        } catch (JsonProcessingException e) {
+            warn().bucket(first.getBucketName()).fileName(first.getKey())
+                    .logException(e, "unable to get content key of v4 file, exporting it without deduplication");
+            return null;
+        }
+    }
+
+    /**
+     * Copy the workbook exported before with a content key to the file a workbook is to be exported to.
+     *
+     * @return the details of the copied workbook, or null if there is none to copy.
+     */
+    private WorkbookDetails copyWorkbook(String contentKey, String filename, boolean isPublished) {
+        final ExportedWorkbook exported = exportIndex.get(contentKey);
+        if (exported == null) {
+            dedupMisses.increment();
+            return null;
+        }
+
+        final String destinationBucket = isPublished ? bucket : privateBucket;
+        try {
+            if (!exported.getBucket().equals(destinationBucket) || !exported.getKey().equals(filename)) {
+                s3Client.copyObject(exported.getBucket(), exported.getKey(), destinationBucket, filename);
             }
+        } catch (SdkClientException e) {
+            warn().fileName(exported.getKey()).bucket(exported.getBucket())
+                    .logException(e, "unable to copy workbook exported before, exporting it again");
+            exportIndex.remove(contentKey);
+            dedupMisses.increment();
+            return null;
+        }
+
+        info().fileName(filename).bucket(destinationBucket).data("source", exported.getKey())
+                .log("copied workbook exported before from the same v4 file and metadata");
+        dedupHits.increment();
+        return new WorkbookDetails(s3Client.getUrl(bucket, filename).toString(), exported.getContentLength());
+    }
+
+    private WorkbookDetails createWorkbook(InputStream object, Metadata datasetMetadata, String filename,
+                                           boolean isPublished, int compressionLevel) throws IOException {
+        final String destinationBucket = isPublished ? bucket : privateBucket;
+
+        try (final CMDWorkbook workbook = converter.toXLSX(object, datasetMetadata)) {
+            workbook.setCompressionLevel(compressionLevel);
+            final MultipartUploadOutputStream outputStream = new MultipartUploadOutputStream(s3Client,
+                    destinationBucket, filename, uploadPartSize, uploadConcurrency, uploadExecutor);
+            try {
+                workbook.write(outputStream);
+                outputStream.close();
+            } catch (IOException | RuntimeException e) {
+                outputStream.abort();
+                throw e;
+            }
+
+            return new WorkbookDetails(s3Client.getUrl(bucket, filename).toString(), outputStream.getContentLength());
+        } catch (SdkClientException e) {
+            error().fileName(filename).bucket(destinationBucket)
+                    .logException(e, "error while attempting put xlsx workbook to s3 bucket");
+            throw new FilterAPIException("error while attempting PUT XLSX workbook to S3 bucket", e);
         } catch (IOException e) {
-            error().fileName(filename).bucket(bucket).logException(e, "error while attempting to create xlsx workbook");
+            error().fileName(filename).bucket(destinationBucket).logException(e, "error while attempting to create xlsx workbook");
             throw e;
         }
     }
 
-    private S3Object getObject(String bucket, String key, boolean isPublished) throws SdkClientException, DecoderException {
-        if (isPublished) {
-            return s3Client.getObject(bucket, key);
+    /**
+     * @return the first response of the download of a V4 file - its first byte range, or the whole file if it is
+     * downloaded with a single GET. Null if the file is empty.
+     */
+    private S3Object getFirstPart(AmazonS3URI source) {
+        if (downloadConcurrency > 1) {
+            return RangedDownloadInputStream.getFirstPart(s3Client, source.getBucket(), source.getKey(),
+                    downloadPartSize);
+        }
+        return s3Client.getObject(source.getBucket(), source.getKey());
+    }
+
+    /**
+     * @return the content of a V4 file, downloading the rest of it after its first response.
+     */
+    private InputStream getObject(AmazonS3URI source, S3Object first) throws IOException {
+        if (downloadConcurrency > 1) {
+            return RangedDownloadInputStream.open(s3Client, source.getBucket(), source.getKey(), first,
+                    downloadPartSize, downloadExecutor);
+        }
+        return first.getObjectContent();
+    }
+
+    /**
+     * Start a blocking call on another thread if calls are overlapped, or else make it now, throwing whatever it
+     * throws so no later call is made.
+     */
+    private <T> Future<T> fetch(Callable<T> call) throws IOException {
+        final FutureTask<T> task = new FutureTask<>(call);
+        if (overlapIO) {
+            ioExecutor.execute(task);
+            return task;
+        }
+        task.run();
+        await(task);
+        return task;
+    }
+
+    /**
+     * @return the result of a call started by {@link #fetch}, throwing whatever the call threw.
+     */
+    private static <T> T await(Future<T> fetch) throws IOException {
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a call to complete");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Abort a download which is no longer needed once its first response has been received, without reading the rest
+     * of the response.
+     */
+    private static void discard(Future<S3Object> download) {
+        try {
+            final S3Object first = await(download);
+            if (first != null && first.getObjectContent() != null) {
+                first.getObjectContent().abort();
+            }
+            IOUtils.closeQuietly(first);
+        } catch (IOException | RuntimeException e) {
+            // the download failed as well, and there is nothing to close
         }
-        return s3Client.getObject(bucket, key);
     }
 
     private String getDownloadUrl(boolean isPublished, String filePath, WorkbookDetails details) {
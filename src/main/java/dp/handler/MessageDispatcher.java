@@ -0,0 +1,478 @@
+package dp.handler;
+
+import dp.api.APIGuard;
+import dp.avro.ExportedFile;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.listener.ConsumerSeekAware.ConsumerSeekCallback;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static dp.api.dataset.MessageType.FILTER;
+import static dp.api.dataset.MessageType.GetMessageType;
+import static dp.logging.LogEvent.error;
+import static dp.logging.LogEvent.info;
+
+/**
+ * Consumes ExportedFile messages from kafka and passes each to the {@link Handler} on a pool of workers, so several
+ * files are exported at once rather than small filter outputs waiting behind a long full download.
+ * <p>
+ * Messages are routed into lanes, each with its own workers and queue. By default there is a single lane. If
+ * FILTER_LANE_WORKERS is set, small filter outputs - which a user is waiting on - get a latency lane of their own, and
+ * every other message goes to a throughput lane, so a large publish never holds up an interactive filter. The latency
+ * lane keeps enough of the memory and disk budgets for each of its workers to export the largest filter output it
+ * takes, which the throughput lane cannot reserve.
+ * <p>
+ * Records of a partition may complete in any order, so each is only acknowledged once every earlier record of its
+ * partition has completed - see {@link OffsetTracker}. A record is only started once a worker of its lane is free and
+ * the memory and temporary disk its export is estimated to need are reserved from the budgets shared by every lane -
+ * see {@link AdmissionController}. Until then it waits in its lane's queue, and records are started in the order they
+ * were received as exports complete, latency lane first. Once a lane holds as many records as it has workers and
+ * queue the consumer is paused, so records are not fetched faster than they can be processed and the consumer keeps
+ * polling within the poll timeout. The throughput lane never pauses the consumer, as that would stop filter outputs
+ * being received for the latency lane. Instead a record for a full throughput lane is left to be received again: its
+ * partition is sought back to it and that partition alone paused until the lane has room.
+ * <p>
+ * While the circuit of an API the exports depend on is open - see {@link APIGuard} - records are not started, as
+ * their results could not be recorded. The partition of the first such record is sought back to it and the consumer
+ * paused until the circuit may be tried again.
+ * <p>
+ * A worker which completes a record after its partition has been revoked does not acknowledge it, even once the
+ * partition has been assigned back and the record received again, and queued records of the partition are dropped -
+ * the consumer the partition was assigned to processes them again.
+ */
+@Component
+public class MessageDispatcher implements ConsumerSeekAware {
+
+    static final String LISTENER_ID = "exported-file-listener";
+
+    // the number of messages processed at once, or by the throughput lane if there is a latency lane
+    // 1, without a latency lane, processes each message on the consumer thread
+    @Value("${KAFKA_CONSUMER_WORKERS:1}")
+    private Integer workers;
+
+    // the number of messages each lane holds waiting for a worker, beyond those being processed
+    @Value("${KAFKA_CONSUMER_QUEUE_SIZE:0}")
+    private Integer queueSize;
+
+    // the number of messages the throughput lane holds waiting for a worker, beyond those being processed
+    @Value("${THROUGHPUT_LANE_QUEUE_SIZE:16}")
+    private Integer throughputQueueSize;
+
+    // the number of filter outputs processed at once by a latency lane of their own - 0 for no latency lane
+    @Value("${FILTER_LANE_WORKERS:0}")
+    private Integer filterLaneWorkers;
+
+    // the most rows of a filter output processed by the latency lane
+    @Value("${FILTER_LANE_MAX_ROWS:100000}")
+    private Integer filterLaneMaxRows;
+
+    // the bytes of memory shared by every export running at once - 1GB by default
+    @Value("${EXPORT_MEMORY_BUDGET:1073741824}")
+    private Long memoryBudget;
+
+    // the bytes of memory each row of a V4 file is estimated to need while it is being exported
+    @Value("${EXPORT_MEMORY_PER_ROW:1024}")
+    private Long memoryPerRow;
+
+    // the bytes of memory a V4 file may use before it is spilled to disk, the most any export is estimated to need
+    @Value("${V4_HEAP_BUDGET:268435456}")
+    private Long spillBudget;
+
+    // the bytes of temporary disk shared by every export running at once - 10GB by default
+    @Value("${EXPORT_DISK_BUDGET:10737418240}")
+    private Long diskBudget;
+
+    // the bytes of temporary disk each row of a V4 file is estimated to need while it is being exported
+    @Value("${EXPORT_DISK_PER_ROW:512}")
+    private Long diskPerRow;
+
+    // the number of blocks of the Dataset sheet deflated at once - more than 1 holds the deflated sheet in memory
+    @Value("${XLSX_DEFLATE_PARALLELISM:1}")
+    private Integer deflateParallelism;
+
+    // the bytes of memory each row of a V4 file is estimated to need in a Dataset sheet deflated in parallel
+    @Value("${EXPORT_DEFLATED_PER_ROW:64}")
+    private Long deflatedPerRow;
+
+    // the most rows of a V4 file whose Dataset sheet is deflated in parallel
+    @Value("${XLSX_DEFLATE_MAX_ROWS:1000000}")
+    private Long deflateMaxRows;
+
+    @Autowired
+    private Handler handler;
+
+    @Autowired
+    private KafkaListenerEndpointRegistry registry;
+
+    @Autowired
+    private APIGuard apiGuard;
+
+    private final OffsetTracker offsets = new OffsetTracker();
+
+    // in order of priority
+    private final List<Lane> lanes = new ArrayList<>();
+
+    private Lane latencyLane;
+
+    private Lane throughputLane;
+
+    private AdmissionController admission;
+
+    // the partitions rewound to a record received while the circuit of an API was open
+    private final Set<TopicPartition> rewound = new HashSet<>();
+
+    // the partitions sought back to a record received while the throughput lane was full, and the offset of the record
+    private final Map<TopicPartition, Long> deferred = new HashMap<>();
+
+    private final ThreadLocal<ConsumerSeekCallback> seekCallback = new ThreadLocal<>();
+
+    private ScheduledExecutorService resumeScheduler;
+
+    @PostConstruct
+    void startWorkers() {
+        startWorkers(Metrics.globalRegistry);
+    }
+
+    void startWorkers(MeterRegistry meterRegistry) {
+        resumeScheduler = Executors.newSingleThreadScheduledExecutor();
+
+        if (filterLaneWorkers <= 0 && workers <= 1) {
+            return;
+        }
+
+        admission = new AdmissionController(memoryBudget, memoryPerRow, spillBudget, diskBudget, diskPerRow,
+                deflateParallelism > 1 ? deflatedPerRow : 0, deflateMaxRows);
+        final AdmissionController.Estimate budget = admission.getBudget();
+        if (filterLaneWorkers > 0) {
+            // at most half of each budget is kept for the latency lane
+            final AdmissionController.Estimate largestFilter = admission.estimate(filterLaneMaxRows, budget);
+            final long heapShare = Math.min(budget.heap() / 2, filterLaneWorkers * largestFilter.heap());
+            final long diskShare = Math.min(budget.disk() / 2, filterLaneWorkers * largestFilter.disk());
+
+            latencyLane = new Lane("latency", filterLaneWorkers, queueSize, budget);
+            throughputLane = new Lane("throughput", workers, throughputQueueSize,
+                    new AdmissionController.Estimate(budget.heap() - heapShare, budget.disk() - diskShare));
+            lanes.add(latencyLane);
+            lanes.add(throughputLane);
+        } else {
+            lanes.add(new Lane("default", workers, queueSize, budget));
+        }
+
+        Gauge.builder("exporter.admission.reserved", admission, AdmissionController::getReserved)
+                .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("exporter.admission.reserved.disk", admission, AdmissionController::getReservedDisk)
+                .baseUnit("bytes").register(meterRegistry);
+        for (Lane lane : lanes) {
+            Gauge.builder("exporter.lane.active", this, dispatcher -> dispatcher.getActive(lane.name))
+                    .tag("lane", lane.name).register(meterRegistry);
+            Gauge.builder("exporter.lane.queued", this, dispatcher -> dispatcher.getQueued(lane.name))
+                    .tag("lane", lane.name).register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    void stopWorkers() {
+        resumeScheduler.shutdownNow();
+        lanes.forEach(lane -> lane.executor.shutdownNow());
+    }
+
+    @KafkaListener(id = LISTENER_ID, idIsGroup = false, topics = "${KAFKA_TOPIC:common-output-created}")
+    public void receive(final ConsumerRecord<String, ExportedFile> record, Acknowledgment ack) {
+        final TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+        if (isSoughtBack(partition, record.offset())) {
+            return;
+        }
+
+        if (apiGuard.isOpen()) {
+            rewind(record);
+            return;
+        }
+
+        if (lanes.isEmpty()) {
+            handler.listen(record.value(), ack);
+            return;
+        }
+
+        final Lane lane = route(record.value());
+        if (defer(record, partition, lane)) {
+            return;
+        }
+
+        final OffsetTracker.Record tracked = offsets.start(partition, record.offset(), ack);
+        admit(new Job(record, tracked, partition, lane, admission.estimate(record.value(), lane.limit)));
+    }
+
+    @Override
+    public void registerSeekCallback(ConsumerSeekCallback callback) {
+        seekCallback.set(callback);
+    }
+
+    @Override
+    public synchronized void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        offsets.revoke(partitions);
+        rewound.removeAll(partitions);
+        final MessageListenerContainer container = registry.getListenerContainer(LISTENER_ID);
+        for (TopicPartition partition : partitions) {
+            if (deferred.remove(partition) != null && container != null) {
+                container.resumePartition(partition);
+            }
+        }
+        lanes.forEach(lane -> lane.queued.removeIf(job -> partitions.contains(job.partition)));
+        updatePause();
+    }
+
+    /**
+     * Leave a record received while the circuit of an API is open to be received again once it has closed, by seeking
+     * its partition back to it, and pause the consumer until then. Later records of the partition already fetched are
+     * received again after it.
+     */
+    private synchronized void rewind(ConsumerRecord<String, ExportedFile> record) {
+        final TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+        if (!rewound.add(partition)) {
+            return;
+        }
+
+        final long delay = apiGuard.getRemainingOpenMillis();
+        info().data("partition", partition.toString()).data("offset", record.offset()).data("delay", delay)
+                .log("api circuit open, pausing consumer");
+        seekCallback.get().seek(record.topic(), record.partition(), record.offset());
+        updatePause();
+        resumeScheduler.schedule(this::resumeRewound, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void resumeRewound() {
+        rewound.clear();
+        updatePause();
+    }
+
+    /**
+     * Leave a record for a full throughput lane to be received again once the lane has room, by seeking its partition
+     * back to it and pausing the partition until then. Records of other partitions keep being received.
+     *
+     * @return true if the record was deferred.
+     */
+    private synchronized boolean defer(ConsumerRecord<String, ExportedFile> record, TopicPartition partition,
+                                       Lane lane) {
+        if (lane != throughputLane || !lane.isFull()) {
+            return false;
+        }
+
+        info().data("partition", partition.toString()).data("offset", record.offset())
+                .data("active", lane.active).data("queued", lane.queued.size())
+                .log("throughput lane full, pausing partition");
+        seekCallback.get().seek(record.topic(), record.partition(), record.offset());
+        deferred.put(partition, record.offset());
+        final MessageListenerContainer container = registry.getListenerContainer(LISTENER_ID);
+        if (container != null) {
+            container.pausePartition(partition);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a record is a later record of a partition sought back to an earlier one, which was already
+     * fetched and is received again after it. The record the partition was sought back to is received normally.
+     */
+    private synchronized boolean isSoughtBack(TopicPartition partition, long offset) {
+        final Long soughtTo = deferred.get(partition);
+        if (soughtTo == null) {
+            return false;
+        }
+        if (soughtTo == offset) {
+            deferred.remove(partition);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the lane a message is processed by.
+     */
+    private Lane route(ExportedFile message) {
+        if (latencyLane == null) {
+            return lanes.get(0);
+        }
+        final int rowCount = message.getRowCount() != null ? message.getRowCount() : 0;
+        if (FILTER.equals(GetMessageType(message)) && rowCount <= filterLaneMaxRows) {
+            return latencyLane;
+        }
+        return lanes.get(1);
+    }
+
+    private synchronized void admit(Job job) {
+        if (!job.lane.queued.isEmpty() || !tryStart(job)) {
+            info().data("lane", job.lane.name).data("estimate", job.estimate.heap())
+                    .data("reserved", admission.getReserved()).data("disk_estimate", job.estimate.disk())
+                    .data("disk_reserved", admission.getReservedDisk()).data("active", job.lane.active)
+                    .log("queueing export until workers and memory are free");
+            job.lane.queued.add(job);
+        }
+        updatePause();
+    }
+
+    private synchronized void completed(Job job) {
+        job.lane.active--;
+        admission.release(job.estimate);
+        for (Lane lane : lanes) {
+            while (!lane.queued.isEmpty() && tryStart(lane.queued.peek())) {
+                lane.queued.poll();
+            }
+        }
+        updatePause();
+    }
+
+    /**
+     * Start a job on a worker of its lane if one is free and the memory and disk it is estimated to need can be
+     * reserved.
+     *
+     * @return true if the job was started.
+     */
+    private boolean tryStart(Job job) {
+        if (job.lane.active >= job.lane.workers || !admission.tryReserve(job.estimate, job.lane.limit)) {
+            return false;
+        }
+        job.lane.active++;
+        job.lane.executor.execute(() -> run(job));
+        return true;
+    }
+
+    private void run(Job job) {
+        try {
+            handler.listen(job.record.value(), () -> {
+                final Acknowledgment committable = offsets.complete(job.tracked);
+                if (committable != null) {
+                    committable.acknowledge();
+                }
+            });
+        } catch (RuntimeException e) {
+            error().logException(e, "unexpected error thrown by a worker while processing message");
+        } finally {
+            completed(job);
+        }
+    }
+
+    /**
+     * Pause the consumer while a lane other than the throughput lane is full or a partition has been rewound, and
+     * resume it once neither is. Resume the partitions deferred by the throughput lane once it has room.
+     */
+    private void updatePause() {
+        final MessageListenerContainer container = registry.getListenerContainer(LISTENER_ID);
+        if (container == null) {
+            return;
+        }
+
+        if (throughputLane != null && !throughputLane.isFull()) {
+            for (TopicPartition partition : deferred.keySet()) {
+                if (container.isPartitionPauseRequested(partition)) {
+                    info().data("partition", partition.toString()).log("resuming partition");
+                    container.resumePartition(partition);
+                }
+            }
+        }
+
+        final boolean pause = !rewound.isEmpty()
+                || lanes.stream().anyMatch(lane -> lane != throughputLane && lane.isFull());
+        if (pause == container.isPauseRequested()) {
+            return;
+        }
+
+        if (pause) {
+            lanes.forEach(lane -> info().data("lane", lane.name).data("active", lane.active)
+                    .data("queued", lane.queued.size()).log("pausing consumer"));
+            container.pause();
+        } else {
+            info().log("resuming consumer");
+            container.resume();
+        }
+    }
+
+    /**
+     * @return the number of messages being processed by a lane.
+     */
+    synchronized int getActive(String lane) {
+        return lanes.stream().filter(l -> l.name.equals(lane)).mapToInt(l -> l.active).sum();
+    }
+
+    /**
+     * @return the number of messages waiting in a lane for workers or memory to be free.
+     */
+    synchronized int getQueued(String lane) {
+        return lanes.stream().filter(l -> l.name.equals(lane)).mapToInt(l -> l.queued.size()).sum();
+    }
+
+    /**
+     * The workers and queue of a kind of message. Guarded by the dispatcher.
+     */
+    private static class Lane {
+
+        private final String name;
+        private final int workers;
+        private final int queueSize;
+        private final AdmissionController.Estimate limit;
+        private final ExecutorService executor;
+        private final Deque<Job> queued = new ArrayDeque<>();
+        private int active;
+
+        /**
+         * @param limit the most memory and disk which may be reserved by every lane once a job of this lane is started.
+         */
+        private Lane(String name, int workers, int queueSize, AdmissionController.Estimate limit) {
+            this.name = name;
+            this.workers = Math.max(1, workers);
+            this.queueSize = queueSize;
+            this.limit = limit;
+            this.executor = Executors.newFixedThreadPool(this.workers);
+        }
+
+        /**
+         * @return true if the lane holds as many messages as it has workers and queue.
+         */
+        private boolean isFull() {
+            return active + queued.size() >= workers + queueSize;
+        }
+    }
+
+    private static class Job {
+
+        private final ConsumerRecord<String, ExportedFile> record;
+        private final OffsetTracker.Record tracked;
+        private final TopicPartition partition;
+        private final Lane lane;
+        private final AdmissionController.Estimate estimate;
+
+        private Job(ConsumerRecord<String, ExportedFile> record, OffsetTracker.Record tracked,
+                    TopicPartition partition, Lane lane, AdmissionController.Estimate estimate) {
+            this.record = record;
+            this.tracked = tracked;
+            this.partition = partition;
+            this.lane = lane;
+            this.estimate = estimate;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package dp.handler;
+
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tracks the records of each partition which are being processed, so records which complete out of order are only
+ * acknowledged once every earlier record of their partition has completed. Acknowledging a record commits the offset
+ * after it, which would otherwise skip any earlier record still being processed if the consumer were restarted.
+ * <p>
+ * A record is completed by the {@link Record} returned when it was started rather than by its offset, so a worker
+ * still processing a record of a revoked partition cannot complete the same offset once it has been received again
+ * after the partition was reassigned.
+ */
+class OffsetTracker {
+
+    private final Map<TopicPartition, TreeMap<Long, Record>> partitions = new HashMap<>();
+
+    /**
+     * Record that processing of a record has started.
+     *
+     * @param partition the partition of the record.
+     * @param offset    the offset of the record.
+     * @param ack       the acknowledgment of the record.
+     * @return the record to complete once it has been processed. It replaces any record started before at the offset.
+     */
+    synchronized Record start(TopicPartition partition, long offset, Acknowledgment ack) {
+        final Record record = new Record(partition, offset, ack);
+        partitions.computeIfAbsent(partition, p -> new TreeMap<>()).put(offset, record);
+        return record;
+    }
+
+    /**
+     * Record that processing of a record has completed.
+     *
+     * @param record the record returned when processing started.
+     * @return the acknowledgment of the last record of the partition which has completed with every record before it,
+     * which commits all of them, or null if there is nothing new to commit - including if the record has been revoked
+     * or replaced since it was started.
+     */
+    synchronized Acknowledgment complete(Record record) {
+        final TreeMap<Long, Record> records = partitions.get(record.partition);
+        if (records == null || records.get(record.offset) != record) {
+            return null;
+        }
+        record.completed = true;
+
+        Acknowledgment committable = null;
+        while (!records.isEmpty() && records.firstEntry().getValue().completed) {
+            committable = records.pollFirstEntry().getValue().ack;
+        }
+        if (records.isEmpty()) {
+            partitions.remove(record.partition);
+        }
+        return committable;
+    }
+
+    /**
+     * Forget the records of partitions which have been revoked from the consumer, so they are not committed when they
+     * complete. Another consumer will process them again.
+     */
+    synchronized void revoke(Collection<TopicPartition> revoked) {
+        revoked.forEach(partitions::remove);
+    }
+
+    /**
+     * @return the number of records being processed, or completed and waiting for an earlier record.
+     */
+    synchronized int size() {
+        return partitions.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * A record being processed, or completed and waiting for an earlier record. Guarded by the tracker.
+     */
+    static class Record {
+
+        private final TopicPartition partition;
+        private final long offset;
+        private final Acknowledgment ack;
+        private boolean completed;
+
+        private Record(TopicPartition partition, long offset, Acknowledgment ack) {
+            this.partition = partition;
+            this.offset = offset;
+            this.ack = ack;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package dp.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static dp.logging.LogEvent.error;
+import static dp.logging.LogEvent.info;
+
+/**
+ * An {@link OutputStream} which uploads everything written to it to S3 without holding the whole object in memory.
+ * <p>
+ * Written bytes are collected into fixed size parts. Once the first part is full a multipart upload is started and
+ * each full part is uploaded on the provided executor, so at most {@code maxPartsInFlight + 1} part buffers are ever
+ * held regardless of the size of the object. Content which fits in a single part is sent with a plain PUT when the
+ * stream is closed.
+ * <p>
+ * Closing the stream completes the upload. If anything fails, or the caller calls {@link #abort()}, the multipart
+ * upload is aborted so S3 does not keep the orphaned parts.
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+
+    /**
+     * S3 rejects multipart uploads where any part other than the last is smaller than 5MB
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final int maxBuffers;
+    private final ExecutorService executor;
+
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private int allocatedBuffers;
+    private byte[] buffer;
+    private int position;
+    private long contentLength;
+    private String uploadId;
+    private boolean closed;
+
+    /**
+     * Create a new stream which will upload to the given location.
+     *
+     * @param s3Client         the client used to upload to S3.
+     * @param bucket           the bucket to upload to.
+     * @param key              the key of the uploaded object.
+     * @param partSize         the size of each uploaded part, at least {@link #MIN_PART_SIZE}.
+     * @param maxPartsInFlight the maximum number of parts being uploaded concurrently.
+     * @param executor         the executor the parts are uploaded on.
+     */
+    public MultipartUploadOutputStream(AmazonS3 s3Client, String bucket, String key, int partSize,
+                                       int maxPartsInFlight, ExecutorService executor) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("part size must be at least " + MIN_PART_SIZE + " bytes");
+        }
+        if (maxPartsInFlight < 1) {
+            throw new IllegalArgumentException("at least one part must be allowed in flight");
+        }
+
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.maxBuffers = maxPartsInFlight + 1;
+        this.executor = executor;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (buffer == null || position == buffer.length) {
+            nextBuffer();
+        }
+        buffer[position++] = (byte) b;
+        contentLength++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (buffer == null || position == buffer.length) {
+                nextBuffer();
+            }
+            final int count = Math.min(length, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            contentLength += count;
+        }
+    }
+
+    /**
+     * Upload any remaining bytes and complete the upload. If the upload fails it is aborted before the exception is
+     * rethrown.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (uploadId == null) {
+                putSinglePart();
+            } else {
+                if (position > 0) {
+                    submitPart(true);
+                }
+                completeMultipartUpload();
+            }
+            closed = true;
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Abandon the upload - any parts already sent to S3 are discarded. Calling abort on a closed stream has no effect.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+
+        if (uploadId != null) {
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                info().bucket(bucket).fileName(key).log("aborted multipart upload");
+            } catch (SdkClientException e) {
+                error().bucket(bucket).fileName(key).logException(e, "error while attempting to abort multipart upload");
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the stream so far.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+    }
+
+    /**
+     * Hand the current buffer over for upload (if there is one) and make a free buffer current, blocking while the
+     * maximum number of parts are in flight.
+     */
+    private void nextBuffer() throws IOException {
+        if (buffer != null) {
+            try {
+                if (uploadId == null) {
+                    uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key))
+                            .getUploadId();
+                    info().bucket(bucket).fileName(key).log("started multipart upload");
+                }
+                submitPart(false);
+                checkCompletedParts();
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        byte[] next = freeBuffers.poll();
+        if (next == null && allocatedBuffers < maxBuffers) {
+            allocatedBuffers++;
+            next = new byte[partSize];
+        }
+        if (next == null) {
+            try {
+                next = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a part upload to complete");
+            }
+        }
+
+        buffer = next;
+        position = 0;
+    }
+
+    private void submitPart(boolean lastPart) {
+        final byte[] data = buffer;
+        final int length = position;
+        final int partNumber = parts.size() + 1;
+
+        buffer = null;
+        position = 0;
+
+        parts.add(executor.submit(() -> {
+            try {
+                final UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(new ByteArrayInputStream(data, 0, length))
+                        .withLastPart(lastPart);
+                return s3Client.uploadPart(request).getPartETag();
+            } finally {
+                freeBuffers.offer(data);
+            }
+        }));
+    }
+
+    /**
+     * Fail early if a part that has already finished uploading failed, rather than waiting until close.
+     */
+    private void checkCompletedParts() throws IOException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                getPartETag(part);
+            }
+        }
+    }
+
+    private void putSinglePart() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(position);
+
+        final byte[] data = buffer != null ? buffer : new byte[0];
+        s3Client.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(data, 0, position), metadata));
+    }
+
+    private void completeMultipartUpload() throws IOException {
+        final List<PartETag> partETags = new ArrayList<>(parts.size());
+        for (Future<PartETag> part : parts) {
+            partETags.add(getPartETag(part));
+        }
+
+        s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+        info().bucket(bucket).fileName(key).data("parts", partETags.size()).log("completed multipart upload");
+    }
+
+    private PartETag getPartETag(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a part upload to complete");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SdkClientException) {
+                throw (SdkClientException) e.getCause();
+            }
+            throw new IOException("error while uploading part to s3", e.getCause());
+        }
+    }
+}
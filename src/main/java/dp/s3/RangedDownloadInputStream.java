@@ -0,0 +1,292 @@
+package dp.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static dp.logging.LogEvent.info;
+import static dp.logging.LogEvent.warn;
+
+/**
+ * An {@link InputStream} over an S3 object which is downloaded as several byte ranges at once, so reading a large
+ * object is not bounded by the throughput of a single connection.
+ * <p>
+ * The first part is requested with a ranged GET, which also gives the size of the object. Content which fits in that
+ * part is returned as is. Otherwise every other part is requested on the provided executor and written to its place
+ * in a spool file on disk, and the stream reads from the spool in order, only blocking when it reaches a part which is
+ * still being downloaded. The parts after the first must match the ETag of the first, so an object replaced part way
+ * through a download fails the read rather than mixing the content of both.
+ * <p>
+ * Closing the stream cancels any parts still being downloaded and deletes the spool.
+ */
+public class RangedDownloadInputStream extends InputStream {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final long length;
+    private final int partSize;
+
+    private final Path spool;
+    private final FileChannel channel;
+    private final Future<?>[] parts;
+
+    private final byte[] single = new byte[1];
+    private long position;
+    private boolean closed;
+
+    /**
+     * Open a stream over an S3 object, starting the download of every part.
+     *
+     * @param s3Client the client used to download from S3.
+     * @param bucket   the bucket of the object.
+     * @param key      the key of the object.
+     * @param partSize the size of each downloaded range.
+     * @param executor the executor the parts are downloaded on.
+     * @return the content of the object.
+     */
+    public static InputStream open(AmazonS3 s3Client, String bucket, String key, int partSize,
+                                   ExecutorService executor) throws IOException {
+        return open(s3Client, bucket, key, getFirstPart(s3Client, bucket, key, partSize), partSize, executor);
+    }
+
+    /**
+     * Request the first part of an S3 object, whose metadata - the ETag and size of the whole object - is known
+     * before any other part is requested.
+     *
+     * @param s3Client the client used to download from S3.
+     * @param bucket   the bucket of the object.
+     * @param key      the key of the object.
+     * @param partSize the size of each downloaded range.
+     * @return the first part of the object, or null if the object is empty.
+     */
+    public static S3Object getFirstPart(AmazonS3 s3Client, String bucket, String key, int partSize) {
+        if (partSize < 1) {
+            throw new IllegalArgumentException("part size must be at least 1 byte");
+        }
+
+        try {
+            return s3Client.getObject(new GetObjectRequest(bucket, key).withRange(0, partSize - 1));
+        } catch (AmazonS3Exception e) {
+            // S3 rejects a range over an empty object
+            if (e.getStatusCode() == 416) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Open a stream over an S3 object whose first part has been requested, starting the download of every other part.
+     *
+     * @param first the first part of the object from {@link #getFirstPart}, or null if the object is empty.
+     * @return the content of the object.
+     */
+    public static InputStream open(AmazonS3 s3Client, String bucket, String key, S3Object first, int partSize,
+                                   ExecutorService executor) throws IOException {
+        if (first == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        final long length = first.getObjectMetadata().getInstanceLength();
+        if (length <= partSize) {
+            return first.getObjectContent();
+        }
+
+        return new RangedDownloadInputStream(s3Client, bucket, key, first, length, partSize, executor);
+    }
+
+    private RangedDownloadInputStream(AmazonS3 s3Client, String bucket, String key, S3Object first, long length,
+                                      int partSize, ExecutorService executor) throws IOException {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = first.getObjectMetadata().getETag();
+        this.length = length;
+        this.partSize = partSize;
+        this.parts = new Future<?>[(int) ((length + partSize - 1) / partSize)];
+
+        try {
+            this.spool = Files.createTempFile("s3-download-", ".part");
+            this.channel = FileChannel.open(spool, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            first.getObjectContent().abort();
+            throw e;
+        }
+
+        info().bucket(bucket).fileName(key).data("size", length).data("parts", parts.length)
+                .log("started ranged download");
+
+        parts[0] = executor.submit(() -> copy(0, first.getObjectContent()));
+        for (int i = 1; i < parts.length; i++) {
+            final int part = i;
+            parts[i] = executor.submit(() -> download(part));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= this.length) {
+            return -1;
+        }
+
+        final int part = (int) (position / partSize);
+        awaitPart(part);
+
+        final long partEnd = Math.min((long) (part + 1) * partSize, this.length);
+        final int count = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, partEnd - position)),
+                position);
+        if (count < 0) {
+            throw new EOFException("spool of s3 object is shorter than the object");
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        final long skipped = Math.max(0, Math.min(n, length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    /**
+     * Wait for every part to be downloaded.
+     *
+     * @return the spool file holding the whole object, which is deleted when the stream is closed.
+     */
+    public Path await() throws IOException {
+        ensureOpen();
+        for (int i = 0; i < parts.length; i++) {
+            awaitPart(i);
+        }
+        return spool;
+    }
+
+    /**
+     * @return the size of the object in bytes.
+     */
+    public long getContentLength() {
+        return length;
+    }
+
+    /**
+     * Cancel any parts still being downloaded and delete the spool.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Future<?> part : parts) {
+            part.cancel(true);
+        }
+
+        try {
+            channel.close();
+            Files.deleteIfExists(spool);
+        } catch (IOException e) {
+            warn().bucket(bucket).fileName(spool.toString()).logException(e, "failed to delete spooled s3 download");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+    }
+
+    private void awaitPart(int part) throws IOException {
+        try {
+            parts[part].get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a part download to complete");
+        } catch (CancellationException e) {
+            throw new IOException("download of part " + (part + 1) + " was cancelled", e);
+        } catch (ExecutionException e) {
+            throw new IOException("error while downloading part " + (part + 1) + " of s3 object " + key,
+                    e.getCause());
+        }
+    }
+
+    private Void download(int part) throws IOException {
+        final long start = (long) part * partSize;
+        final long end = Math.min(start + partSize, length) - 1;
+
+        final GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, end);
+        if (eTag != null) {
+            request.withMatchingETagConstraint(eTag);
+        }
+
+        // the client returns null rather than the object when the constraint is not met
+        final S3Object object = s3Client.getObject(request);
+        if (object == null) {
+            throw new IOException("s3 object " + key + " changed while it was being downloaded");
+        }
+        return copy(part, object.getObjectContent());
+    }
+
+    private Void copy(int part, S3ObjectInputStream content) throws IOException {
+        final long end = Math.min((long) (part + 1) * partSize, length);
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+        long position = (long) part * partSize;
+        try {
+            while (position < end) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("download of part " + (part + 1) + " was interrupted");
+                }
+
+                final int read = content.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (read < 0) {
+                    throw new EOFException("part " + (part + 1) + " of s3 object " + key + " ended early");
+                }
+
+                final ByteBuffer source = ByteBuffer.wrap(buffer, 0, read);
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            content.abort();
+            throw e;
+        }
+
+        content.close();
+        return null;
+    }
+}
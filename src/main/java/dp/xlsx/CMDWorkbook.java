@@ -1,9 +1,26 @@
 package dp.xlsx;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 import static dp.logging.LogEvent.info;
 
@@ -11,9 +28,34 @@ import static dp.logging.LogEvent.info;
  * CMDWorkbook provides a wrapper around {@link SXSSFWorkbook} - calling {@link CMDWorkbook#close()} first invokes
  * {@link SXSSFWorkbook#dispose()} this enables you to use it in a try-with-resources and have the workbook
  * automatically closed.
+ * <p>
+ * A sheet can also be captured as it is written, with {@link #captureSheet}, and written into another workbook in
+ * place of an empty sheet, with {@link #reuseSheet}, so a sheet which is the same in many workbooks is only rendered
+ * once.
+ * <p>
+ * The content of a sheet can also be written straight into the package as the workbook is written, with
+ * {@link #streamSheet}, rather than through a temporary file.
+ * <p>
+ * The package is deflated at the level set by {@link #setCompressionLevel}, and a large sheet can be deflated in blocks
+ * on several threads at once, with {@link #deflateInParallel}.
  */
 public class CMDWorkbook extends SXSSFWorkbook {
 
+    private final Map<String, RenderedSheet> reusedSheets = new HashMap<>();
+    private final Map<String, Consumer<RenderedSheet>> capturedSheets = new HashMap<>();
+    private final Map<String, PartContent> streamedSheets = new HashMap<>();
+    private final Set<String> parallelSheets = new HashSet<>();
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int deflateParallelism;
+    private ExecutorService deflateExecutor;
+
+    // closed once the workbook is closed, in the reverse of the order they were added
+    private final List<Closeable> resources = new ArrayList<>();
+
+    // the parts of captured sheets, as they were last written
+    private final Map<String, byte[]> capturedParts = new HashMap<>();
+
     public CMDWorkbook() {
         super();
     }
@@ -38,13 +80,308 @@ public class CMDWorkbook extends SXSSFWorkbook {
         super(rowAccessWindowSize);
     }
 
+    /**
+     * Write a sheet captured from another workbook in place of the content of a sheet of this one. The sheet should
+     * be left empty, and this workbook must create the same cell styles in the same order as the workbook the sheet
+     * was captured from.
+     */
+    void reuseSheet(Sheet sheet, RenderedSheet rendered) {
+        reusedSheets.put(getPartName(sheet), rendered);
+    }
+
+    /**
+     * Write the content of a sheet straight into the package each time the workbook is written, in place of the
+     * content of a sheet of this one, which should be left empty.
+     */
+    void streamSheet(Sheet sheet, PartContent content) {
+        streamedSheets.put(getPartName(sheet), content);
+    }
+
+    /**
+     * Deflate a sheet in blocks on several threads at once each time the workbook is written - see
+     * {@link ParallelDeflaterOutputStream}. The compressed sheet is held in memory until it is written into the
+     * package.
+     *
+     * @param parallelism the number of blocks compressed at once.
+     * @param executor    the threads blocks are compressed on.
+     */
+    void deflateInParallel(Sheet sheet, int parallelism, ExecutorService executor) {
+        parallelSheets.add(getPartName(sheet));
+        deflateParallelism = parallelism;
+        deflateExecutor = executor;
+    }
+
+    /**
+     * Set the level the package is deflated at, trading the size of the workbook against the time taken to write it.
+     *
+     * @param level from 0, stored without compression, to 9, the smallest, or -1 for the default, which is 6.
+     */
+    public void setCompressionLevel(int level) {
+        if (!isCompressionLevel(level)) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        compressionLevel = level;
+    }
+
+    /**
+     * @return true if a level is one the package can be deflated at - see {@link #setCompressionLevel}.
+     */
+    public static boolean isCompressionLevel(int level) {
+        return level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+    }
+
+    /**
+     * Close a resource, such as one the content of a streamed sheet is read from, once the workbook is closed.
+     * Resources are closed in the reverse of the order they were added.
+     */
+    void addResource(Closeable resource) {
+        resources.add(resource);
+    }
+
+    /**
+     * Pass a sheet, as it was written, to a consumer each time the workbook is written.
+     */
+    void captureSheet(Sheet sheet, Consumer<RenderedSheet> consumer) {
+        capturedSheets.put(getPartName(sheet), consumer);
+    }
+
+    @Override
+    public void write(OutputStream stream) throws IOException {
+        super.write(stream);
+        passCapturedSheets();
+    }
+
+    @Override
+    public void writeAvoidingTempFiles(OutputStream stream) throws IOException {
+        super.writeAvoidingTempFiles(stream);
+        passCapturedSheets();
+    }
+
+    @Override
+    protected ZipArchiveOutputStream createArchiveOutputStream(OutputStream out) {
+        capturedParts.clear();
+        final ZipArchiveOutputStream zos = super.createArchiveOutputStream(out);
+        zos.setLevel(compressionLevel);
+        if (reusedSheets.isEmpty() && capturedSheets.isEmpty() && streamedSheets.isEmpty() && parallelSheets.isEmpty()) {
+            return zos;
+        }
+
+        final Map<String, PartContent> replaced = new LinkedHashMap<>(streamedSheets);
+        reusedSheets.forEach((part, rendered) -> {
+            replaced.put(part, entry -> entry.write(rendered.getSheet()));
+            if (rendered.getRelationships() != null) {
+                replaced.put(getRelationshipsName(part), entry -> entry.write(rendered.getRelationships()));
+            }
+        });
+
+        final Set<String> captured = new HashSet<>();
+        capturedSheets.keySet().forEach(part -> {
+            captured.add(part);
+            captured.add(getRelationshipsName(part));
+        });
+
+        final int level = compressionLevel;
+        return new SplicingOutputStream(zos, replaced, captured, capturedParts, new HashSet<>(parallelSheets),
+                () -> new ParallelDeflaterOutputStream(level, ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE,
+                        deflateParallelism, deflateExecutor));
+    }
+
     @Override
     public void close() throws IOException {
         if (super.dispose()) {
             info().log(this.getClass().getSimpleName() + ".dispose completed successfully");
         }
         info().log("attempting to close CMDWorkbook");
-        super.close();
+        try {
+            super.close();
+        } finally {
+            closeResources();
+        }
         info().log("CMDWorkbook closed successfully");
     }
+
+    private void closeResources() throws IOException {
+        IOException failure = null;
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            try {
+                resources.get(i).close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        resources.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void passCapturedSheets() {
+        capturedSheets.forEach((part, consumer) -> {
+            if (capturedParts.containsKey(part)) {
+                consumer.accept(new RenderedSheet(capturedParts.get(part),
+                        capturedParts.get(getRelationshipsName(part))));
+            }
+        });
+    }
+
+    /**
+     * @return the name of the zip entry holding a sheet.
+     */
+    private String getPartName(Sheet sheet) {
+        return _wb.getSheet(sheet.getSheetName()).getPackagePart().getPartName().getName().substring(1);
+    }
+
+    /**
+     * @return the name of the zip entry holding the relationships of a part.
+     */
+    private static String getRelationshipsName(String part) {
+        final int slash = part.lastIndexOf('/');
+        return part.substring(0, slash + 1) + "_rels/" + part.substring(slash + 1) + ".rels";
+    }
+
+    /**
+     * The content of a part of the package, written to the stream of its zip entry, which must not be closed.
+     */
+    @FunctionalInterface
+    interface PartContent {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A zip stream which writes given content in place of some entries, adding any which are not written at all, and
+     * keeps a copy of the content written to others. Some entries are deflated in parallel, and added to the package
+     * raw once they are complete. Everything is written through the stream the workbook would
+     * otherwise have written to, as that depends on its zip64 mode.
+     */
+    private static class SplicingOutputStream extends ZipArchiveOutputStream {
+
+        private final ZipArchiveOutputStream zos;
+        private final Map<String, PartContent> replaced;
+        private final Set<String> captured;
+        private final Map<String, byte[]> capturedParts;
+        private final Set<String> parallel;
+        private final Supplier<ParallelDeflaterOutputStream> deflaters;
+
+        private boolean discarding;
+        private String capturedName;
+        private ByteArrayOutputStream capturedContent;
+        private ZipArchiveEntry deflatedEntry;
+        private ParallelDeflaterOutputStream deflated;
+
+        private SplicingOutputStream(ZipArchiveOutputStream zos, Map<String, PartContent> replaced, Set<String> captured,
+                                     Map<String, byte[]> capturedParts, Set<String> parallel,
+                                     Supplier<ParallelDeflaterOutputStream> deflaters) {
+            super(OutputStream.nullOutputStream());
+            this.zos = zos;
+            this.replaced = replaced;
+            this.captured = captured;
+            this.capturedParts = capturedParts;
+            this.parallel = parallel;
+            this.deflaters = deflaters;
+        }
+
+        @Override
+        public void putArchiveEntry(ZipArchiveEntry entry) throws IOException {
+            if (parallel.contains(entry.getName())) {
+                deflatedEntry = entry;
+                deflated = deflaters.get();
+            } else {
+                zos.putArchiveEntry(entry);
+            }
+
+            final PartContent content = replaced.remove(entry.getName());
+            if (content != null) {
+                content.writeTo(getEntryStream());
+                discarding = true;
+            } else if (captured.contains(entry.getName())) {
+                capturedName = entry.getName();
+                capturedContent = new ByteArrayOutputStream();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (discarding) {
+                return;
+            }
+            if (capturedContent != null) {
+                capturedContent.write(bytes, offset, length);
+            }
+            getEntryStream().write(bytes, offset, length);
+        }
+
+        @Override
+        public void closeArchiveEntry() throws IOException {
+            if (deflated != null) {
+                addDeflatedEntry();
+            } else {
+                zos.closeArchiveEntry();
+            }
+
+            if (capturedContent != null) {
+                capturedParts.put(capturedName, capturedContent.toByteArray());
+            }
+            discarding = false;
+            capturedName = null;
+            capturedContent = null;
+        }
+
+        private OutputStream getEntryStream() {
+            return deflated != null ? deflated : zos;
+        }
+
+        private void addDeflatedEntry() throws IOException {
+            try (ParallelDeflaterOutputStream entry = deflated) {
+                entry.finish();
+                deflatedEntry.setMethod(ZipArchiveEntry.DEFLATED);
+                deflatedEntry.setCrc(entry.getCrc());
+                deflatedEntry.setSize(entry.getSize());
+                deflatedEntry.setCompressedSize(entry.getCompressedSize());
+                zos.addRawArchiveEntry(deflatedEntry, entry.getCompressed());
+            } finally {
+                deflated = null;
+                deflatedEntry = null;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            // a reused sheet with hyperlinks replaces an empty sheet, which has no relationships to write over
+            for (Map.Entry<String, PartContent> remaining : replaced.entrySet()) {
+                zos.putArchiveEntry(new ZipArchiveEntry(remaining.getKey()));
+                remaining.getValue().writeTo(zos);
+                zos.closeArchiveEntry();
+            }
+            replaced.clear();
+            zos.finish();
+        }
+
+        @Override
+        public void setLevel(int level) {
+            zos.setLevel(level);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            zos.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflated != null) {
+                deflated.close();
+            }
+            zos.close();
+        }
+    }
 }
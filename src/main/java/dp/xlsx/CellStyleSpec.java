@@ -0,0 +1,27 @@
+package dp.xlsx;
+
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.IndexedColors;
+
+/**
+ * An immutable description of a cell style. Equal specs describe the same style, so a workbook holds one style for
+ * them - see {@link WorkBookStyles}.
+ *
+ * @param font       the font of the style.
+ * @param wrapText   whether text wraps within the cell.
+ * @param alignment  the horizontal alignment of the cell.
+ * @param dataFormat the format numbers are shown in, or null for the general format.
+ */
+record CellStyleSpec(FontSpec font, boolean wrapText, HorizontalAlignment alignment, String dataFormat) {
+
+    /**
+     * An immutable description of a font, shared by the styles with equal fonts.
+     *
+     * @param name      the name of the font.
+     * @param bold      whether the font is bold.
+     * @param underline whether the font is underlined.
+     * @param color     the colour of the font, or null for the automatic colour.
+     */
+    record FontSpec(String name, boolean bold, boolean underline, IndexedColors color) {
+    }
+}
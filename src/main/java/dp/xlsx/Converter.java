@@ -1,16 +1,23 @@
 package dp.xlsx;
 
 import dp.api.dataset.models.Metadata;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.usermodel.IndexedColors;
+import dp.s3.RangedDownloadInputStream;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.VerticalAlignment;
-import org.apache.poi.ss.usermodel.Workbook;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static dp.logging.LogEvent.info;
 
@@ -25,6 +32,85 @@ public class Converter {
      **/
     private static final int MAX_IN_MEMORY_ROWS = 50;
 
+    /**
+     * The number of characters read from the V4 file at a time
+     **/
+    @Value("${V4_INPUT_BUFFER_SIZE:1048576}")
+    private int inputBufferSize = V4File.DEFAULT_INPUT_BUFFER_SIZE;
+
+    /**
+     * The heap in bytes a V4 file may use before it is spilled to disk
+     **/
+    @Value("${V4_HEAP_BUDGET:268435456}")
+    private long heapBudget = V4File.DEFAULT_HEAP_BUDGET;
+
+    /**
+     * Whether to copy the V4 file to disk so a file already in display order can be streamed into the XLSX
+     **/
+    @Value("${V4_STREAMING_PIVOT:true}")
+    private boolean streamingPivot = true;
+
+    /**
+     * The number of chunks of V4 files copied to disk which are parsed at once, 0 to use every available processor.
+     * The chunks of every file being converted are parsed on a single pool of this many threads
+     **/
+    @Value("${V4_PARSE_PARALLELISM:0}")
+    private int parseParallelism;
+
+    /**
+     * The bytes of rendered metadata sheets held for reuse by later workbooks with the same metadata, 0 to not reuse
+     **/
+    @Value("${XLSX_METADATA_CACHE_SIZE:16777216}")
+    private long metadataCacheSize = 16777216;
+
+    /**
+     * Whether the data sheet is written straight into the XLSX as the XLSX is written, rather than through POI's
+     * temporary files
+     **/
+    @Value("${XLSX_DIRECT_WRITER:true}")
+    private boolean directWriter = true;
+
+    /**
+     * The number of blocks of the data sheet deflated at once, 1 to deflate it with the rest of the XLSX on a single
+     * thread. The deflated data sheet is held in memory until it is written into the XLSX
+     **/
+    @Value("${XLSX_DEFLATE_PARALLELISM:1}")
+    private int deflateParallelism = 1;
+
+    /**
+     * The most rows of a V4 file whose data sheet is deflated in parallel. A larger sheet is deflated on a single thread,
+     * so the deflated sheet held in memory is bounded however large the V4 file is
+     **/
+    @Value("${XLSX_DEFLATE_MAX_ROWS:1000000}")
+    private long deflateMaxRows = 1000000;
+
+    private MetadataSheetCache metadataSheets;
+
+    private ExecutorService deflateExecutor;
+
+    private ExecutorService parseExecutor;
+
+    @PostConstruct
+    void start() {
+        metadataSheets = new MetadataSheetCache(metadataCacheSize, Metrics.globalRegistry);
+        if (getParseParallelism() > 1) {
+            parseExecutor = Executors.newFixedThreadPool(getParseParallelism());
+        }
+        if (deflateParallelism > 1) {
+            deflateExecutor = Executors.newFixedThreadPool(deflateParallelism);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (parseExecutor != null) {
+            parseExecutor.shutdownNow();
+        }
+        if (deflateExecutor != null) {
+            deflateExecutor.shutdownNow();
+        }
+    }
+
     /**
      * Convert a V4 file to a XLSX file
      *
@@ -32,79 +118,125 @@ public class Converter {
      * @return The converted V4 as XLSX file
      * @throws IOException Failed to convert the V4 file to XLSX
      */
-    public Workbook toXLSX(final InputStream stream, Metadata datasetMetadata) throws IOException {
+    public CMDWorkbook toXLSX(final InputStream stream, Metadata datasetMetadata) throws IOException {
         info().log("beginning xlsx file generation");
-        final Workbook workbook = new CMDWorkbook(MAX_IN_MEMORY_ROWS);
-        final CellStyle headingStyle = createBoldStyle(workbook);
-        final CellStyle valueStyle = createStyle(workbook);
-        final CellStyle linkStyle = createLinkStyle(workbook);
+        final CMDWorkbook workbook = new CMDWorkbook(MAX_IN_MEMORY_ROWS);
+        try {
+            return toXLSX(workbook, stream, datasetMetadata);
+        } catch (IOException | RuntimeException e) {
+            workbook.close();
+            throw e;
+        }
+    }
 
-        info().log("creating local copy of data from stream");
-        final V4File v4File = new V4File(stream, datasetMetadata);
+    private CMDWorkbook toXLSX(CMDWorkbook workbook, InputStream stream, Metadata datasetMetadata) throws IOException {
+        final WorkBookStyles workBookStyles = new WorkBookStyles(workbook);
+
+        // a ranged download is already spooled to disk as its parts arrive, and owns its spool
+        final RangedDownloadInputStream download = stream instanceof RangedDownloadInputStream ranged ? ranged : null;
+        final Path spool = streamingPivot && download == null ? spool(stream) : null;
+        final Closeable deleteSpool = () -> {
+            if (spool != null) {
+                Files.deleteIfExists(spool);
+            }
+        };
+
+        final V4File v4File;
+        try {
+            if (download != null) {
+                info().log("reading data from download as it arrives");
+                v4File = V4File.open(download, download::await, datasetMetadata, inputBufferSize, heapBudget,
+                        getParseParallelism(), parseExecutor);
+            } else if (spool != null) {
+                v4File = V4File.open(spool, datasetMetadata, inputBufferSize, heapBudget, getParseParallelism(),
+                        parseExecutor);
+            } else {
+                v4File = new V4File(stream, datasetMetadata, inputBufferSize, heapBudget);
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteSpool.close();
+            throw e;
+        }
 
         info().log("creating data sheet");
         final Sheet datasetSheet = workbook.createSheet("Dataset");
-        final WorkBookStyles workBookStyles = new WorkBookStyles(workbook);
-        final DatasetFormatter datasetFormatter = new DatasetFormatter(
-                workBookStyles,
-                datasetSheet,
-                v4File,
-                datasetMetadata);
-
-        info().log("formatting data sheet");
-        datasetFormatter.format();
+        if (deflateExecutor != null && v4File.getRowCount() <= deflateMaxRows) {
+            workbook.deflateInParallel(datasetSheet, deflateParallelism, deflateExecutor);
+        } else if (deflateExecutor != null) {
+            info().data("rows", v4File.getRowCount()).log("v4 file too large to deflate in parallel");
+        }
+
+        if (directWriter) {
+            // the data sheet is formatted as the workbook is written, so the file is only closed once the workbook is.
+            // Groups streamed from the spool still need it, so it is deleted after the file is closed.
+            if (v4File.isStreamed()) {
+                workbook.addResource(deleteSpool);
+            } else {
+                deleteSpool.close();
+            }
+            workbook.addResource(v4File);
+            workbook.streamSheet(datasetSheet, out -> {
+                info().log("formatting data sheet");
+                try {
+                    new DatasetFormatter(workBookStyles, new XmlSheetWriter(out, true), v4File, datasetMetadata)
+                            .format();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            });
+        } else {
+            try (deleteSpool; v4File) {
+                final DatasetFormatter datasetFormatter = new DatasetFormatter(
+                        workBookStyles,
+                        datasetSheet,
+                        v4File,
+                        datasetMetadata);
+
+                info().log("formatting data sheet");
+                datasetFormatter.format();
+            }
+        }
 
         info().log("creating metadata sheet");
         final Sheet metadataSheet = workbook.createSheet("Metadata");
+
+        final String metadataKey = metadataCacheSize > 0 ? MetadataSheetCache.keyOf(datasetMetadata) : null;
+        final RenderedSheet rendered = metadataKey != null ? metadataSheets.get(metadataKey) : null;
+        if (rendered != null) {
+            info().log("reusing metadata sheet rendered for an earlier workbook");
+            workbook.reuseSheet(metadataSheet, rendered);
+            return workbook;
+        }
+
         info().log("adding metadata sheet to workbook");
         final MetadataFormatter metadataFormatter = new MetadataFormatter(
                 metadataSheet,
                 datasetMetadata,
-                headingStyle,
-                valueStyle,
-                linkStyle);
+                workBookStyles);
 
         info().log("formatting metadata");
         metadataFormatter.format();
         info().log("formatting metadata completed");
 
+        if (metadataKey != null) {
+            workbook.captureSheet(metadataSheet, sheet -> metadataSheets.put(metadataKey, sheet));
+        }
         return workbook;
     }
 
-    private CellStyle createStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial");
-        font.setFontHeightInPoints((short) 14);
-        style.setFont(font);
-        style.setWrapText(true);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-        return style;
-    }
-
-    private CellStyle createLinkStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial-Link");
-        font.setFontHeightInPoints((short) 14);
-        font.setUnderline(Font.U_SINGLE);
-        font.setColor(IndexedColors.BLUE.getIndex());
-        style.setFont(font);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-
-        return style;
+    private int getParseParallelism() {
+        return parseParallelism > 0 ? parseParallelism : Runtime.getRuntime().availableProcessors();
     }
 
-    private CellStyle createBoldStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial-Bold");
-        font.setBold(true);
-        font.setFontHeightInPoints((short) 14);
-        style.setFont(font);
-        style.setWrapText(false);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-        return style;
+    private Path spool(InputStream stream) throws IOException {
+        info().log("creating local copy of data from stream");
+        final Path spool = Files.createTempFile("v4-", ".csv");
+        try {
+            Files.copy(stream, spool, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+        return spool;
     }
-
 }
@@ -2,8 +2,7 @@ package dp.xlsx;
 
 import dp.api.dataset.models.Metadata;
 import dp.api.dataset.models.UsageNotes;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.springframework.util.StringUtils;
 
@@ -11,11 +10,14 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * A class used to format a V4 file into a two dimensional structure for a
  * xlsx file.
+ * <p>
+ * The sheet is written through a {@link SheetWriter}. The column widths are set before any row is written, from the
+ * longest dimension options and observations found as the V4 file was read, so the rows are only written once and
+ * nothing is measured as they are.
  */
 class DatasetFormatter {
 
@@ -23,18 +25,21 @@ class DatasetFormatter {
     private final int DIMENSION_WIDTH_PADDING_CHARS = 5;
     private final int EXCEL_CHARS_TO_WIDTH_FACTOR = 275;
 
+    private static final String TITLE_LABEL = "Title";
+
     private final WorkBookStyles workBookStyles;
 
-    private final Sheet sheet;
+    private final SheetWriter sheet;
     private final V4File file;
     private final Metadata datasetMetadata;
 
-    // Maintain a map of column index to width. As we write rows see if the width needs to be larger.
-    private final Map<Integer, Integer> columnWidths = new HashMap<>();
-
     private int rowOffset = 0;
 
     public DatasetFormatter(WorkBookStyles workBookStyles, Sheet sheet, V4File file, Metadata datasetMetadata) {
+        this(workBookStyles, new PoiSheetWriter(sheet), file, datasetMetadata);
+    }
+
+    DatasetFormatter(WorkBookStyles workBookStyles, SheetWriter sheet, V4File file, Metadata datasetMetadata) {
 
         if (file.getDimensions() == null) {
             throw new IllegalArgumentException("dimensions in the dataset cannot be null");
@@ -48,84 +53,116 @@ class DatasetFormatter {
 
     void format() {
 
+        final Collection<String> timeLabels = file.getOrderedTimeLabels();
 
-        final Collection<Group> groups = file.groupData();
+        // look up the observations of each group by time label id rather than by label
+        final StringDictionary timeLabelIds = file.getObservations().getTimeLabels();
+        final int[] times = timeLabels.stream().mapToInt(timeLabelIds::idOf).toArray();
 
-        final Collection<String> timeLabels = file.getOrderedTimeLabels();
+        setColumnWidths(timeLabels);
+        addRows(timeLabels, times, file.orderedGroups());
 
-        List<Group> sortedGroups = groups.stream().sorted().collect(Collectors.toList());
+        if (datasetMetadata.getUsageNotes() != null) {
+            for (UsageNotes note : datasetMetadata.getUsageNotes()) {
+                addUserNotes(note);
+            }
+        }
+        sheet.finish();
+    }
 
+    /**
+     * Write the metadata, header and group rows.
+     */
+    private void addRows(Collection<String> timeLabels, int[] times, Iterable<Group> groups) {
         addMetadata();
         addHeaderRow(timeLabels);
 
-        // start with the column width of the first time header, then later check if any observations are wider.
-        int widestDataColumn = timeLabels.iterator().next().length();
-
-        for (Group group : sortedGroups) {
+        for (Group group : groups) {
 
             int columnOffset = 0;
-            Row row = sheet.createRow(rowOffset);
+            sheet.startRow(rowOffset);
 
-            columnOffset = addDimensionOptionCells(group, columnOffset, row);
-            widestDataColumn = addObservationCells(timeLabels, widestDataColumn, group, columnOffset, row);
+            columnOffset = addDimensionOptionCells(group, columnOffset);
+            addObservationCells(times, group, columnOffset);
 
             rowOffset++;
         }
+    }
+
+    /**
+     * Set the width of each column to fit the longest value written to it: the title label, dimension names and
+     * options, and the headers of additional values. Every observation and time label column has the default width,
+     * which fits the longest observation and the first time label.
+     */
+    private void setColumnWidths(Collection<String> timeLabels) {
+        final Map<Integer, Integer> lengths = new HashMap<>();
+        lengths.put(0, TITLE_LABEL.length());
 
-        sheet.setDefaultColumnWidth(widestDataColumn + COLUMN_WIDTH_PADDING_CHARS);
+        int columnOffset = 0;
+        final List<DimensionData> dimensions = file.getDimensions();
+        for (int i = 0; i < dimensions.size(); i++) {
+            final String dimensionName = StringUtils.capitalize(dimensions.get(i).getValue());
+            lengths.merge(columnOffset, Math.max(dimensionName.length(), file.getWidestOption(i)), Math::max);
+            columnOffset++;
 
-        for (Map.Entry<Integer, Integer> columnWidth : columnWidths.entrySet()) {
-            sheet.setColumnWidth(columnWidth.getKey(),
-                    (columnWidth.getValue() + DIMENSION_WIDTH_PADDING_CHARS) * EXCEL_CHARS_TO_WIDTH_FACTOR);
+            if (dimensions.get(i).getDimensionType().equals(DimensionType.GEOGRAPHY)) {
+                final String header = dimensionName + " code";
+                lengths.merge(columnOffset, Math.max(header.length(), file.getWidestCode(i)), Math::max);
+                columnOffset++;
+            }
         }
 
-        if (datasetMetadata.getUsageNotes() != null) {
-            for (UsageNotes note : datasetMetadata.getUsageNotes()) {
-                addUserNotes(note);
+        for (String timeLabel : timeLabels) {
+            columnOffset++;
+            for (String additionalHeader : file.getAdditionalHeaders()) {
+                lengths.merge(columnOffset, additionalHeaderOf(additionalHeader, timeLabel).length(), Math::max);
+                columnOffset++;
             }
         }
+
+        final Map<Integer, Integer> widths = new HashMap<>();
+        lengths.forEach((column, length) ->
+                widths.put(column, (length + DIMENSION_WIDTH_PADDING_CHARS) * EXCEL_CHARS_TO_WIDTH_FACTOR));
+
+        final int widestDataColumn = Math.max(timeLabels.iterator().next().length(), file.getWidestObservation());
+        sheet.setColumnWidths(widestDataColumn + COLUMN_WIDTH_PADDING_CHARS, widths);
     }
 
-    private int addObservationCells(Collection<String> timeLabels, int widestDataColumn, Group group, int columnOffset, Row row) {
+    private void addObservationCells(int[] times, Group group, int columnOffset) {
+
+        final ObservationStore observations = group.getObservationStore();
+        final int additionalColumns = observations.getAdditionalColumnCount();
 
-        for (String timeTitle : timeLabels) {
+        for (int time : times) {
 
-            Cell obs = row.createCell(columnOffset);
-            final Observation observation = group.getObservation(timeTitle);
+            final int cell = observations.find(group.getIndex(), time);
 
-            if (observation == null) {
-                columnOffset+= this.file.getAdditionalHeaders().length + 1;
+            if (cell == ObservationStore.MISSING) {
+                sheet.blankCell(columnOffset, null);
+                columnOffset+= additionalColumns + 1;
                 continue;
             }
 
-            final String observationValue = observation.getValue();
-            setObservationCellValue(obs, observationValue);
+            setObservationCellValue(columnOffset, observations, cell);
             columnOffset++;
 
-            for (String additionalValue : observation.getAdditionalValues()) {
-                Cell data = row.createCell(columnOffset);
-                data.setCellValue(additionalValue);
-                setCellValueByType(data, additionalValue);
+            for (int column = 0; column < additionalColumns; column++) {
+                setAdditionalCellValue(columnOffset, observations, cell, column);
                 columnOffset++;
             }
-
-            if (observationValue != null && observationValue.length() > widestDataColumn)
-                widestDataColumn = observationValue.length();
         }
-
-        return widestDataColumn;
     }
 
-    private int addDimensionOptionCells(Group group, int columnOffset, Row row) {
+    private int addDimensionOptionCells(Group group, int columnOffset) {
 
         for (DimensionData dimension : group.getGroupValues()) {
 
-            addHeaderCell(columnOffset, row, dimension.getValue());
+            addHeaderCell(columnOffset, dimension.getValue());
             columnOffset++;
 
             // For geography create another column / cell for the geographic code.
             if (dimension.getDimensionType().equals(DimensionType.GEOGRAPHY)) {
-                addHeaderCell(columnOffset, row, dimension.getCode());
+                addHeaderCell(columnOffset, dimension.getCode());
                 columnOffset++;
             }
         }
@@ -133,89 +170,80 @@ class DatasetFormatter {
         return columnOffset;
     }
 
-    private void addHeaderCell(int columnOffset, Row row, String header) {
-
-        Cell cell = row.createCell(columnOffset);
-        cell.setCellStyle( workBookStyles.getValueStyle());
-        cell.setCellValue(header);
-
-        final Integer geoCodeColumnWidth = columnWidths.get(columnOffset);
-        if (geoCodeColumnWidth == null || header.length() > geoCodeColumnWidth)
-            columnWidths.put(columnOffset, header.length());
+    private void addHeaderCell(int columnOffset, String header) {
 
+        sheet.stringCell(columnOffset, workBookStyles.getValueStyle(), header);
     }
 
     private void addHeaderRow(Collection<String> timeLabels) {
 
-        Row headerRow = sheet.createRow(rowOffset);
+        sheet.startRow(rowOffset);
 
         int columnOffset = 0;
 
         for (DimensionData dimensionData : file.getDimensions()) {
 
             String dimensionName = StringUtils.capitalize(dimensionData.getValue());
-            addHeaderCell(columnOffset, headerRow, dimensionName);
+            addHeaderCell(columnOffset, dimensionName);
             columnOffset++;
 
             // For geography create another column / cell for the geographic code.
             if (dimensionData.getDimensionType().equals(DimensionType.GEOGRAPHY)) {
 
                 String header = dimensionName + " code";
-                addHeaderCell(columnOffset, headerRow, header);
+                addHeaderCell(columnOffset, header);
                 columnOffset++;
             }
         }
 
-        addTimeLabelCells(timeLabels, headerRow, columnOffset);
+        addTimeLabelCells(timeLabels, columnOffset);
 
         rowOffset++;
     }
 
-    private void addTimeLabelCells(Collection<String> timeLabels, Row headerRow, int columnOffset) {
+    private void addTimeLabelCells(Collection<String> timeLabels, int columnOffset) {
 
         final String[] additionalHeaders = file.getAdditionalHeaders();
 
         // write time labels across the title row
         for (String timeLabel : timeLabels) {
-            Cell cell = headerRow.createCell(columnOffset);
-            cell.setCellStyle(workBookStyles.getValueRightAlignStyle());
-            cell.setCellValue(timeLabel);
+            sheet.stringCell(columnOffset, workBookStyles.getValueRightAlignStyle(), timeLabel);
             columnOffset++;
 
             for (String additionalHeader : additionalHeaders) {
-                addHeaderCell(columnOffset, headerRow, additionalHeader + " (" + timeLabel + ")");
+                addHeaderCell(columnOffset, additionalHeaderOf(additionalHeader, timeLabel));
                 columnOffset++;
             }
         }
     }
 
+    private static String additionalHeaderOf(String additionalHeader, String timeLabel) {
+        return additionalHeader + " (" + timeLabel + ")";
+    }
 
-    private void setCellValueByType(Cell cell, String value) {
+    private void setAdditionalCellValue(int columnOffset, ObservationStore observations, int cell, int column) {
 
-        if (value.chars().allMatch(Character::isDigit)) {
-            cell.setCellStyle( workBookStyles.getNumberStyle());
-        } else {
-            cell.setCellStyle(workBookStyles.getValueStyle());
-        }
+        final CellStyle style = observations.isAdditionalValueDigits(cell, column)
+                ? workBookStyles.getNumberStyle()
+                : workBookStyles.getValueStyle();
+        sheet.stringCell(columnOffset, style, observations.getAdditionalValue(cell, column));
     }
 
-    private void setObservationCellValue(Cell obs, String value) {
+    private void setObservationCellValue(int columnOffset, ObservationStore observations, int cell) {
 
-        if (StringUtils.isEmpty(value)) {
-            obs.setCellValue("");
+        if (observations.isEmpty(cell)) {
+            sheet.stringCell(columnOffset, null, "");
             return;
         }
 
-        if (value.contains(".")) {
-            obs.setCellStyle( workBookStyles.getNumberStyle()); // apply decimal formatting if there is a decimal
-        } else {
-            obs.setCellStyle(workBookStyles.getValueStyle());
-        }
+        final CellStyle style = observations.hasDecimalPoint(cell)
+                ? workBookStyles.getNumberStyle() // apply decimal formatting if there is a decimal
+                : workBookStyles.getValueStyle();
 
-        try {
-            obs.setCellValue(Double.parseDouble(value));
-        } catch (NumberFormatException e) {
-            obs.setCellValue("");
+        if (observations.isNumber(cell)) {
+            sheet.numberCell(columnOffset, style, observations.getNumber(cell));
+        } else {
+            sheet.stringCell(columnOffset, style, ""); // a marker such as ".." rather than a number
         }
     }
 
@@ -224,42 +252,30 @@ class DatasetFormatter {
         int columnOffset = 0;
 
         // title row
-        Row row = sheet.createRow(rowOffset);
-        Cell cell = row.createCell(columnOffset);
-        cell.setCellStyle(workBookStyles.getHeaderRightAlignStyle());
-        final String titleLabel = "Title";
-        cell.setCellValue(titleLabel);
-
-        columnWidths.put(columnOffset, titleLabel.length());
-
-        cell = row.createCell(columnOffset + 1);
-        cell.setCellStyle(workBookStyles.getHeadingStyle());
-        cell.setCellValue(datasetMetadata.getTitle());
+        sheet.startRow(rowOffset);
+        sheet.stringCell(columnOffset, workBookStyles.getHeaderRightAlignStyle(), TITLE_LABEL);
+        sheet.stringCell(columnOffset + 1, workBookStyles.getHeadingStyle(), datasetMetadata.getTitle());
         rowOffset++;
 
         // Add a blank row at the bottom of the metadata.
-        sheet.createRow(rowOffset);
+        sheet.startRow(rowOffset);
         rowOffset++;
     }
 
 
     private void addNote(final String value) {
         rowOffset++;
-        Row row = sheet.createRow(rowOffset);
-        row.createCell(0); //Blank cell
-        Cell cell = row.createCell(1);
-        cell.setCellValue(value);
-        cell.setCellStyle(workBookStyles.getNoteStyle());
+        sheet.startRow(rowOffset);
+        sheet.blankCell(0, null); //Blank cell
+        sheet.stringCell(1, workBookStyles.getNoteStyle(), value);
     }
 
     private void addUserNotes(UsageNotes notes) {
         rowOffset++;
-        sheet.createRow(rowOffset); // Blank row
+        sheet.startRow(rowOffset); // Blank row
         rowOffset++;
-        Row row = sheet.createRow(rowOffset);
-        Cell title = row.createCell(0);
-        title.setCellStyle(workBookStyles.getHeadingStyle());
-        title.setCellValue(notes.getTitle());
+        sheet.startRow(rowOffset);
+        sheet.stringCell(0, workBookStyles.getHeadingStyle(), notes.getTitle());
         addNote(notes.getNotes());
     }
 }
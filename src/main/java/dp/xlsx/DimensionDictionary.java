@@ -0,0 +1,144 @@
+package dp.xlsx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a small int id to each distinct option of a single dimension (a code / label column pair of a V4 file) so
+ * each option is held once as a shared {@link DimensionData} however many rows it appears in.
+ */
+class DimensionDictionary {
+
+    private final DimensionType dimensionType;
+
+    private final List<DimensionData> options = new ArrayList<>();
+
+    // a code almost always has a single label, so look options up by code alone ...
+    private final Map<String, Integer> idsByCode = new HashMap<>();
+
+    // ... and only fall back to the code and label together for a code seen with more than one label.
+    private final Map<String, Integer> idsByCodeAndLabel = new HashMap<>();
+
+    // the length of the longest value and code of any option, which size the columns of the dimension
+    private int widestValue;
+    private int widestCode;
+
+    DimensionDictionary(DimensionType dimensionType) {
+        this.dimensionType = dimensionType;
+    }
+
+    /**
+     * Get the id of a dimension option, adding it to the dictionary if it has not been seen before.
+     *
+     * @param code  the code of the dimension option.
+     * @param label the label of the dimension option.
+     * @return the id of the dimension option.
+     */
+    int encode(String code, String label) {
+        final Integer id = idsByCode.get(code);
+
+        if (id == null) {
+            final int newId = add(code, label);
+            idsByCode.put(code, newId);
+            return newId;
+        }
+
+        if (options.get(id).getValue().equals(valueOf(code, label))) {
+            return id;
+        }
+
+        final String codeAndLabel = code + '\n' + label;
+        final Integer existing = idsByCodeAndLabel.get(codeAndLabel);
+        if (existing != null) {
+            return existing;
+        }
+
+        final int newId = add(code, label);
+        idsByCodeAndLabel.put(codeAndLabel, newId);
+        return newId;
+    }
+
+    /**
+     * Add every option of another dictionary of the same dimension to this one, in the order of their ids in the
+     * other.
+     *
+     * @return the id in this dictionary of each option of the other, indexed by its id in the other.
+     */
+    int[] merge(DimensionDictionary other) {
+        final int[] merged = new int[other.options.size()];
+        for (int i = 0; i < merged.length; i++) {
+            final DimensionData option = other.options.get(i);
+            merged[i] = encode(option.getCode(), option.getValue());
+        }
+        return merged;
+    }
+
+    /**
+     * @param id the id of a dimension option.
+     * @return the shared {@link DimensionData} for the dimension option.
+     */
+    DimensionData get(int id) {
+        return options.get(id);
+    }
+
+    /**
+     * @return the number of distinct dimension options.
+     */
+    int size() {
+        return options.size();
+    }
+
+    /**
+     * @return the length of the longest value of any option.
+     */
+    int getWidestValue() {
+        return widestValue;
+    }
+
+    /**
+     * @return the length of the longest code of any option.
+     */
+    int getWidestCode() {
+        return widestCode;
+    }
+
+    /**
+     * Rank every option by its value, matching the order of {@link DimensionData#compareTo}. Options with equal values
+     * share a rank.
+     *
+     * @return the rank of each option, indexed by id.
+     */
+    int[] ranks() {
+        final Integer[] byValue = new Integer[options.size()];
+        for (int i = 0; i < byValue.length; i++) {
+            byValue[i] = i;
+        }
+        Arrays.sort(byValue, (a, b) -> options.get(a).compareTo(options.get(b)));
+
+        final int[] ranks = new int[byValue.length];
+        int rank = 0;
+        for (int i = 0; i < byValue.length; i++) {
+            if (i > 0 && options.get(byValue[i - 1]).compareTo(options.get(byValue[i])) != 0) {
+                rank++;
+            }
+            ranks[byValue[i]] = rank;
+        }
+        return ranks;
+    }
+
+    private int add(String code, String label) {
+        final DimensionData option = new DimensionData(dimensionType, label, code);
+        widestValue = Math.max(widestValue, option.getValue().length());
+        widestCode = Math.max(widestCode, code.length());
+        options.add(option);
+        return options.size() - 1;
+    }
+
+    // mirrors DimensionData, which falls back to the code when there is no label
+    private static String valueOf(String code, String label) {
+        return "".equals(label) ? code : label;
+    }
+}
@@ -2,22 +2,33 @@ package dp.xlsx;
 
 import dp.api.dataset.models.CodeList;
 import dp.api.dataset.models.Metadata;
-import org.apache.commons.lang3.builder.EqualsBuilder;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Group implements Comparable<Group> {
 
+    private GroupKey key; // the dictionary ids of the dimension options, if read from a V4 file
+    private int index = -1; // the index of the group in the observation store
     private List<DimensionData> groupValues; // the unique dimension options
-    private Map<String, Observation> observations; // <time, observation>
+    private ObservationStore observations;
 
     /**
      * Construct a new Group from the provided parameters.
      */
-    Group(final List<DimensionData> groupValues, final Map<String, Observation> observations) {
+    Group(final List<DimensionData> groupValues, final ObservationStore observations) {
+        this(null, -1, groupValues, observations);
+    }
+
+    /**
+     * Construct a new Group for a dictionary encoded row of a V4 file, whose observations are held in a store.
+     */
+    Group(final GroupKey key, final int index, final List<DimensionData> groupValues,
+          final ObservationStore observations) {
+        this.key = key;
+        this.index = index;
         this.groupValues = groupValues;
         this.observations = observations;
     }
@@ -34,7 +45,6 @@ public class Group implements Comparable<Group> {
 
         final int labelOffset = 2; // Skip the code and get the label when iterating columns
         groupValues = new ArrayList<>();
-        observations = new HashMap<>();
         int columnOffset = offset + 3; // skip the observation, time code and time label
 
         // add all other dimensions
@@ -64,18 +74,11 @@ public class Group implements Comparable<Group> {
     }
 
     /**
-     * Add a observation into the group
-     *
-     * @param timeLabel        The label used for the time
-     * @param observation      The observation value
-     * @param additionalValues The addition values which are related to the observation
+     * Get the observation for a time. The formatter reads the observation store directly, this is for convenience
+     * where an {@link Observation} object is wanted.
      */
-    void addObservation(final String timeLabel, final String observation, final String[] additionalValues) {
-        observations.put(timeLabel, new Observation(observation, additionalValues));
-    }
-
     Observation getObservation(String time) {
-        return observations.get(time);
+        return observations == null ? null : observations.getObservation(index, time);
     }
 
     @Override
@@ -96,7 +99,19 @@ public class Group implements Comparable<Group> {
 
         final Group group = (Group) o;
 
-        return new EqualsBuilder().append(this.getGroupValues(), group.getGroupValues()).isEquals();
+        return this.getGroupValues().equals(group.getGroupValues());
+    }
+
+    GroupKey getKey() {
+        return key;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    ObservationStore getObservationStore() {
+        return observations;
     }
 
     protected List<DimensionData> getGroupValues() {
@@ -126,6 +141,15 @@ public class Group implements Comparable<Group> {
     }
 
     public Map<String, Observation> getObservations() {
-        return this.observations;
+        final Map<String, Observation> byTime = new LinkedHashMap<>();
+        if (observations != null) {
+            for (String time : observations.getTimeLabels().values()) {
+                final Observation observation = getObservation(time);
+                if (observation != null) {
+                    byTime.put(time, observation);
+                }
+            }
+        }
+        return byTime;
     }
 }
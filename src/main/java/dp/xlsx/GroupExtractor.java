@@ -1,16 +1,128 @@
 package dp.xlsx;
 import dp.api.dataset.models.Metadata;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * A wrapper around the the Group class (a Group represents relevant cells extracted from a single row of a v4 file)
+ * <p>
+ * Observation rows are dictionary encoded: each dimension column pair of the file has a {@link DimensionDictionary},
+ * created from the header row, so a row is reduced to the ids of its dimension options and the {@link DimensionData}
+ * of each option is shared by every group it appears in.
  */
 public class GroupExtractor {
 
-    public Group extractObsRow(String[] data, int offset) {
-        return new Group(data, offset, null);
-    }
+    private static final int LABEL_OFFSET = 2; // each dimension is a code column followed by a label column
+
+    private DimensionDictionary[] dictionaries;
 
     public Group extractHeaderRow(String[] data, int offset, Metadata datasetMetadata) {
-        return new Group(data, offset, datasetMetadata);}
+        final Group header = new Group(data, offset, datasetMetadata);
+
+        final List<DimensionData> dimensions = header.getGroupValues();
+        dictionaries = new DimensionDictionary[dimensions.size()];
+        for (int i = 0; i < dimensions.size(); i++) {
+            dictionaries[i] = new DimensionDictionary(dimensions.get(i).getDimensionType());
+        }
+
+        return header;
+    }
+
+    /**
+     * @return the number of dimensions in each group, once {@link #extractHeaderRow} has been called.
+     */
+    int getDimensionCount() {
+        return dictionaries.length;
+    }
+
+    /**
+     * Encode the dimension options of an observation row. {@link #extractHeaderRow} must have been called first.
+     *
+     * @param data   A row from a V4 file
+     * @param offset The v4 file offset
+     * @param ids    populated with the id of each dimension option in the row, must be
+     *               {@link #getDimensionCount()} long.
+     */
+    void extractObsRow(String[] data, int offset, int[] ids) {
+        int column = offset + 2; // skip the observation, time code and time label to the first dimension code
+
+        for (int i = 0; i < dictionaries.length; i++, column += LABEL_OFFSET) {
+            final String code = column < data.length ? data[column] : "";
+            final String label = column + 1 < data.length ? data[column + 1] : "";
+            ids[i] = dictionaries[i].encode(code, label);
+        }
+    }
 
+    /**
+     * Add the dimension options of another extractor of the same V4 file to this one.
+     *
+     * @return for each dimension, the id in this extractor of each option of the other, indexed by its id in the
+     * other.
+     */
+    int[][] merge(GroupExtractor other) {
+        final int[][] merged = new int[dictionaries.length][];
+        for (int i = 0; i < dictionaries.length; i++) {
+            merged[i] = dictionaries[i].merge(other.dictionaries[i]);
+        }
+        return merged;
+    }
+
+    /**
+     * Create a new group for a key made from ids populated by {@link #extractObsRow}.
+     *
+     * @param key          the dimension option ids of the group.
+     * @param index        the index of the group in the observation store.
+     * @param observations the store holding the observations of the group.
+     */
+    Group createGroup(GroupKey key, int index, ObservationStore observations) {
+        final int[] ids = key.getIds();
+        final List<DimensionData> groupValues = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            groupValues.add(dictionaries[i].get(ids[i]));
+        }
+        return new Group(key, index, groupValues, observations);
+    }
+
+    /**
+     * Compare two sets of dimension option ids populated by {@link #extractObsRow} in display order, the same as
+     * {@link GroupKey#compare} but comparing the values of the options directly, for when the options are still being
+     * read and cannot be ranked.
+     */
+    int compareOptions(int[] a, int[] b) {
+        for (int i = 0; i < dictionaries.length; i++) {
+            final int compared = dictionaries[i].get(a[i]).compareTo(dictionaries[i].get(b[i]));
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Arrays.compare(a, b);
+    }
+
+    /**
+     * @return the length of the longest value of any option of a dimension, see
+     * {@link DimensionDictionary#getWidestValue()}.
+     */
+    int getWidestValue(int dimension) {
+        return dictionaries[dimension].getWidestValue();
+    }
+
+    /**
+     * @return the length of the longest code of any option of a dimension.
+     */
+    int getWidestCode(int dimension) {
+        return dictionaries[dimension].getWidestCode();
+    }
+
+    /**
+     * @return the rank of every option of each dimension, see {@link DimensionDictionary#ranks()}.
+     */
+    int[][] rankOptions() {
+        final int[][] ranks = new int[dictionaries.length][];
+        for (int i = 0; i < dictionaries.length; i++) {
+            ranks[i] = dictionaries[i].ranks();
+        }
+        return ranks;
+    }
 }
@@ -0,0 +1,83 @@
+package dp.xlsx;
+
+import java.util.Arrays;
+
+/**
+ * Identifies a {@link Group} by the dictionary ids of its dimension options, one per {@link DimensionDictionary}.
+ * The hash is computed once up front so looking a key up in a {@link GroupTable} never walks the ids to hash them.
+ */
+final class GroupKey {
+
+    private final int[] ids;
+    private final int hash;
+
+    /**
+     * @param ids  the dimension option ids - the array is owned by the key and must not be modified.
+     * @param hash the hash of the ids, as returned by {@link #hash(int[])}.
+     */
+    GroupKey(int[] ids, int hash) {
+        this.ids = ids;
+        this.hash = hash;
+    }
+
+    GroupKey(int[] ids) {
+        this(ids, hash(ids));
+    }
+
+    int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * Hash a set of dimension option ids. Dictionary ids are small and sequential so the result is mixed to spread
+     * them across the bits used to index a table.
+     */
+    static int hash(int[] ids) {
+        int h = 1;
+        for (int id : ids) {
+            h = 31 * h + id;
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Compare two sets of dimension option ids in display order: by the rank of each option in turn, the same as
+     * {@link Group#compareTo(Group)}, then by the ids themselves so distinct groups whose options have equal values
+     * always come out in the same order.
+     *
+     * @param ranks the rank of each option, as returned by {@link GroupExtractor#rankOptions()}.
+     */
+    static int compare(int[][] ranks, int[] a, int[] b) {
+        for (int i = 0; i < ranks.length; i++) {
+            final int compared = Integer.compare(ranks[i][a[i]], ranks[i][b[i]]);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Arrays.compare(a, b);
+    }
+
+    boolean matches(int[] otherIds, int otherHash) {
+        return hash == otherHash && Arrays.equals(ids, otherIds);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final GroupKey that = (GroupKey) o;
+        return matches(that.ids, that.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ids);
+    }
+}
@@ -0,0 +1,140 @@
+package dp.xlsx;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open addressing (linear probing) map from {@link GroupKey} to {@link Group}, used in place of a
+ * {@code HashMap<Group, Group>} on the hot path of reading a V4 file. Lookups take the raw ids of a row and their hash,
+ * so a row which belongs to an existing group allocates nothing.
+ */
+final class GroupTable {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private GroupKey[] keys;
+    private Group[] groups;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    GroupTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    GroupTable(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @param ids  the dimension option ids of the group.
+     * @param hash the hash of the ids, as returned by {@link GroupKey#hash(int[])}.
+     * @return the group with the given ids or null if there is not one.
+     */
+    Group get(int[] ids, int hash) {
+        for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].matches(ids, hash)) {
+                return groups[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a group to the table, replacing any group with an equal key.
+     */
+    void put(GroupKey key, Group group) {
+        int slot = key.hashCode() & mask;
+        for (; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(key)) {
+                groups[slot] = group;
+                return;
+            }
+        }
+
+        keys[slot] = key;
+        groups[slot] = group;
+
+        if (++size > resizeThreshold) {
+            resize();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a view of the groups in the table.
+     */
+    Collection<Group> groups() {
+        return new AbstractCollection<Group>() {
+            @Override
+            public Iterator<Group> iterator() {
+                return new Iterator<Group>() {
+                    private int slot = nextSlot(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < groups.length;
+                    }
+
+                    @Override
+                    public Group next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final Group group = groups[slot];
+                        slot = nextSlot(slot + 1);
+                        return group;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int nextSlot(int from) {
+        while (from < keys.length && keys[from] == null) {
+            from++;
+        }
+        return from;
+    }
+
+    private void resize() {
+        final GroupKey[] oldKeys = keys;
+        final Group[] oldGroups = groups;
+
+        allocate(oldKeys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldKeys[i].hashCode() & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                groups[slot] = oldGroups[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new GroupKey[capacity];
+        groups = new Group[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        final int minimum = (int) Math.min(1 << 30, (long) Math.ceil(expectedSize / LOAD_FACTOR));
+        return Math.max(16, Integer.highestOneBit(minimum - 1) << 1);
+    }
+}
@@ -28,6 +28,11 @@ class MetadataFormatter {
 
     private final CreationHelper createHelper; // used to create hyperlinks
 
+    MetadataFormatter(Sheet sheet, Metadata datasetMetadata, WorkBookStyles workBookStyles) {
+        this(sheet, datasetMetadata, workBookStyles.getHeadingStyle(), workBookStyles.getValueStyle(),
+                workBookStyles.getLinkStyle());
+    }
+
     public MetadataFormatter(Sheet sheet, Metadata datasetMetadata, CellStyle headerStyle, CellStyle textStyle, CellStyle linkStyle) {
         this.datasetMetadata = datasetMetadata;
         this.headerStyle = headerStyle;
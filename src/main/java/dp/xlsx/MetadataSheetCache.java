@@ -0,0 +1,106 @@
+package dp.xlsx;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import dp.api.dataset.models.Metadata;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static dp.logging.LogEvent.warn;
+
+/**
+ * Metadata sheets already written into a XLSX package, keyed by a digest of the metadata they were rendered from.
+ * Every filter output of a dataset version has the same metadata, so a burst of filter exports renders the sheet once
+ * and splices the same parts into every workbook.
+ * <p>
+ * Once the sheets held pass the budget in bytes the least recently used are evicted. Reuse is counted by the
+ * {@code cache.gets} metric, tagged with a result of hit or miss, alongside {@code cache.evictions} and the number of
+ * sheets held as {@code cache.size}.
+ */
+class MetadataSheetCache {
+
+    private static final String NAME = "xlsx-metadata-sheets";
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, RenderedSheet> sheets = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    /**
+     * @param maxBytes the most bytes of sheets held at once.
+     * @param registry the registry the metrics are recorded in.
+     */
+    MetadataSheetCache(long maxBytes, MeterRegistry registry) {
+        this.maxBytes = maxBytes;
+        this.hits = Counter.builder("cache.gets").tag("cache", NAME).tag("result", "hit").register(registry);
+        this.misses = Counter.builder("cache.gets").tag("cache", NAME).tag("result", "miss").register(registry);
+        this.evictions = Counter.builder("cache.evictions").tag("cache", NAME).register(registry);
+        Gauge.builder("cache.size", this, MetadataSheetCache::size).tag("cache", NAME).register(registry);
+    }
+
+    /**
+     * @return the key of the sheet rendered from the metadata, or null if the metadata cannot be digested.
+     */
+    static String keyOf(Metadata metadata) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            metadata.digestInto(digest);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (JsonProcessingException e) {
+            warn().logException(e, "failed to digest metadata, the metadata sheet will not be cached");
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return the sheet rendered from the metadata with the key, or null if it is not held.
+     */
+    synchronized RenderedSheet get(String key) {
+        final RenderedSheet sheet = sheets.get(key);
+        if (sheet == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return sheet;
+    }
+
+    synchronized void put(String key, RenderedSheet sheet) {
+        if (sheet.size() > maxBytes) {
+            return;
+        }
+
+        final RenderedSheet replaced = sheets.put(key, sheet);
+        bytes += sheet.size() - (replaced != null ? replaced.size() : 0);
+
+        final Iterator<Map.Entry<String, RenderedSheet>> eldest = sheets.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().getValue().size();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    synchronized int size() {
+        return sheets.size();
+    }
+
+    /**
+     * @return the total size in bytes of the sheets held.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+}
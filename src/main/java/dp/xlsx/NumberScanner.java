@@ -0,0 +1,160 @@
+package dp.xlsx;
+
+/**
+ * Classifies an observation value as empty, an integer, a decimal or a marker, and parses a number, in a single pass
+ * over its characters - without allocating, or throwing for the markers (such as ".." or "x") which are as common as
+ * numbers in some datasets.
+ * <p>
+ * A number is an optional sign, digits with an optional decimal point and an optional exponent, with any whitespace
+ * around them, as read by {@link Double#parseDouble}. Unlike Double.parseDouble, "NaN", "Infinity", hexadecimal
+ * values and values with a type suffix, such as "1d", are markers. Numbers of up to 15 significant digits with a
+ * small exponent - almost every observation - are converted exactly here; any other is passed to
+ * Double.parseDouble once it is known to be valid.
+ * <p>
+ * A scanner holds the number it last parsed, so each thread needs its own.
+ */
+class NumberScanner {
+
+    static final int EMPTY = 0;
+    static final int INTEGER = 1;
+    static final int DECIMAL = 2;
+    static final int MARKER = 3;
+
+    // the most significant digits held, more than a double can hold exactly so longer numbers are passed on
+    private static final int MAX_DIGITS = 18;
+
+    // a mantissa of at most 2^53 and a power of ten of at most 10^22 are exact doubles, so one is multiplied or
+    // divided by the other with a single rounding
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private double number;
+
+    /**
+     * Classify a value, parsing it if it is a number.
+     *
+     * @return {@link #EMPTY} for null or "", {@link #INTEGER} or {@link #DECIMAL} for a number without or with a
+     * decimal point, and {@link #MARKER} for anything else.
+     */
+    int scan(String value) {
+        if (value == null || value.isEmpty()) {
+            return EMPTY;
+        }
+
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean decimalPoint = false;
+        boolean exact = true;
+
+        for (; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    // leading zeros are not significant
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (decimalPoint) {
+                        exponent--;
+                    }
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !decimalPoint) {
+                decimalPoint = true;
+            } else if ((c == 'e' || c == 'E') && anyDigit) {
+                final int scanned = scanExponent(value, i + 1, end);
+                if (scanned == Integer.MIN_VALUE) {
+                    return MARKER;
+                }
+                exponent += scanned;
+                break;
+            } else {
+                return MARKER;
+            }
+        }
+
+        if (!anyDigit) {
+            return MARKER;
+        }
+
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            final double magnitude = exponent >= 0
+                    ? mantissa * POWERS_OF_TEN[exponent]
+                    : mantissa / POWERS_OF_TEN[-exponent];
+            number = negative ? -magnitude : magnitude;
+        } else {
+            number = Double.parseDouble(value);
+        }
+        return decimalPoint ? DECIMAL : INTEGER;
+    }
+
+    /**
+     * @return the number last scanned, if it was an integer or decimal.
+     */
+    double getNumber() {
+        return number;
+    }
+
+    /**
+     * @return true if every character of a value is a digit, as for an empty value.
+     */
+    static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the signed exponent which runs from start to end, clamped well beyond the range of a double, or
+     * {@link Integer#MIN_VALUE} if it is not one.
+     */
+    private static int scanExponent(String value, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            return Integer.MIN_VALUE;
+        }
+
+        int exponent = 0;
+        for (; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return Integer.MIN_VALUE;
+            }
+            if (exponent < 100000) {
+                exponent = exponent * 10 + (c - '0');
+            }
+        }
+        return negative ? -exponent : exponent;
+    }
+}
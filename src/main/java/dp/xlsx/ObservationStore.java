@@ -0,0 +1,452 @@
+package dp.xlsx;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds the observations of a V4 file in primitive columns, indexed by group and time, rather than as a map of
+ * {@link Observation} objects per group.
+ * <p>
+ * Each observation is a cell. Numeric values are parsed once as they are added, by a {@link NumberScanner}, and held
+ * as doubles; anything else is a marker (such as ".." or "x") held as an id into a dictionary of markers. Time labels
+ * and the values of each additional column are dictionary encoded, so a cell costs a fixed number of bytes however
+ * many times its strings repeat. Once every observation has been added {@link #seal} orders the cells by group and
+ * time so a cell can be found by {@link #find}.
+ * <p>
+ * A store can share the dictionaries of another, so cells can be written out as fixed size records with
+ * {@link #write} and read back into a different store with {@link #read}.
+ */
+class ObservationStore {
+
+    /**
+     * Returned by {@link #find} when a group has no observation for a time
+     */
+    static final int MISSING = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte MARKER = 2;
+    private static final byte KIND_MASK = 3;
+    private static final byte DECIMAL_POINT = 4; // set when the value as written contains a '.'
+
+    private static final byte UNCHECKED = 0;
+    private static final byte DIGITS = 1;
+    private static final byte NOT_DIGITS = 2;
+
+    private final StringDictionary timeLabels;
+    private final StringDictionary markers;
+    private final StringDictionary[] additionalValues;
+
+    private int size;
+    private int[] groups;
+    private int[] times;
+    private double[] numbers; // the value of a number, or the marker id of a marker
+    private byte[] flags;
+    private final int[][] additionalIds;
+
+    // the length of the longest value as written, which sizes the observation columns. Kept when the store is cleared.
+    private int widestValue;
+
+    private final NumberScanner scanner = new NumberScanner();
+
+    // whether each additional value is all digits, by column and id
+    private final byte[][] additionalDigits;
+
+    // populated by seal - the cells of each group in time order, and the index into order each group starts at
+    private int[] order;
+    private int[] groupStarts;
+
+    /**
+     * @param additionalColumns the number of values which accompany each observation.
+     */
+    ObservationStore(int additionalColumns) {
+        this(new StringDictionary(), new StringDictionary(), new StringDictionary[additionalColumns]);
+        for (int i = 0; i < additionalColumns; i++) {
+            additionalValues[i] = new StringDictionary();
+        }
+    }
+
+    /**
+     * Create an empty store which shares the dictionaries of another, so records written by one can be read by the
+     * other.
+     */
+    ObservationStore(ObservationStore dictionaries) {
+        this(dictionaries.timeLabels, dictionaries.markers, dictionaries.additionalValues);
+    }
+
+    private ObservationStore(StringDictionary timeLabels, StringDictionary markers, StringDictionary[] additionalValues) {
+        this.timeLabels = timeLabels;
+        this.markers = markers;
+        this.additionalValues = additionalValues;
+
+        groups = new int[INITIAL_CAPACITY];
+        times = new int[INITIAL_CAPACITY];
+        numbers = new double[INITIAL_CAPACITY];
+        flags = new byte[INITIAL_CAPACITY];
+        additionalIds = new int[additionalValues.length][];
+        additionalDigits = new byte[additionalValues.length][];
+        for (int i = 0; i < additionalIds.length; i++) {
+            additionalIds[i] = new int[INITIAL_CAPACITY];
+            additionalDigits[i] = new byte[0];
+        }
+    }
+
+    /**
+     * Add an observation. If a group has more than one observation for the same time the last one added is kept.
+     *
+     * @param group            the index of the group the observation belongs to.
+     * @param timeLabel        the time label of the observation.
+     * @param value            the observation value.
+     * @param row              the row holding the additional values of the observation.
+     * @param additionalOffset the index in the row of the first additional value.
+     */
+    void add(int group, String timeLabel, String value, String[] row, int additionalOffset) {
+        final int cell = nextCell();
+        groups[cell] = group;
+        times[cell] = timeLabels.encode(timeLabel);
+
+        final int kind = scanner.scan(value);
+        if (kind == NumberScanner.EMPTY) {
+            flags[cell] = EMPTY;
+        } else {
+            if (kind == NumberScanner.MARKER) {
+                numbers[cell] = markers.encode(value);
+                flags[cell] = (byte) (MARKER | (value.indexOf('.') >= 0 ? DECIMAL_POINT : 0));
+            } else {
+                numbers[cell] = scanner.getNumber();
+                flags[cell] = kind == NumberScanner.DECIMAL ? NUMBER | DECIMAL_POINT : NUMBER;
+            }
+            widestValue = Math.max(widestValue, value.length());
+        }
+
+        for (int i = 0; i < additionalIds.length; i++) {
+            final int column = additionalOffset + i;
+            final String additionalValue = column < row.length ? row[column] : "";
+            additionalIds[i][cell] = additionalValues[i].encode(additionalValue);
+        }
+    }
+
+    /**
+     * Add every observation of another store with its own dictionaries, in the order they were added to it. The
+     * values of the other store's dictionaries are added to the dictionaries of this one.
+     *
+     * @param other        the store to add the observations of, which must not be sealed.
+     * @param groupIndexes the index in this store of each group of the other, indexed by its index in the other.
+     */
+    void addAll(ObservationStore other, int[] groupIndexes) {
+        final int[] timeIds = timeLabels.merge(other.timeLabels);
+        final int[] markerIds = markers.merge(other.markers);
+        final int[][] additionalValueIds = new int[additionalValues.length][];
+        for (int i = 0; i < additionalValues.length; i++) {
+            additionalValueIds[i] = additionalValues[i].merge(other.additionalValues[i]);
+        }
+
+        int capacity = flags.length;
+        while (capacity < size + other.size) {
+            capacity *= 2;
+        }
+        if (capacity > flags.length) {
+            grow(capacity);
+        }
+
+        for (int otherCell = 0; otherCell < other.size; otherCell++) {
+            final int cell = nextCell();
+            groups[cell] = groupIndexes[other.groups[otherCell]];
+            times[cell] = timeIds[other.times[otherCell]];
+            flags[cell] = other.flags[otherCell];
+            numbers[cell] = (flags[cell] & KIND_MASK) == MARKER
+                    ? markerIds[(int) other.numbers[otherCell]]
+                    : other.numbers[otherCell];
+            for (int i = 0; i < additionalIds.length; i++) {
+                additionalIds[i][cell] = additionalValueIds[i][other.additionalIds[i][otherCell]];
+            }
+        }
+        widestValue = Math.max(widestValue, other.widestValue);
+    }
+
+    /**
+     * Index the observations by group and time. Must be called once every observation has been added, and before any
+     * are read.
+     *
+     * @param groupCount the number of groups, each group index passed to {@link #add} must be less than this.
+     */
+    void seal(int groupCount) {
+        // count the cells of each group, then place them in group order keeping the order they were added in
+        final int[] starts = new int[groupCount + 1];
+        for (int cell = 0; cell < size; cell++) {
+            starts[groups[cell] + 1]++;
+        }
+        for (int group = 0; group < groupCount; group++) {
+            starts[group + 1] += starts[group];
+        }
+
+        final int[] next = Arrays.copyOf(starts, groupCount);
+        final int[] sorted = new int[size];
+        for (int cell = 0; cell < size; cell++) {
+            sorted[next[groups[cell]]++] = cell;
+        }
+
+        // then order the cells of each group by time, and by the order they were added in for the same time
+        long[] keys = new long[0];
+        for (int group = 0; group < groupCount; group++) {
+            final int from = starts[group];
+            final int length = starts[group + 1] - from;
+            if (length < 2) {
+                continue;
+            }
+            if (keys.length < length) {
+                keys = new long[length];
+            }
+            for (int i = 0; i < length; i++) {
+                final int cell = sorted[from + i];
+                keys[i] = ((long) times[cell] << 32) | cell;
+            }
+            Arrays.sort(keys, 0, length);
+            for (int i = 0; i < length; i++) {
+                sorted[from + i] = (int) keys[i];
+            }
+        }
+
+        order = sorted;
+        groupStarts = starts;
+        groups = null; // no longer needed, the position of a cell in order gives its group
+    }
+
+    /**
+     * Find the observation of a group for a time.
+     *
+     * @param group the index of the group.
+     * @param time  the id of the time label, see {@link #getTimeLabels()}.
+     * @return the cell holding the observation, or {@link #MISSING} if there is not one.
+     */
+    int find(int group, int time) {
+        final int end = groupStarts[group + 1] - 1;
+        int low = groupStarts[group];
+        int high = end;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            final int middleTime = times[order[middle]];
+
+            if (middleTime < time) {
+                low = middle + 1;
+            } else if (middleTime > time) {
+                high = middle - 1;
+            } else {
+                // the last observation added for a time replaces any earlier ones
+                while (middle < end && times[order[middle + 1]] == time) {
+                    middle++;
+                }
+                return order[middle];
+            }
+        }
+        return MISSING;
+    }
+
+    boolean isEmpty(int cell) {
+        return (flags[cell] & KIND_MASK) == EMPTY;
+    }
+
+    boolean isNumber(int cell) {
+        return (flags[cell] & KIND_MASK) == NUMBER;
+    }
+
+    boolean hasDecimalPoint(int cell) {
+        return (flags[cell] & DECIMAL_POINT) != 0;
+    }
+
+    double getNumber(int cell) {
+        return numbers[cell];
+    }
+
+    /**
+     * @return the number of characters in the longest observation value, as it was written in the V4 file, of any
+     * observation ever added to the store.
+     */
+    int getWidestValue() {
+        return widestValue;
+    }
+
+    /**
+     * The observation value as a string. Markers are returned as written, but numbers are rendered from their parsed
+     * value so may differ in format from the V4 file (e.g. "1.50" is returned as "1.5").
+     */
+    String getValue(int cell) {
+        switch (flags[cell] & KIND_MASK) {
+            case NUMBER:
+                final double number = numbers[cell];
+                if (!hasDecimalPoint(cell) && number == Math.rint(number) && Math.abs(number) < 1e15) {
+                    return Long.toString((long) number);
+                }
+                return Double.toString(number);
+            case MARKER:
+                return markers.get((int) numbers[cell]);
+            default:
+                return "";
+        }
+    }
+
+    int getAdditionalColumnCount() {
+        return additionalIds.length;
+    }
+
+    String getAdditionalValue(int cell, int column) {
+        return additionalValues[column].get(additionalIds[column][cell]);
+    }
+
+    /**
+     * @return true if every character of an additional value is a digit. Each distinct value is only checked once.
+     */
+    boolean isAdditionalValueDigits(int cell, int column) {
+        final int id = additionalIds[column][cell];
+        byte[] digits = additionalDigits[column];
+        if (id >= digits.length) {
+            digits = Arrays.copyOf(digits, Math.max(id + 1, additionalValues[column].size()));
+            additionalDigits[column] = digits;
+        }
+        if (digits[id] == UNCHECKED) {
+            digits[id] = NumberScanner.isDigits(additionalValues[column].get(id)) ? DIGITS : NOT_DIGITS;
+        }
+        return digits[id] == DIGITS;
+    }
+
+    /**
+     * @return the unique time labels of the observations, in the order they were first added.
+     */
+    StringDictionary getTimeLabels() {
+        return timeLabels;
+    }
+
+    /**
+     * @return the number of cells a group has, including any replaced by a later observation for the same time.
+     */
+    int getCellCount(int group) {
+        return groupStarts[group + 1] - groupStarts[group];
+    }
+
+    /**
+     * @param group    the index of the group.
+     * @param position the position of the cell, less than {@link #getCellCount}.
+     * @return a cell of the group, the cells of a group are in time order.
+     */
+    int getCell(int group, int position) {
+        return order[groupStarts[group] + position];
+    }
+
+    /**
+     * @return the number of bytes each cell is written as by {@link #write}.
+     */
+    int getRecordSize() {
+        return Integer.BYTES + Byte.BYTES + Double.BYTES + Integer.BYTES * additionalIds.length;
+    }
+
+    /**
+     * Write a cell to a buffer as a record of {@link #getRecordSize()} bytes.
+     */
+    void write(int cell, ByteBuffer buffer) {
+        buffer.putInt(times[cell]);
+        buffer.put(flags[cell]);
+        buffer.putDouble(numbers[cell]);
+        for (int[] ids : additionalIds) {
+            buffer.putInt(ids[cell]);
+        }
+    }
+
+    /**
+     * Add an observation from a record written by {@link #write}, by this store or one sharing its dictionaries.
+     *
+     * @param group  the index of the group the observation belongs to.
+     * @param buffer the buffer, positioned at the start of the record.
+     */
+    void read(int group, ByteBuffer buffer) {
+        final int cell = nextCell();
+        groups[cell] = group;
+        times[cell] = buffer.getInt();
+        flags[cell] = buffer.get();
+        numbers[cell] = buffer.getDouble();
+        for (int[] ids : additionalIds) {
+            ids[cell] = buffer.getInt();
+        }
+    }
+
+    /**
+     * Remove every observation so the store can be reused, keeping the dictionaries and the capacity of the store.
+     */
+    void clear() {
+        size = 0;
+        order = null;
+        groupStarts = null;
+        if (groups == null) {
+            groups = new int[flags.length];
+        }
+    }
+
+    /**
+     * @return an approximation of the heap used by the store, which holds the columns of every cell it has capacity
+     * for, whether or not an observation has been added to it, and keeps that capacity when it is cleared.
+     */
+    long getHeapSize() {
+        return getHeapSize(0);
+    }
+
+    /**
+     * @param cells the number of observations to be added.
+     * @return an approximation of the heap the store will use once it has grown to hold more observations.
+     */
+    long getHeapSize(int cells) {
+        long capacity = flags.length;
+        while (capacity < (long) size + cells) {
+            capacity *= 2;
+        }
+        // each cell's columns, plus the index built by seal
+        return capacity * (getRecordSize() + Integer.BYTES + Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Get the observation of a group for a time as an {@link Observation}.
+     *
+     * @return the observation, or null if the group does not have one for the time.
+     */
+    Observation getObservation(int group, String timeLabel) {
+        final int time = timeLabels.idOf(timeLabel);
+        final int cell = time < 0 ? MISSING : find(group, time);
+        if (cell == MISSING) {
+            return null;
+        }
+
+        final String[] additional = new String[additionalIds.length];
+        for (int i = 0; i < additional.length; i++) {
+            additional[i] = getAdditionalValue(cell, i);
+        }
+        return new Observation(getValue(cell), additional);
+    }
+
+    /**
+     * @return the number of observations added.
+     */
+    int size() {
+        return size;
+    }
+
+    private int nextCell() {
+        if (order != null) {
+            throw new IllegalStateException("observations cannot be added once the store is sealed");
+        }
+        if (size == flags.length) {
+            grow(flags.length * 2);
+        }
+        return size++;
+    }
+
+    private void grow(int capacity) {
+        groups = Arrays.copyOf(groups, capacity);
+        times = Arrays.copyOf(times, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        for (int i = 0; i < additionalIds.length; i++) {
+            additionalIds[i] = Arrays.copyOf(additionalIds[i], capacity);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package dp.xlsx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates what is written to it in blocks compressed at once on a pool of threads, as pigz does. Each block is
+ * compressed with the end of the block before it as its dictionary, and flushed to a byte boundary, so the blocks
+ * put together are a single raw deflate stream - the content of a zip entry - only slightly larger than one
+ * compressed on a single thread.
+ * <p>
+ * A zip entry written raw needs its CRC and sizes before its content, so the compressed stream is held in memory
+ * until it is finished.
+ */
+class ParallelDeflaterOutputStream extends OutputStream {
+
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    // the most distance a deflate match reaches back
+    private static final int DICTIONARY_SIZE = 32768;
+
+    private final int level;
+    private final int blockSize;
+    private final int maxPending;
+    private final ExecutorService executor;
+
+    private final CRC32 crc = new CRC32();
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final List<byte[]> compressed = new ArrayList<>();
+
+    private byte[] block;
+    private int position;
+    private byte[] dictionary;
+    private long size;
+    private long compressedSize;
+    private boolean finished;
+
+    /**
+     * @param level       the deflate level, from 0 to 9, or -1 for the default.
+     * @param blockSize   the bytes of each block, at least 32KB.
+     * @param parallelism the number of blocks compressed at once.
+     * @param executor    the threads blocks are compressed on.
+     */
+    ParallelDeflaterOutputStream(int level, int blockSize, int parallelism, ExecutorService executor) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("block size must be at least " + DICTIONARY_SIZE + " bytes");
+        }
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = Math.max(1, parallelism) * 2;
+        this.executor = executor;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (finished) {
+            throw new IOException("stream already finished");
+        }
+        crc.update(bytes, offset, length);
+        size += length;
+        while (length > 0) {
+            final int copied = Math.min(length, blockSize - position);
+            System.arraycopy(bytes, offset, block, position, copied);
+            position += copied;
+            offset += copied;
+            length -= copied;
+            if (position == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compress the rest of what has been written, and end the deflate stream.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (position > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            collect(pending.poll());
+        }
+        // an empty final block ends the stream, as which block is last is only known once it has been compressed
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.finish();
+            add(deflate(deflater, Deflater.NO_FLUSH));
+        } finally {
+            deflater.end();
+        }
+        finished = true;
+        block = null;
+    }
+
+    /**
+     * @return the CRC32 of what was written.
+     */
+    long getCrc() {
+        return crc.getValue();
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes they were compressed to, once finished.
+     */
+    long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * @return the raw deflate stream, once finished.
+     */
+    InputStream getCompressed() {
+        final List<InputStream> blocks = new ArrayList<>(compressed.size());
+        compressed.forEach(bytes -> blocks.add(new ByteArrayInputStream(bytes)));
+        return new SequenceInputStream(Collections.enumeration(blocks));
+    }
+
+    @Override
+    public void close() {
+        pending.forEach(block -> block.cancel(true));
+        pending.clear();
+        compressed.clear();
+        block = null;
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] input = block;
+        final int length = position;
+        final byte[] previous = dictionary;
+        pending.add(executor.submit(() -> deflateBlock(input, length, previous)));
+
+        dictionary = Arrays.copyOfRange(input, Math.max(0, length - DICTIONARY_SIZE), length);
+        block = new byte[blockSize];
+        position = 0;
+
+        while (pending.size() >= maxPending) {
+            collect(pending.poll());
+        }
+    }
+
+    private byte[] deflateBlock(byte[] input, int length, byte[] previous) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (previous != null) {
+                deflater.setDictionary(previous);
+            }
+            deflater.setInput(input, 0, length);
+            return deflate(deflater, Deflater.SYNC_FLUSH);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the output of a deflater, until it is flushed or, if it has been told to finish, finished.
+     */
+    private static byte[] deflate(Deflater deflater, int flush) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[65536];
+        while (true) {
+            final int length = deflater.deflate(buffer, 0, buffer.length, flush);
+            out.write(buffer, 0, length);
+            // a flush is complete once it leaves room in the buffer
+            if (deflater.finished() || (flush == Deflater.SYNC_FLUSH && length < buffer.length)) {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    private void collect(Future<byte[]> block) throws IOException {
+        try {
+            add(block.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing a block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void add(byte[] bytes) {
+        compressed.add(bytes);
+        compressedSize += bytes.length;
+    }
+}
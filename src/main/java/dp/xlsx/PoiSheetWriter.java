@@ -0,0 +1,61 @@
+package dp.xlsx;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+import java.util.Map;
+
+/**
+ * Writes a sheet into a POI {@link Sheet}.
+ */
+class PoiSheetWriter implements SheetWriter {
+
+    private final Sheet sheet;
+
+    private Row row;
+
+    PoiSheetWriter(Sheet sheet) {
+        this.sheet = sheet;
+    }
+
+    @Override
+    public void setColumnWidths(int defaultWidth, Map<Integer, Integer> widths) {
+        sheet.setDefaultColumnWidth(defaultWidth);
+        widths.forEach(sheet::setColumnWidth);
+    }
+
+    @Override
+    public void startRow(int row) {
+        this.row = sheet.createRow(row);
+    }
+
+    @Override
+    public void blankCell(int column, CellStyle style) {
+        createCell(column, style);
+    }
+
+    @Override
+    public void stringCell(int column, CellStyle style, String value) {
+        createCell(column, style).setCellValue(value);
+    }
+
+    @Override
+    public void numberCell(int column, CellStyle style, double value) {
+        createCell(column, style).setCellValue(value);
+    }
+
+    @Override
+    public void finish() {
+
+    }
+
+    private Cell createCell(int column, CellStyle style) {
+        final Cell cell = row.createCell(column);
+        if (style != null) {
+            cell.setCellStyle(style);
+        }
+        return cell;
+    }
+}
@@ -0,0 +1,34 @@
+package dp.xlsx;
+
+/**
+ * The parts of a sheet as they were written into a XLSX package - the worksheet XML and, if the sheet has hyperlinks,
+ * the relationships the hyperlinks refer to.
+ */
+class RenderedSheet {
+
+    private final byte[] sheet;
+    private final byte[] relationships;
+
+    RenderedSheet(byte[] sheet, byte[] relationships) {
+        this.sheet = sheet;
+        this.relationships = relationships;
+    }
+
+    byte[] getSheet() {
+        return sheet;
+    }
+
+    /**
+     * @return the relationships part of the sheet, or null if it has none.
+     */
+    byte[] getRelationships() {
+        return relationships;
+    }
+
+    /**
+     * @return the size of the parts in bytes.
+     */
+    long size() {
+        return sheet.length + (relationships != null ? relationships.length : 0);
+    }
+}
@@ -0,0 +1,39 @@
+package dp.xlsx;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+
+import java.util.Map;
+
+/**
+ * Where {@link DatasetFormatter} writes a sheet: its rows in order, and the cells of each row in column order.
+ */
+interface SheetWriter {
+
+    /**
+     * Set the widths of the columns, once and before the first row is written.
+     *
+     * @param defaultWidth the width of every column without a width of its own, in characters.
+     * @param widths       the width of each column with a width of its own, by column index, in 1/256ths of a
+     *                     character.
+     */
+    void setColumnWidths(int defaultWidth, Map<Integer, Integer> widths);
+
+    void startRow(int row);
+
+    /**
+     * @param style the style of the cell, or null for the default style.
+     */
+    void blankCell(int column, CellStyle style);
+
+    /**
+     * @param value the value of the cell, or null for a blank cell.
+     */
+    void stringCell(int column, CellStyle style, String value);
+
+    void numberCell(int column, CellStyle style, double value);
+
+    /**
+     * Complete the sheet once every row has been written.
+     */
+    void finish();
+}
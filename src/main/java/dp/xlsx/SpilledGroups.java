@@ -0,0 +1,204 @@
+package dp.xlsx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import static dp.logging.LogEvent.info;
+import static dp.logging.LogEvent.warn;
+
+/**
+ * The groups of a V4 file too large to hold on the heap, spilled to disk as sorted runs.
+ * <p>
+ * Each run is the groups and observations parsed since the last run, sorted into display order and written to a
+ * memory mapped temp file as fixed size records - the dimension option ids of the group followed by an observation
+ * written by {@link ObservationStore#write}. The dictionaries which give the ids their meaning stay on the heap, so
+ * the runs can be merged back into a single sequence of groups in display order while only one group at a time is
+ * held on the heap.
+ */
+class SpilledGroups implements Closeable {
+
+    private final GroupExtractor groupExtractor;
+    private final ObservationStore dictionaries;
+    private final int dimensionCount;
+    private final int recordSize;
+
+    private final List<Path> files = new ArrayList<>();
+    private final List<MappedByteBuffer> runs = new ArrayList<>();
+
+    /**
+     * @param groupExtractor the extractor whose dictionaries encode the dimension options of the groups.
+     * @param dictionaries   a store holding the dictionaries of the observations.
+     */
+    SpilledGroups(GroupExtractor groupExtractor, ObservationStore dictionaries) {
+        this.groupExtractor = groupExtractor;
+        this.dictionaries = dictionaries;
+        this.dimensionCount = groupExtractor.getDimensionCount();
+        this.recordSize = Integer.BYTES * dimensionCount + dictionaries.getRecordSize();
+    }
+
+    /**
+     * @param dimensionCount the number of dimensions of each group.
+     * @param dictionaries   a store holding the dictionaries of the observations.
+     * @return the most observations which can be written to a single run, which is mapped as a single buffer.
+     */
+    static int getMaxRunSize(int dimensionCount, ObservationStore dictionaries) {
+        return Integer.MAX_VALUE / (Integer.BYTES * dimensionCount + dictionaries.getRecordSize());
+    }
+
+    /**
+     * Sort and write a run of groups to disk. The observations are sealed by this call, and may be cleared and reused
+     * once it returns.
+     *
+     * @param groups       the groups of the run.
+     * @param observations the observations of the groups, sharing the dictionaries this was created with.
+     */
+    void spill(Collection<Group> groups, ObservationStore observations) throws IOException {
+        observations.seal(groups.size());
+
+        final int[][] ranks = groupExtractor.rankOptions();
+        final List<Group> sorted = new ArrayList<>(groups);
+        sorted.sort((a, b) -> GroupKey.compare(ranks, a.getKey().getIds(), b.getKey().getIds()));
+
+        final Path file = Files.createTempFile("v4-run-", ".bin");
+        files.add(file);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer run = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) observations.size() * recordSize);
+
+            for (Group group : sorted) {
+                final int[] ids = group.getKey().getIds();
+                for (int i = 0; i < observations.getCellCount(group.getIndex()); i++) {
+                    for (int id : ids) {
+                        run.putInt(id);
+                    }
+                    observations.write(observations.getCell(group.getIndex(), i), run);
+                }
+            }
+
+            run.flip();
+            runs.add(run);
+        }
+
+        info().data("run", runs.size()).data("groups", sorted.size()).data("observations", observations.size())
+                .log("spilled sorted run of v4 file to disk");
+    }
+
+    /**
+     * Merge the runs into a single sequence of groups in display order. Each group is only valid until the next one
+     * is read - the observations of every group are held in a single store which is reused.
+     *
+     * @return an iterator over the groups.
+     */
+    Iterator<Group> groups() {
+        final int[][] ranks = groupExtractor.rankOptions();
+
+        // runs hold the same group where a group's observations were spread across runs, so take the earliest run
+        // first for equal groups to keep the order the observations were read in
+        final PriorityQueue<Cursor> cursors = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+            final int compared = GroupKey.compare(ranks, a.ids, b.ids);
+            return compared != 0 ? compared : Integer.compare(a.run, b.run);
+        });
+
+        for (int i = 0; i < runs.size(); i++) {
+            final Cursor cursor = new Cursor(i, runs.get(i).duplicate());
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+
+        final ObservationStore observations = new ObservationStore(dictionaries);
+
+        return new Iterator<Group>() {
+            @Override
+            public boolean hasNext() {
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public Group next() {
+                if (cursors.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int[] ids = cursors.peek().ids.clone();
+                observations.clear();
+
+                while (!cursors.isEmpty() && Arrays.equals(cursors.peek().ids, ids)) {
+                    final Cursor cursor = cursors.poll();
+                    boolean more;
+                    do {
+                        observations.read(0, cursor.buffer);
+                        more = cursor.next();
+                    } while (more && Arrays.equals(cursor.ids, ids));
+
+                    if (more) {
+                        cursors.add(cursor);
+                    }
+                }
+
+                observations.seal(1);
+                return groupExtractor.createGroup(new GroupKey(ids), 0, observations);
+            }
+        };
+    }
+
+    /**
+     * Delete the temp files holding the runs.
+     */
+    @Override
+    public void close() {
+        runs.clear();
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                warn().fileName(file.toString()).logException(e, "failed to delete spilled v4 run");
+            }
+        }
+        files.clear();
+    }
+
+    /**
+     * The position of a merge in a single run.
+     */
+    private class Cursor {
+
+        private final int run;
+        private final ByteBuffer buffer;
+        private final int[] ids = new int[dimensionCount];
+
+        private Cursor(int run, ByteBuffer buffer) {
+            this.run = run;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read the group ids of the next record, leaving the buffer positioned at its observation.
+         *
+         * @return false if there are no more records.
+         */
+        private boolean next() {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = buffer.getInt();
+            }
+            return true;
+        }
+    }
+}
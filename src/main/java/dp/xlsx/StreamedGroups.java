@@ -0,0 +1,92 @@
+package dp.xlsx;
+
+import com.univocity.parsers.common.TextParsingException;
+import com.univocity.parsers.csv.CsvParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The groups of a V4 file which is already in display order, read straight from the file one group at a time.
+ * <p>
+ * The rows of each group are together in the file, so a group is complete as soon as a row of the next group is
+ * read. Each group is only valid until the next one is read - the observations of every group are held in a single
+ * store which is reused.
+ */
+class StreamedGroups implements Iterator<Group>, Closeable {
+
+    private final CsvParser parser;
+    private final GroupExtractor groupExtractor;
+    private final int headerOffset;
+    private final ObservationStore observations;
+
+    private final int[] ids;
+    private final int[] nextIds;
+    private String[] nextRow;
+
+    /**
+     * @param parser         a parser positioned at the first observation row of the file.
+     * @param groupExtractor the extractor which encoded the dimension options of the file.
+     * @param headerOffset   the v4 file offset.
+     * @param dictionaries   a store holding the dictionaries of the observations.
+     */
+    StreamedGroups(CsvParser parser, GroupExtractor groupExtractor, int headerOffset, ObservationStore dictionaries) {
+        this.parser = parser;
+        this.groupExtractor = groupExtractor;
+        this.headerOffset = headerOffset;
+        this.observations = new ObservationStore(dictionaries);
+        this.ids = new int[groupExtractor.getDimensionCount()];
+        this.nextIds = new int[ids.length];
+        readNextRow();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRow != null;
+    }
+
+    @Override
+    public Group next() {
+        if (nextRow == null) {
+            throw new NoSuchElementException();
+        }
+
+        System.arraycopy(nextIds, 0, ids, 0, ids.length);
+        observations.clear();
+
+        do {
+            observations.add(0, nextRow[headerOffset + 1], nextRow[0], nextRow, 1);
+            readNextRow();
+        } while (nextRow != null && Arrays.equals(ids, nextIds));
+
+        observations.seal(1);
+        return groupExtractor.createGroup(new GroupKey(ids.clone()), 0, observations);
+    }
+
+    /**
+     * Stop reading the file.
+     */
+    @Override
+    public void close() {
+        nextRow = null;
+        parser.stopParsing();
+    }
+
+    private void readNextRow() {
+        try {
+            do {
+                nextRow = parser.parseNext();
+            } while (nextRow != null && nextRow.length == 0);
+        } catch (TextParsingException e) {
+            throw new UncheckedIOException(new IOException("error while parsing v4 file", e));
+        }
+
+        if (nextRow != null) {
+            groupExtractor.extractObsRow(nextRow, headerOffset, nextIds);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package dp.xlsx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a small int id to each distinct string, in the order the strings are first seen, so a column of repeated
+ * values can be held as ids with each value held once.
+ */
+class StringDictionary {
+
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * Get the id of a value, adding it to the dictionary if it has not been seen before.
+     */
+    int encode(String value) {
+        final Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+
+        final int newId = values.size();
+        values.add(value);
+        ids.put(value, newId);
+        return newId;
+    }
+
+    /**
+     * @return the id of a value, or -1 if it is not in the dictionary.
+     */
+    int idOf(String value) {
+        final Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Add every value of another dictionary to this one, in the order of their ids in the other.
+     *
+     * @return the id in this dictionary of each value of the other, indexed by its id in the other.
+     */
+    int[] merge(StringDictionary other) {
+        final int[] merged = new int[other.values.size()];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = encode(other.values.get(i));
+        }
+        return merged;
+    }
+
+    String get(int id) {
+        return values.get(id);
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * @return every value in the dictionary, in id order.
+     */
+    List<String> values() {
+        return Collections.unmodifiableList(values);
+    }
+}
@@ -0,0 +1,202 @@
+package dp.xlsx;
+
+import com.univocity.parsers.common.TextParsingException;
+import com.univocity.parsers.csv.CsvParser;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The groups and observations of a range of rows of a V4 file, parsed independently of the rest of the file with
+ * their own dictionaries so that ranges can be parsed concurrently and then merged, see {@link V4File}.
+ */
+class V4Chunk {
+
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    private final GroupExtractor groupExtractor = new GroupExtractor();
+    private final GroupTable groups = new GroupTable();
+    private final ObservationStore observations;
+    private long rowCount;
+
+    private V4Chunk(String[] header, int headerOffset) {
+        groupExtractor.extractHeaderRow(header, headerOffset, null);
+        observations = new ObservationStore(headerOffset - 1);
+    }
+
+    /**
+     * Split a V4 file into chunks of whole rows. A chunk ends at the first line break after it reaches the chunk size
+     * which is not inside a quoted value, so a value spanning lines is never split.
+     * <p>
+     * Whether a line break is inside a quoted value depends on every quote before it, so the file is scanned in
+     * segments of the chunk size concurrently: each segment finds its first line break both as if it started inside
+     * and outside quotes, along with whether it holds an odd number of quotes, and the segments are then combined in
+     * order. UTF-8 never uses the bytes of a quote or a line feed within a multi-byte character, so the file can be
+     * scanned without decoding it.
+     *
+     * @param file      the V4 file.
+     * @param chunkSize the size in bytes each chunk should be at least.
+     * @param executor  the executor the segments are scanned on.
+     * @return the offset each chunk starts at, starting with the end of the header row, followed by the size of the
+     * file.
+     */
+    static long[] split(Path file, long chunkSize, ExecutorService executor) throws IOException {
+        final long size = Files.size(file);
+
+        final List<Future<Segment>> segments = new ArrayList<>();
+        for (long start = 0; start < size; start += chunkSize) {
+            final long segmentStart = start;
+            final long segmentEnd = Math.min(size, start + chunkSize);
+            segments.add(executor.submit(() -> Segment.scan(file, segmentStart, segmentEnd)));
+        }
+
+        final List<Long> boundaries = new ArrayList<>();
+        boolean quoted = false;
+        for (Future<Segment> future : segments) {
+            final Segment segment = getSegment(future);
+            final long boundary = quoted ? segment.firstBoundaryQuoted : segment.firstBoundary;
+            if (boundary >= 0) {
+                boundaries.add(boundary);
+            }
+            quoted ^= segment.oddQuotes;
+        }
+
+        if (boundaries.isEmpty() || boundaries.get(boundaries.size() - 1) < size) {
+            boundaries.add(size);
+        }
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Parse the rows of a V4 file between two offsets returned by {@link #split}.
+     *
+     * @param file            the V4 file.
+     * @param start           the offset of the first row of the chunk.
+     * @param end             the offset after the last row of the chunk.
+     * @param header          the header row of the file.
+     * @param headerOffset    the v4 file offset.
+     * @param inputBufferSize the number of characters to read from the file at a time.
+     */
+    static V4Chunk parse(Path file, long start, long end, String[] header, int headerOffset, int inputBufferSize)
+            throws IOException {
+
+        final V4Chunk chunk = new V4Chunk(header, headerOffset);
+
+        final CsvParser parser = V4File.createParser(inputBufferSize);
+
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             final Reader reader = new InputStreamReader(BoundedInputStream.builder()
+                     .setInputStream(Channels.newInputStream(channel.position(start)))
+                     .setMaxCount(end - start)
+                     .get(), StandardCharsets.UTF_8)) {
+
+            parser.beginParsing(reader);
+
+            final int[] ids = new int[chunk.groupExtractor.getDimensionCount()];
+
+            String[] row;
+            while ((row = parser.parseNext()) != null) {
+                if (row.length == 0) {
+                    continue;
+                }
+                V4File.addRow(chunk.groupExtractor, chunk.groups, chunk.observations, ids, row, headerOffset);
+                chunk.rowCount++;
+            }
+        } catch (TextParsingException e) {
+            throw new IOException("error while parsing v4 file", e);
+        } finally {
+            parser.stopParsing();
+        }
+
+        return chunk;
+    }
+
+    GroupExtractor getGroupExtractor() {
+        return groupExtractor;
+    }
+
+    GroupTable getGroups() {
+        return groups;
+    }
+
+    ObservationStore getObservations() {
+        return observations;
+    }
+
+    long getRowCount() {
+        return rowCount;
+    }
+
+    private static Segment getSegment(Future<Segment> segment) throws IOException {
+        try {
+            return segment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while splitting v4 file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("error while splitting v4 file", e.getCause());
+        }
+    }
+
+    /**
+     * The result of scanning a segment of a file for the end of a row.
+     */
+    private static class Segment {
+
+        private boolean oddQuotes;
+        private long firstBoundary = -1; // the offset after the first line break, if the segment starts unquoted
+        private long firstBoundaryQuoted = -1; // as above, if the segment starts inside a quoted value
+
+        private static Segment scan(Path file, long start, long end) throws IOException {
+            final Segment segment = new Segment();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(SCAN_BUFFER_SIZE, end - start));
+            final byte[] bytes = buffer.array();
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long position = start;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    final int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        break;
+                    }
+
+                    for (int i = 0; i < read; i++) {
+                        final byte b = bytes[i];
+                        if (b == '"') {
+                            segment.oddQuotes = !segment.oddQuotes;
+                        } else if (b == '\n') {
+                            // outside quotes if the quotes so far leave the segment's starting state unchanged
+                            if (!segment.oddQuotes && segment.firstBoundary < 0) {
+                                segment.firstBoundary = position + i + 1;
+                            } else if (segment.oddQuotes && segment.firstBoundaryQuoted < 0) {
+                                segment.firstBoundaryQuoted = position + i + 1;
+                            }
+                        }
+                    }
+                    position += read;
+                }
+            }
+            return segment;
+        }
+    }
+}
@@ -1,111 +1,602 @@
 package dp.xlsx;
 
+import com.univocity.parsers.common.TextParsingException;
 import com.univocity.parsers.csv.CsvParser;
 import com.univocity.parsers.csv.CsvParserSettings;
 import dp.api.dataset.models.Metadata;
+import org.apache.commons.io.function.IOSupplier;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.springframework.util.StringUtils;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static dp.logging.LogEvent.info;
 
 /**
  * A class used to extract information from a V4 file.
  */
-class V4File {
+class V4File implements Closeable {
+
+    /**
+     * The default number of characters read from the input stream at a time
+     */
+    static final int DEFAULT_INPUT_BUFFER_SIZE = 1024 * 1024;
 
-    private final Collection<Group> groupData;
-    private final Set<String> uniqueTimeValues;
+    /**
+     * The default heap the groups and observations of a file may use before they are spilled to disk
+     */
+    static final long DEFAULT_HEAP_BUDGET = 256L * 1024 * 1024;
+
+    // an approximation of the heap used by a group, excluding its dimension option ids
+    private static final int GROUP_HEAP_SIZE = 128;
+
+    // the bounds of the size in bytes of each chunk of a file parsed concurrently
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // a parsed chunk is held on the heap until it is merged, and uses about as many bytes of heap as it has in the
+    // file. Chunks waiting to be merged may use up to this share of the heap budget
+    private static final int IN_FLIGHT_CHUNKS_SHARE = 2;
+
+    private final GroupExtractor groupExtractor = new GroupExtractor();
+    private final List<StreamedGroups> streamedGroups = new ArrayList<>();
+    private final int inputBufferSize;
+    private Collection<Group> groupData;
+    private ObservationStore observations;
+    private SpilledGroups spilledGroups;
+    private Path sortedFile;
+    private int headerOffset;
     private Group headerGroup;
     private String[] additionalHeaders;
+    private int widestObservation; // of a file streamed from disk, whose observations are not added to the store
+    private int maxRunSize;
+    private long rowCount;
 
     V4File(final InputStream inputStream, Metadata datasetMetadata) throws IOException {
+        this(inputStream, datasetMetadata, DEFAULT_INPUT_BUFFER_SIZE);
+    }
+
+    V4File(final InputStream inputStream, Metadata datasetMetadata, int inputBufferSize) throws IOException {
+        this(inputStream, datasetMetadata, inputBufferSize, DEFAULT_HEAP_BUDGET);
+    }
+
+    /**
+     * Parse a V4 file, streaming it straight from the input rather than reading it line by line. Quoted values may
+     * span multiple lines, and the input is always decoded as UTF-8.
+     * <p>
+     * If the groups and observations of the file would use more than the heap budget they are sorted and spilled to
+     * disk, and the rest of the file is spilled in runs of the same size. A run is also spilled once it holds as many
+     * observations as a run on disk can, however large the budget. The file must then be closed to delete the spilled
+     * runs once its groups have been read.
+     *
+     * @param inputStream     the V4 file.
+     * @param datasetMetadata the metadata of the dataset version the file belongs to.
+     * @param inputBufferSize the number of characters to read from the input at a time.
+     * @param heapBudget      the heap in bytes the groups and observations may use before they are spilled to disk.
+     */
+    V4File(final InputStream inputStream, Metadata datasetMetadata, int inputBufferSize, long heapBudget)
+            throws IOException {
 
-        final Map<Group, Group> groups = new HashMap<>();
-        final GroupExtractor groupExtractor = new GroupExtractor();
+        GroupTable groups = new GroupTable();
 
-        try (final InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-             final BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+        this.inputBufferSize = inputBufferSize;
+        final CsvParser parser = createParser(inputBufferSize);
 
-            uniqueTimeValues = new HashSet<>();
+        try (final Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
 
-            String line;
-            int headerOffset = 0;
+            parser.beginParsing(reader);
+            readHeader(parser, datasetMetadata);
 
-            CsvParserSettings settings = new CsvParserSettings();
-            settings.setEmptyValue("");
-            settings.setNullValue("");
-            CsvParser parser = new CsvParser(settings);
+            final int[] ids = new int[groupExtractor.getDimensionCount()];
+            long rowCount = 0;
 
-            if ((line = bufferedReader.readLine()) != null) {
+            String[] row;
+            while ((row = parser.parseNext()) != null) {
 
-                final String[] header = parser.parseLine(line);
-                if (header == null || header.length == 0) {
-                    throw new IOException("header row does not contain any content");
+                if (row.length == 0) {
+                    continue;
                 }
 
-                final String v4Code = header[0];
+                if (isOverBudget(groups, 1, heapBudget)) {
+                    spill(groups);
+                    groups = new GroupTable();
+                }
 
-                headerOffset = Integer.parseInt(v4Code.split("_")[1]) + 1;
-                headerGroup = groupExtractor.extractHeaderRow(header, headerOffset, datasetMetadata);
+                addRow(groupExtractor, groups, observations, ids, row, headerOffset);
+                rowCount++;
+            }
 
-                additionalHeaders = Arrays.copyOfRange(header, 1, headerOffset);
+            finish(groups, rowCount);
+        } catch (TextParsingException e) {
+            close();
+            throw new IOException("error while parsing v4 file", e);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        } finally {
+            parser.stopParsing();
+        }
+    }
+
+    /**
+     * Parse a V4 file on disk, splitting it into chunks of whole rows which are parsed concurrently and merged in
+     * order, so the result is the same as parsing the file from start to end. Each chunk is parsed with its own
+     * dictionaries, which are merged into those of the file along with the groups and observations of the chunk.
+     * <p>
+     * The chunks parsed but not yet merged count against the heap budget, so fewer are parsed ahead of the merge, and
+     * the groups are spilled sooner, the more of the budget they use.
+     *
+     * @param file            the V4 file.
+     * @param datasetMetadata the metadata of the dataset version the file belongs to.
+     * @param inputBufferSize the number of characters to read from the file at a time.
+     * @param heapBudget      the heap in bytes the groups and observations may use before they are spilled to disk.
+     * @param parallelism     the number of chunks parsed at once.
+     * @param executor        the executor the chunks are parsed on, which may be shared by other files.
+     */
+    private V4File(final Path file, Metadata datasetMetadata, int inputBufferSize, long heapBudget, int parallelism,
+                   ExecutorService executor) throws IOException {
+
+        this.inputBufferSize = inputBufferSize;
+        final CsvParser parser = createParser(inputBufferSize);
+        final String[] header;
+
+        try (final Reader reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+            parser.beginParsing(reader);
+            header = readHeader(parser, datasetMetadata);
+        } catch (TextParsingException e) {
+            throw new IOException("error while parsing v4 file", e);
+        } finally {
+            parser.stopParsing();
+        }
+
+        final long inFlightBudget = heapBudget / IN_FLIGHT_CHUNKS_SHARE;
+        final long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE,
+                Math.min(Files.size(file), inFlightBudget) / (parallelism * 2L)));
+        final Deque<PendingChunk> pending = new ArrayDeque<>();
+
+        try {
+            final long[] boundaries = V4Chunk.split(file, chunkSize, executor);
+            info().data("chunks", boundaries.length - 1).data("parallelism", parallelism)
+                    .log("parsing v4 file in chunks");
+
+            GroupTable groups = new GroupTable();
+            final int offset = headerOffset;
+            long rowCount = 0;
+            long inFlight = 0;
+            int next = 0;
+
+            while (next < boundaries.length - 1 || !pending.isEmpty()) {
+
+                // keep every thread busy, without getting so far ahead of the merge that parsed chunks pile up
+                while (next < boundaries.length - 1 && pending.size() < parallelism * 2) {
+                    final long start = boundaries[next];
+                    final long end = boundaries[next + 1];
+                    if (!pending.isEmpty() && inFlight + (end - start) > inFlightBudget) {
+                        break;
+                    }
+                    pending.add(new PendingChunk(executor.submit(
+                            () -> V4Chunk.parse(file, start, end, header, offset, inputBufferSize)), end - start));
+                    inFlight += end - start;
+                    next++;
+                }
+
+                final PendingChunk pendingChunk = pending.poll();
+                final V4Chunk chunk = getChunk(pendingChunk.chunk());
+
+                // the chunk is on the heap until it is merged, as are the chunks parsed ahead of it
+                if (isOverBudget(groups, chunk.getObservations().size(), heapBudget - inFlight)) {
+                    spill(groups);
+                    groups = new GroupTable();
+                }
+
+                merge(chunk, groups);
+                rowCount += chunk.getRowCount();
+                inFlight -= pendingChunk.size();
             }
 
-            while ((line = bufferedReader.readLine()) != null) {
+            finish(groups, rowCount);
+        } catch (IOException | RuntimeException e) {
+            for (PendingChunk chunk : pending) {
+                chunk.chunk().cancel(true);
+            }
+            close();
+            throw e;
+        }
+    }
 
-                final String[] row = parser.parseLine(line);
-                if (row == null || row.length == 0) {
+    /**
+     * Scan a V4 file without holding its observations, collecting its time labels and checking whether its groups are
+     * already in display order. If they are, {@link #orderedGroups()} reads the groups straight from the file as they
+     * are iterated. The scan stops as soon as a group is found out of order.
+     *
+     * @param input the content of the file, which is scanned as it is written to the file and closed.
+     * @param file  waits for the whole file to be written, and returns it.
+     */
+    private V4File(final InputStream input, IOSupplier<Path> file, Metadata datasetMetadata, int inputBufferSize)
+            throws IOException {
+
+        this.inputBufferSize = inputBufferSize;
+        final CsvParser parser = createParser(inputBufferSize);
+
+        try (final Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+
+            parser.beginParsing(reader);
+            readHeader(parser, datasetMetadata);
+
+            final StringDictionary timeLabels = observations.getTimeLabels();
+            int[] ids = new int[groupExtractor.getDimensionCount()];
+            int[] previousIds = new int[ids.length];
+            long rowCount = 0;
+
+            String[] row;
+            while ((row = parser.parseNext()) != null) {
+
+                if (row.length == 0) {
                     continue;
                 }
 
-                final Group group = groupExtractor.extractObsRow(row, headerOffset);
-                final String timeValue = row[headerOffset + 1];
-                final String observation = row[0];
-                final String additionalData[] = Arrays.copyOfRange(row, 1, headerOffset);
-
-                if (groups.containsKey(group)) {
-                    uniqueTimeValues.add(timeValue);
-                    groups.get(group).addObservation(timeValue, observation, additionalData);
-                } else {
-                    uniqueTimeValues.add(timeValue);
-                    group.addObservation(timeValue, observation, additionalData);
-                    groups.put(group, group);
+                groupExtractor.extractObsRow(row, headerOffset, ids);
+
+                // the rows of a group must be together, and each group must come after the group before it
+                if (rowCount > 0 && !Arrays.equals(ids, previousIds)
+                        && groupExtractor.compareOptions(previousIds, ids) >= 0) {
+                    info().data("row", rowCount).log("v4 file is not in display order");
+                    return;
                 }
+
+                timeLabels.encode(row[headerOffset + 1]);
+                if (row[0] != null) {
+                    widestObservation = Math.max(widestObservation, row[0].length());
+                }
+
+                final int[] swap = previousIds;
+                previousIds = ids;
+                ids = swap;
+                rowCount++;
             }
 
-            if (groups.size() < 1) {
+            if (rowCount < 1) {
                 throw new IOException("Two or more csv rows are need to generate a XLSX file");
             }
 
-            groupData = groups.values();
+            this.rowCount = rowCount;
+            sortedFile = file.get();
+        } catch (TextParsingException e) {
+            throw new IOException("error while parsing v4 file", e);
+        } finally {
+            parser.stopParsing();
+        }
+    }
+
+    /**
+     * Read a V4 file from disk. If its groups are already in display order they are streamed from the file by
+     * {@link #orderedGroups()}, so only a single group is held at a time. Otherwise the file is read into memory, as
+     * by {@link #read}. The file must not be deleted until this is closed.
+     *
+     * @param file            the V4 file.
+     * @param datasetMetadata the metadata of the dataset version the file belongs to.
+     * @param inputBufferSize the number of characters to read from the file at a time.
+     * @param heapBudget      the heap in bytes the groups and observations may use before they are spilled to disk.
+     * @param parallelism     the number of chunks of the file parsed at once if it is read into memory.
+     * @param executor        the executor chunks are parsed on, or null to parse the file on the calling thread.
+     */
+    static V4File open(final Path file, Metadata datasetMetadata, int inputBufferSize, long heapBudget,
+                       int parallelism, ExecutorService executor) throws IOException {
+
+        try (final InputStream input = Files.newInputStream(file)) {
+            return open(input, () -> file, datasetMetadata, inputBufferSize, heapBudget, parallelism, executor);
+        }
+    }
+
+    /**
+     * Read a V4 file which is still being written to disk, such as a download in progress, as by
+     * {@link #open(Path, Metadata, int, long, int, ExecutorService)}. The file is scanned for its order from its
+     * content as it arrives, and only waited for once the scan has read all of it or has found the file out of order.
+     *
+     * @param input the content of the file as it is written to it, which is read but not closed.
+     * @param file  waits for the whole file to be written, and returns it.
+     */
+    static V4File open(final InputStream input, IOSupplier<Path> file, Metadata datasetMetadata, int inputBufferSize,
+                       long heapBudget, int parallelism, ExecutorService executor) throws IOException {
+
+        final V4File scanned = new V4File(CloseShieldInputStream.wrap(input), file, datasetMetadata, inputBufferSize);
+        if (scanned.isStreamed()) {
+            info().log("v4 file is in display order, streaming groups from file");
+            return scanned;
+        }
+
+        return read(file.get(), datasetMetadata, inputBufferSize, heapBudget, parallelism, executor);
+    }
+
+    /**
+     * Parse a V4 file on disk, in chunks parsed concurrently on an executor if there is one, the parallelism is
+     * greater than one and the file is large enough to be worth splitting.
+     */
+    static V4File read(final Path file, Metadata datasetMetadata, int inputBufferSize, long heapBudget, int parallelism,
+                       ExecutorService executor) throws IOException {
+
+        if (executor != null && parallelism > 1 && Files.size(file) >= 2 * MIN_CHUNK_SIZE) {
+            return new V4File(file, datasetMetadata, inputBufferSize, heapBudget, parallelism, executor);
+        }
+
+        try (final InputStream inputStream = Files.newInputStream(file)) {
+            return new V4File(inputStream, datasetMetadata, inputBufferSize, heapBudget);
+        }
+    }
+
+    /**
+     * Add an observation row of a V4 file to a group, creating the group if it is the first row of the group.
+     *
+     * @param ids populated with the dimension option ids of the row.
+     */
+    static void addRow(GroupExtractor groupExtractor, GroupTable groups, ObservationStore observations, int[] ids,
+                       String[] row, int headerOffset) {
+
+        groupExtractor.extractObsRow(row, headerOffset, ids);
+        final int hash = GroupKey.hash(ids);
+        final String timeValue = row[headerOffset + 1];
+        final String observation = row[0];
+
+        Group group = groups.get(ids, hash);
+        if (group == null) {
+            final GroupKey key = new GroupKey(ids.clone(), hash);
+            group = groupExtractor.createGroup(key, groups.size(), observations);
+            groups.put(key, group);
+        }
+
+        observations.add(group.getIndex(), timeValue, observation, row, 1);
+    }
+
+    /**
+     * @param cells the number of observations about to be added.
+     * @return true if the groups and observations parsed so far must be spilled before more observations are added:
+     * because the store would grow beyond the heap budget to hold them, or the run would be too large to spill.
+     */
+    private boolean isOverBudget(GroupTable groups, int cells, long heapBudget) {
+        if (observations.size() == 0) {
+            return false;
+        }
+        final long groupHeapSize = GROUP_HEAP_SIZE + 2L * Integer.BYTES * groupExtractor.getDimensionCount();
+        return observations.getHeapSize(cells) + groups.size() * groupHeapSize > heapBudget
+                || (long) observations.size() + cells > maxRunSize;
+    }
+
+    private void finish(GroupTable groups, long rowCount) throws IOException {
+        if (rowCount < 1) {
+            throw new IOException("Two or more csv rows are need to generate a XLSX file");
+        }
+        this.rowCount = rowCount;
+
+        if (spilledGroups != null) {
+            if (groups.size() > 0) {
+                spill(groups);
+            }
+        } else {
+            observations.seal(groups.size());
+            groupData = groups.groups();
+        }
+    }
+
+    /**
+     * Merge the dictionaries, groups and observations of a chunk into those of the file.
+     */
+    private void merge(V4Chunk chunk, GroupTable groups) {
+        final int[][] optionIds = groupExtractor.merge(chunk.getGroupExtractor());
+
+        final Group[] chunkGroups = new Group[chunk.getGroups().size()];
+        for (Group chunkGroup : chunk.getGroups().groups()) {
+            chunkGroups[chunkGroup.getIndex()] = chunkGroup;
+        }
+
+        final int[] groupIndexes = new int[chunkGroups.length];
+        final int[] ids = new int[optionIds.length];
+        for (Group chunkGroup : chunkGroups) {
+            final int[] chunkIds = chunkGroup.getKey().getIds();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = optionIds[i][chunkIds[i]];
+            }
+
+            final int hash = GroupKey.hash(ids);
+            Group group = groups.get(ids, hash);
+            if (group == null) {
+                final GroupKey key = new GroupKey(ids.clone(), hash);
+                group = groupExtractor.createGroup(key, groups.size(), observations);
+                groups.put(key, group);
+            }
+            groupIndexes[chunkGroup.getIndex()] = group.getIndex();
+        }
+
+        observations.addAll(chunk.getObservations(), groupIndexes);
+    }
+
+    /**
+     * A chunk submitted to be parsed, and its size in the file.
+     */
+    private record PendingChunk(Future<V4Chunk> chunk, long size) {
+    }
+
+    private static V4Chunk getChunk(Future<V4Chunk> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing v4 file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof TextParsingException) {
+                throw new IOException("error while parsing v4 file", e.getCause());
+            }
+            throw new IOException("error while parsing v4 file chunk", e.getCause());
+        }
+    }
+
+    static CsvParser createParser(int inputBufferSize) {
+        final CsvParserSettings settings = new CsvParserSettings();
+        settings.setEmptyValue("");
+        settings.setNullValue("");
+        settings.setLineSeparatorDetectionEnabled(true);
+        settings.setInputBufferSize(inputBufferSize);
+        return new CsvParser(settings);
+    }
+
+    private String[] readHeader(CsvParser parser, Metadata datasetMetadata) throws IOException {
+        final String[] header = parser.parseNext();
+        if (header == null || header.length == 0) {
+            throw new IOException("header row does not contain any content");
+        }
+
+        final String v4Code = header[0];
+
+        headerOffset = Integer.parseInt(v4Code.split("_")[1]) + 1;
+        headerGroup = groupExtractor.extractHeaderRow(header, headerOffset, datasetMetadata);
+
+        additionalHeaders = Arrays.copyOfRange(header, 1, headerOffset);
+        observations = new ObservationStore(additionalHeaders.length);
+        maxRunSize = SpilledGroups.getMaxRunSize(groupExtractor.getDimensionCount(), observations);
+        return header;
+    }
+
+    private StreamedGroups streamGroups() {
+        final CsvParser parser = createParser(inputBufferSize);
+        try {
+            parser.beginParsing(new InputStreamReader(Files.newInputStream(sortedFile), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while opening v4 file", e);
+        }
+        parser.parseNext(); // skip the header
+
+        final StreamedGroups groups = new StreamedGroups(parser, groupExtractor, headerOffset, observations);
+        streamedGroups.add(groups);
+        return groups;
+    }
+
+    private void spill(GroupTable groups) throws IOException {
+        if (spilledGroups == null) {
+            info().data("heap_size", observations.getHeapSize()).log("v4 file exceeds heap budget, spilling to disk");
+            spilledGroups = new SpilledGroups(groupExtractor, observations);
+        }
+        spilledGroups.spill(groups.groups(), observations);
+        observations.clear();
+    }
+
+    /**
+     * Delete anything spilled to disk while reading the file, and stop reading any groups streamed from the file.
+     */
+    @Override
+    public void close() {
+        if (spilledGroups != null) {
+            spilledGroups.close();
+        }
+        for (StreamedGroups groups : streamedGroups) {
+            groups.close();
         }
+        streamedGroups.clear();
     }
 
     /**
      * Group the v4 file by all dimension except for the time dimension
      *
      * @return A list of all groups within the v4 file
+     * @throws IllegalStateException if the groups have been spilled to disk or are streamed from the file, see
+     *                               {@link #orderedGroups()}.
      */
     Collection<Group> groupData() {
+        if (spilledGroups != null) {
+            throw new IllegalStateException("the groups of the v4 file have been spilled to disk");
+        }
+        if (sortedFile != null) {
+            throw new IllegalStateException("the groups of the v4 file are streamed from the file");
+        }
         return groupData;
     }
 
+    /**
+     * The groups of the v4 file in display order, see {@link #getGroupOrder()}. If the groups have been spilled to
+     * disk, or the file was already in display order, they are read from disk as they are iterated and each group is
+     * only valid until the next is read.
+     *
+     * @return the groups in display order.
+     */
+    Iterable<Group> orderedGroups() {
+        if (spilledGroups != null) {
+            return spilledGroups::groups;
+        }
+        if (sortedFile != null) {
+            return this::streamGroups;
+        }
+        return groupData.stream().sorted(getGroupOrder()).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the number of observation rows in the v4 file.
+     */
+    long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return true if the groups of the v4 file were too large for the heap budget and have been spilled to disk.
+     */
+    boolean isSpilled() {
+        return spilledGroups != null;
+    }
+
+    /**
+     * @return true if the file was already in display order, so its groups are streamed from the file.
+     */
+    boolean isStreamed() {
+        return sortedFile != null;
+    }
+
+    /**
+     * The order groups are displayed in: by the value of each dimension option in turn, the same as
+     * {@link Group#compareTo(Group)}, but comparing precomputed ranks of the dictionary encoded options rather than
+     * their values.
+     *
+     * @return a comparator for the groups returned by {@link #groupData()}.
+     */
+    Comparator<Group> getGroupOrder() {
+        final int[][] ranks = groupExtractor.rankOptions();
+        return (a, b) -> GroupKey.compare(ranks, a.getKey().getIds(), b.getKey().getIds());
+    }
+
+    /**
+     * @return the observations of every group, indexed by {@link Group#getIndex()} and time label id. If the groups
+     * have been spilled to disk this only holds the dictionaries of the observations, such as the time labels.
+     */
+    ObservationStore getObservations() {
+        return observations;
+    }
+
     /**
      * Return the list of dimensions that will be displayed along the columns of the XLSX output.
      * (not including the time dimension or whichever other dimension is not shown along the rows.)
@@ -116,13 +607,36 @@ class V4File {
         return headerGroup.getGroupValues();
     }
 
+    /**
+     * @param dimension the index of a dimension in {@link #getDimensions()}.
+     * @return the number of characters in the longest value of any option of the dimension.
+     */
+    int getWidestOption(int dimension) {
+        return groupExtractor.getWidestValue(dimension);
+    }
+
+    /**
+     * @param dimension the index of a dimension in {@link #getDimensions()}.
+     * @return the number of characters in the longest code of any option of the dimension.
+     */
+    int getWidestCode(int dimension) {
+        return groupExtractor.getWidestCode(dimension);
+    }
+
+    /**
+     * @return the number of characters in the longest observation value in the file, as it was written.
+     */
+    int getWidestObservation() {
+        return isStreamed() ? widestObservation : observations.getWidestValue();
+    }
+
     /**
      * Get all unique time labels found in the v4 file
      *
      * @return
      */
     List<String> getUniqueTimeLabels() {
-        return new ArrayList<>(uniqueTimeValues);
+        return new ArrayList<>(observations.getTimeLabels().values());
     }
 
     /**
@@ -133,7 +647,8 @@ class V4File {
      */
     Collection<String> getOrderedTimeLabels() {
 
-        String first = uniqueTimeValues.iterator().next();
+        final List<String> uniqueTimeValues = observations.getTimeLabels().values();
+        String first = uniqueTimeValues.get(0);
         String format = DateLabel.determineDateFormat(first);
 
         // if the format is not recognised - just sort alphabetically.
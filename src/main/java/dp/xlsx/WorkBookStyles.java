@@ -1,126 +1,115 @@
 package dp.xlsx;
 
+import dp.xlsx.CellStyleSpec.FontSpec;
 import org.apache.poi.ss.usermodel.*;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The cell styles of a workbook, shared by the data and metadata sheets. Every style is described once by a
+ * {@link CellStyleSpec}, and created in each workbook in the same order, with one style for equal specs and one font
+ * for equal fonts - so a sheet rendered for one workbook refers to the same styles in another.
+ */
 class WorkBookStyles {
 
-    private final CellStyle headingStyle;
-    private final CellStyle headerRightAlignStyle;
-    private final CellStyle valueStyle;
-    private final CellStyle valueRightAlignStyle;
-    private final CellStyle numberStyle;
-    private final CellStyle noteStyle;
+    private static final short FONT_HEIGHT = 14;
 
-    WorkBookStyles(Workbook workbook) {
-        headingStyle = createBoldStyle(workbook);
-        headerRightAlignStyle = createBoldRightAlignStyle(workbook);
-        valueStyle = createStyle(workbook);
-        valueRightAlignStyle = createRightAlignStyle(workbook);
-        numberStyle = createNumberStyle(workbook);
-        noteStyle = createNoteStyle(workbook);
-    }
-
-    private CellStyle createStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial");
-        font.setFontHeightInPoints((short) 14);
-        style.setFont(font);
-        style.setWrapText(true);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-        return style;
-    }
+    private static final FontSpec TEXT_FONT = new FontSpec("Arial", false, false, null);
+    private static final FontSpec BOLD_FONT = new FontSpec("Arial-Bold", true, false, null);
+    private static final FontSpec NUMBER_FONT = new FontSpec("Arial-Number", false, false, null);
+    private static final FontSpec LINK_FONT = new FontSpec("Arial-Link", false, true, IndexedColors.BLUE);
 
-    private CellStyle createRightAlignStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial");
-        font.setFontHeightInPoints((short) 14);
-        style.setFont(font);
-        style.setWrapText(true);
-        style.setAlignment(HorizontalAlignment.RIGHT);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-        return style;
-    }
+    static final CellStyleSpec HEADING = new CellStyleSpec(BOLD_FONT, false, HorizontalAlignment.GENERAL, null);
+    static final CellStyleSpec HEADING_RIGHT_ALIGN = new CellStyleSpec(BOLD_FONT, false, HorizontalAlignment.RIGHT, null);
+    static final CellStyleSpec VALUE = new CellStyleSpec(TEXT_FONT, true, HorizontalAlignment.GENERAL, null);
+    static final CellStyleSpec VALUE_RIGHT_ALIGN = new CellStyleSpec(TEXT_FONT, true, HorizontalAlignment.RIGHT, null);
+    static final CellStyleSpec NUMBER = new CellStyleSpec(NUMBER_FONT, true, HorizontalAlignment.GENERAL,
+            "0.0############################");
+    static final CellStyleSpec NOTE = new CellStyleSpec(TEXT_FONT, false, HorizontalAlignment.GENERAL, null);
+    static final CellStyleSpec LINK = new CellStyleSpec(LINK_FONT, false, HorizontalAlignment.GENERAL, null);
 
-    private CellStyle createLinkStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial-Link");
-        font.setFontHeightInPoints((short) 14);
-        font.setUnderline(Font.U_SINGLE);
-        font.setColor(IndexedColors.BLUE.getIndex());
-        style.setFont(font);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
+    // in the order they are created in each workbook
+    private static final List<CellStyleSpec> SPECS =
+            List.of(HEADING, HEADING_RIGHT_ALIGN, VALUE, VALUE_RIGHT_ALIGN, NUMBER, NOTE, LINK);
 
-        return style;
-    }
+    private final Map<CellStyleSpec, CellStyle> styles = new HashMap<>();
 
-    private CellStyle createBoldStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial-Bold");
-        font.setBold(true);
-        font.setFontHeightInPoints((short) 14);
-        style.setFont(font);
-        style.setWrapText(false);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-        return style;
+    WorkBookStyles(Workbook workbook) {
+        final Map<FontSpec, Font> fonts = new HashMap<>();
+        for (CellStyleSpec spec : SPECS) {
+            styles.computeIfAbsent(spec, s -> createStyle(workbook, s,
+                    fonts.computeIfAbsent(s.font(), f -> createFont(workbook, f))));
+        }
     }
 
-    private CellStyle createBoldRightAlignStyle(Workbook wb) {
-        final CellStyle style = wb.createCellStyle();
+    private static Font createFont(Workbook wb, FontSpec spec) {
         final Font font = wb.createFont();
-        font.setFontName("Arial-Bold");
-        font.setBold(true);
-        font.setFontHeightInPoints((short) 14);
-        style.setFont(font);
-        style.setWrapText(false);
-        style.setAlignment(HorizontalAlignment.RIGHT);
-        style.setVerticalAlignment(VerticalAlignment.TOP);
-        return style;
+        font.setFontName(spec.name());
+        font.setFontHeightInPoints(FONT_HEIGHT);
+        if (spec.bold()) {
+            font.setBold(true);
+        }
+        if (spec.underline()) {
+            font.setUnderline(Font.U_SINGLE);
+        }
+        if (spec.color() != null) {
+            font.setColor(spec.color().getIndex());
+        }
+        return font;
     }
 
-    private CellStyle createNumberStyle(Workbook wb) {
+    private static CellStyle createStyle(Workbook wb, CellStyleSpec spec, Font font) {
         final CellStyle style = wb.createCellStyle();
-        final Font font = wb.createFont();
-        font.setFontName("Arial-Number");
-        font.setFontHeightInPoints((short) 14);
-        style.setDataFormat(wb.createDataFormat().getFormat("0.0############################"));
         style.setFont(font);
-        style.setWrapText(true);
+        style.setWrapText(spec.wrapText());
+        if (spec.alignment() != HorizontalAlignment.GENERAL) {
+            style.setAlignment(spec.alignment());
+        }
         style.setVerticalAlignment(VerticalAlignment.TOP);
+        if (spec.dataFormat() != null) {
+            style.setDataFormat(wb.createDataFormat().getFormat(spec.dataFormat()));
+        }
         return style;
     }
 
-    private CellStyle createNoteStyle(Workbook wb) {
-        CellStyle style = createStyle(wb);
-        style.setWrapText(false);
+    /**
+     * @return the style of the workbook described by a spec.
+     */
+    CellStyle get(CellStyleSpec spec) {
+        final CellStyle style = styles.get(spec);
+        if (style == null) {
+            throw new IllegalArgumentException("no style registered for " + spec);
+        }
         return style;
     }
 
     CellStyle getHeadingStyle() {
-        return headingStyle;
+        return get(HEADING);
     }
 
     CellStyle getHeaderRightAlignStyle() {
-        return headerRightAlignStyle;
+        return get(HEADING_RIGHT_ALIGN);
     }
 
     CellStyle getValueStyle() {
-        return valueStyle;
+        return get(VALUE);
     }
 
     CellStyle getValueRightAlignStyle() {
-        return valueRightAlignStyle;
+        return get(VALUE_RIGHT_ALIGN);
     }
 
-
     CellStyle getNumberStyle() {
-        return numberStyle;
+        return get(NUMBER);
     }
 
     CellStyle getNoteStyle() {
-        return noteStyle;
+        return get(NOTE);
+    }
+
+    CellStyle getLinkStyle() {
+        return get(LINK);
     }
 }
@@ -0,0 +1,228 @@
+package dp.xlsx;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.util.CellReference;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes a sheet as the SpreadsheetML of a worksheet part, straight into the stream of the part, so each cell is
+ * serialised once - rather than written to a temporary file by POI's streaming workbook and copied into the package
+ * when the workbook is written.
+ * <p>
+ * The part is written as POI's streaming workbook would write it: strings are written inline, and cell styles are
+ * referred to by their index in the workbook the part is written into. The stream is flushed but not closed once the
+ * sheet is finished. An {@link IOException} writing to the stream is thrown as an {@link UncheckedIOException}.
+ */
+class XmlSheetWriter implements SheetWriter {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Writer out;
+    private final boolean selected;
+
+    private String[] columnNames = new String[32];
+    private String rowNumber;
+
+    private boolean started;
+    private boolean inSheetData;
+    private boolean inRow;
+
+    /**
+     * @param out      the stream of the worksheet part.
+     * @param selected whether the sheet is the one selected when the workbook is opened.
+     */
+    XmlSheetWriter(OutputStream out, boolean selected) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.selected = selected;
+    }
+
+    @Override
+    public void setColumnWidths(int defaultWidth, Map<Integer, Integer> widths) {
+        if (started) {
+            throw new IllegalStateException("column widths must be set before the first row is written");
+        }
+        try {
+            start(" baseColWidth=\"" + defaultWidth + "\"");
+            if (widths.isEmpty()) {
+                return;
+            }
+
+            out.write("<cols>");
+            for (Map.Entry<Integer, Integer> width : new TreeMap<>(widths).entrySet()) {
+                final String column = Integer.toString(width.getKey() + 1);
+                out.write("<col min=\"");
+                out.write(column);
+                out.write("\" max=\"");
+                out.write(column);
+                out.write("\" width=\"");
+                out.write(Double.toString(width.getValue() / 256.0));
+                out.write("\" customWidth=\"true\"/>");
+            }
+            out.write("</cols>");
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while writing sheet", e);
+        }
+    }
+
+    @Override
+    public void startRow(int row) {
+        try {
+            startSheetData();
+            if (inRow) {
+                out.write("</row>");
+            }
+
+            rowNumber = Integer.toString(row + 1);
+            out.write("\n<row r=\"");
+            out.write(rowNumber);
+            out.write("\">");
+            inRow = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while writing sheet", e);
+        }
+    }
+
+    @Override
+    public void blankCell(int column, CellStyle style) {
+        try {
+            startCell(column, style);
+            out.write("/>");
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while writing sheet", e);
+        }
+    }
+
+    @Override
+    public void stringCell(int column, CellStyle style, String value) {
+        if (value == null) {
+            blankCell(column, style);
+            return;
+        }
+
+        try {
+            startCell(column, style);
+            out.write(" t=\"inlineStr\"><is><t");
+            if (!value.isEmpty()
+                    && (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1)))) {
+                out.write(" xml:space=\"preserve\"");
+            }
+            out.write('>');
+            writeEscaped(value);
+            out.write("</t></is></c>");
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while writing sheet", e);
+        }
+    }
+
+    @Override
+    public void numberCell(int column, CellStyle style, double value) {
+        try {
+            startCell(column, style);
+            out.write(" t=\"n\"><v>");
+            out.write(Double.toString(value));
+            out.write("</v></c>");
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while writing sheet", e);
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            startSheetData();
+            if (inRow) {
+                out.write("</row>");
+            }
+            out.write("\n</sheetData>"
+                    + "<pageMargins bottom=\"0.75\" footer=\"0.3\" header=\"0.3\" left=\"0.7\" right=\"0.7\" top=\"0.75\"/>"
+                    + "</worksheet>");
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("error while writing sheet", e);
+        }
+    }
+
+    /**
+     * Write everything before the rows of the sheet, up to any column widths.
+     */
+    private void start(String columnWidthAttributes) throws IOException {
+        started = true;
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+                + "<sheetViews><sheetView workbookViewId=\"0\"" + (selected ? " tabSelected=\"true\"" : "")
+                + "/></sheetViews>"
+                + "<sheetFormatPr defaultRowHeight=\"15.0\"" + columnWidthAttributes + "/>");
+    }
+
+    private void startSheetData() throws IOException {
+        if (!started) {
+            start("");
+        }
+        if (!inSheetData) {
+            out.write("<sheetData>");
+            inSheetData = true;
+        }
+    }
+
+    private void startCell(int column, CellStyle style) throws IOException {
+        out.write("<c r=\"");
+        out.write(getColumnName(column));
+        out.write(rowNumber);
+        out.write('"');
+        if (style != null) {
+            out.write(" s=\"");
+            out.write(Integer.toString(style.getIndex()));
+            out.write('"');
+        }
+    }
+
+    private String getColumnName(int column) {
+        if (column >= columnNames.length) {
+            columnNames = Arrays.copyOf(columnNames, Math.max(column + 1, columnNames.length * 2));
+        }
+        if (columnNames[column] == null) {
+            columnNames[column] = CellReference.convertNumToColString(column);
+        }
+        return columnNames[column];
+    }
+
+    /**
+     * Write a string escaped as XML text, replacing characters which cannot be written in XML with '?', as POI does.
+     */
+    private void writeEscaped(String value) throws IOException {
+        final int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            final String replacement;
+            switch (c) {
+                case '<' -> replacement = "&lt;";
+                case '>' -> replacement = "&gt;";
+                case '&' -> replacement = "&amp;";
+                case '"' -> replacement = "&quot;";
+                case '\t' -> replacement = "&#x9;";
+                case '\n' -> replacement = "&#xa;";
+                case '\r' -> replacement = "&#xd;";
+                case '\u00A0' -> replacement = "&#xa0;";
+                default -> replacement = c < ' ' || c >= '\uFFFE' ? "?" : null;
+            }
+
+            if (replacement != null) {
+                out.write(value, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, length - start);
+    }
+}
@@ -0,0 +1,140 @@
+package dp.api;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dp.api.APIGuard.DATASET_API;
+import static dp.api.APIGuard.FILTER_API;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class APIGuardTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private APIGuard guard;
+
+    @Before
+    public void setUp() {
+        guard = new APIGuard();
+        ReflectionTestUtils.setField(guard, "retryAttempts", 3);
+        ReflectionTestUtils.setField(guard, "retryBackoff", 1L);
+        ReflectionTestUtils.setField(guard, "maxRetryBackoff", 4L);
+        ReflectionTestUtils.setField(guard, "retryDeadline", 60000L);
+        ReflectionTestUtils.setField(guard, "pollTimeout", 120000L);
+        ReflectionTestUtils.setField(guard, "connectTimeout", 5000L);
+        ReflectionTestUtils.setField(guard, "readTimeout", 30000L);
+        ReflectionTestUtils.setField(guard, "circuitFailures", 4);
+        ReflectionTestUtils.setField(guard, "circuitOpen", 30000L);
+        guard.start(registry, now::get);
+    }
+
+    @Test
+    public void transientFailuresAreRetried() {
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = guard.call(DATASET_API, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new HttpServerErrorException(HttpStatus.BAD_GATEWAY);
+            }
+            return "ok";
+        });
+
+        assertThat(result).isEqualTo("ok");
+        assertThat(calls).hasValue(3);
+        assertThat(registry.get("api.retries").tag("api", DATASET_API).counter().count()).isEqualTo(2);
+        assertThat(guard.isOpen()).isFalse();
+    }
+
+    @Test
+    public void retriesStopOnceTheyCouldTimeOutAfterTheDeadline() {
+        ReflectionTestUtils.setField(guard, "retryAttempts", 5);
+        AtomicInteger calls = new AtomicInteger();
+
+        // each attempt times out reading its response
+        assertThatThrownBy(() -> guard.run(DATASET_API, () -> {
+            calls.incrementAndGet();
+            now.addAndGet(30000);
+            throw new ResourceAccessException("read timed out");
+        })).isInstanceOf(ResourceAccessException.class);
+
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    public void retryDeadlineIsAtMostHalfThePollTimeout() {
+        ReflectionTestUtils.setField(guard, "retryAttempts", 5);
+        ReflectionTestUtils.setField(guard, "pollTimeout", 140000L);
+        ReflectionTestUtils.setField(guard, "retryDeadline", 600000L);
+        AtomicInteger calls = new AtomicInteger();
+
+        // a retry is made while it would time out within 70 seconds of the first attempt
+        assertThatThrownBy(() -> guard.run(FILTER_API, () -> {
+            calls.incrementAndGet();
+            now.addAndGet(15000);
+            throw new HttpServerErrorException(HttpStatus.GATEWAY_TIMEOUT);
+        })).isInstanceOf(HttpServerErrorException.class);
+
+        // the third attempt fails after 45 seconds, when another could take until 80 seconds
+        assertThat(calls).hasValue(3);
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThatThrownBy(() -> guard.run(FILTER_API, () -> {
+            calls.incrementAndGet();
+            throw new HttpClientErrorException(HttpStatus.NOT_FOUND);
+        })).isInstanceOf(HttpClientErrorException.class);
+
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    public void circuitOpensAfterRepeatedFailuresUntilTheAPIRecovers() {
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> guard.run(FILTER_API, () -> {
+                throw new ResourceAccessException("connection refused");
+            })).isInstanceOf(ResourceAccessException.class);
+        }
+
+        assertThat(guard.isOpen()).isTrue();
+        assertThat(guard.getRemainingOpenMillis()).isEqualTo(30000);
+        assertThat(registry.get("api.circuit.open").tag("api", FILTER_API).gauge().value()).isEqualTo(1);
+        assertThat(registry.get("api.circuit.open").tag("api", DATASET_API).gauge().value()).isZero();
+
+        now.addAndGet(30000);
+        assertThat(guard.isOpen()).isFalse();
+        guard.run(FILTER_API, () -> { });
+        assertThat(guard.isOpen()).isFalse();
+    }
+
+    @Test
+    public void circuitReopensIfTheAPIIsStillFailing() {
+        assertThatThrownBy(() -> guard.run(DATASET_API, () -> {
+            throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+        }));
+        assertThatThrownBy(() -> guard.run(DATASET_API, () -> {
+            throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+        }));
+        assertThat(guard.isOpen()).isTrue();
+
+        now.addAndGet(30000);
+        assertThatThrownBy(() -> guard.run(DATASET_API, () -> {
+            throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+        }));
+        assertThat(guard.getRemainingOpenMillis()).isEqualTo(30000);
+    }
+}
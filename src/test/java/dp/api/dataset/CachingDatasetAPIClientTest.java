@@ -0,0 +1,115 @@
+package dp.api.dataset;
+
+import dp.api.dataset.models.DownloadsList;
+import dp.api.dataset.models.Metadata;
+import dp.api.dataset.models.Version;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class CachingDatasetAPIClientTest {
+
+    private static final String VERSION_PATH = "/datasets/cpih01/editions/time-series/versions/1";
+
+    @Mock
+    private DatasetAPIClientImpl datasetAPIClient;
+
+    private CachingDatasetAPIClient client;
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        client = new CachingDatasetAPIClient();
+        setField(client, "datasetAPIClient", datasetAPIClient);
+        setField(client, "publishedTtl", 60000L);
+        setField(client, "unpublishedTtl", 1000L);
+        client.startCaches(new SimpleMeterRegistry(), now::get);
+    }
+
+    @Test
+    public void publishedVersionIsCached() throws Exception {
+        Version published = version("published");
+        when(datasetAPIClient.getVersion(VERSION_PATH)).thenReturn(published);
+
+        assertThat(client.getVersion(VERSION_PATH)).isSameAs(published);
+        assertThat(client.getVersion(VERSION_PATH)).isSameAs(published);
+
+        verify(datasetAPIClient, times(1)).getVersion(VERSION_PATH);
+    }
+
+    @Test
+    public void unpublishedVersionIsNotCached() throws Exception {
+        when(datasetAPIClient.getVersion(VERSION_PATH)).thenReturn(version("associated"), version("published"));
+
+        assertThat(client.getVersion(VERSION_PATH).getState()).isEqualTo("associated");
+        assertThat(client.getVersion(VERSION_PATH).getState()).isEqualTo("published");
+
+        verify(datasetAPIClient, times(2)).getVersion(VERSION_PATH);
+    }
+
+    @Test
+    public void metadataOfUnknownVersionUsesShortTimeToLive() throws Exception {
+        when(datasetAPIClient.getMetadata(VERSION_PATH)).thenReturn(new Metadata());
+
+        client.getMetadata(VERSION_PATH);
+        advance(999);
+        client.getMetadata(VERSION_PATH);
+        verify(datasetAPIClient, times(1)).getMetadata(VERSION_PATH);
+
+        advance(1);
+        client.getMetadata(VERSION_PATH);
+        verify(datasetAPIClient, times(2)).getMetadata(VERSION_PATH);
+    }
+
+    @Test
+    public void metadataOfPublishedVersionUsesLongTimeToLive() throws Exception {
+        when(datasetAPIClient.getVersion(VERSION_PATH)).thenReturn(version("published"));
+        when(datasetAPIClient.getMetadata(VERSION_PATH)).thenReturn(new Metadata());
+
+        client.getVersion(VERSION_PATH);
+        client.getMetadata(VERSION_PATH);
+        advance(59999);
+        client.getMetadata(VERSION_PATH);
+
+        verify(datasetAPIClient, times(1)).getMetadata(VERSION_PATH);
+    }
+
+    @Test
+    public void updatingDownloadsInvalidatesVersion() throws Exception {
+        when(datasetAPIClient.getVersion(VERSION_PATH)).thenReturn(version("published"));
+        when(datasetAPIClient.getMetadata(VERSION_PATH)).thenReturn(new Metadata());
+
+        client.getVersion(VERSION_PATH);
+        client.getMetadata(VERSION_PATH);
+        client.putVersionDownloads(VERSION_PATH, new DownloadsList(null, null));
+        client.getVersion(VERSION_PATH);
+        client.getMetadata(VERSION_PATH);
+
+        verify(datasetAPIClient, times(2)).getVersion(VERSION_PATH);
+        verify(datasetAPIClient, times(2)).getMetadata(VERSION_PATH);
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static Version version(String state) {
+        Version version = new Version();
+        version.setState(state);
+        return version;
+    }
+}
@@ -1,5 +1,6 @@
 package dp.api.dataset;
 
+import dp.api.APIGuard;
 import dp.api.dataset.models.Download;
 import dp.api.dataset.models.DownloadsList;
 import dp.api.dataset.models.Metadata;
@@ -18,12 +19,14 @@ import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.MalformedURLException;
+import java.util.function.Supplier;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -72,7 +75,11 @@ public class DatasetAPIClientImplTest {
 
         this.metadata = new Metadata();
 
+        APIGuard apiGuard = mock(APIGuard.class);
+        given(apiGuard.call(any(), any())).willAnswer(invocation -> invocation.<Supplier<?>>getArgument(1).get());
+
         setField(api, "restTemplate", restTemplateMock);
+        setField(api, "apiGuard", apiGuard);
         setField(api, "datasetAPIURL", DATASET_API_URL);
         setField(api, "token", AUTH_TOKEN);
         setField(api, "serviceToken", AUTH_TOKEN);
@@ -0,0 +1,59 @@
+package dp.api.dataset;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExpiringCacheTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void entriesExpireAfterTheirTimeToLive() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", 10, registry, now::get);
+        cache.put("short", "a", 1000);
+        cache.put("long", "b", 5000);
+        cache.put("never", "c", 0);
+
+        advance(999);
+        assertThat(cache.get("short")).isEqualTo("a");
+        assertThat(cache.get("never")).isNull();
+
+        advance(1);
+        assertThat(cache.get("short")).isNull();
+        assertThat(cache.get("long")).isEqualTo("b");
+        assertThat(cache.size()).isEqualTo(1);
+
+        assertThat(count("cache.gets", "hit")).isEqualTo(2);
+        assertThat(count("cache.gets", "miss")).isEqualTo(2);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedWhenFull() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>("test", 2, registry, now::get);
+        cache.put("a", "1", 1000);
+        cache.put("b", "2", 1000);
+        cache.get("a");
+        cache.put("c", "3", 1000);
+
+        assertThat(registry.get("cache.evictions").counter().count()).isEqualTo(1);
+        assertThat(registry.get("cache.size").gauge().value()).isEqualTo(2);
+        assertThat(cache.get("a")).isEqualTo("1");
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("c")).isEqualTo("3");
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private double count(String name, String result) {
+        return registry.get(name).tag("result", result).counter().count();
+    }
+}
@@ -0,0 +1,95 @@
+package dp.configuration;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AppConfigurationTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    // the remote ports of the connections requests were received on
+    private final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+    private HttpServer server;
+    private CloseableHttpClient client;
+    private RestTemplate restTemplate;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/filters", exchange -> {
+            connections.add(exchange.getRemoteAddress().getPort());
+            final byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+
+        AppConfiguration configuration = new AppConfiguration();
+        ReflectionTestUtils.setField(configuration, "maxConnections", 4);
+        ReflectionTestUtils.setField(configuration, "maxConnectionsPerRoute", 2);
+        ReflectionTestUtils.setField(configuration, "connectTimeout", 1000L);
+        ReflectionTestUtils.setField(configuration, "readTimeout", 200L);
+        ReflectionTestUtils.setField(configuration, "keepAlive", 30000L);
+        client = configuration.createApiHttpClient(registry);
+        restTemplate = configuration.restTemplate(client);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void connectionsAreReusedBetweenRequests() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(restTemplate.getForObject(url("/filters"), String.class)).isEqualTo("{}");
+        }
+
+        assertThat(connections).hasSize(1);
+        assertThat(registry.get("httpcomponents.httpclient.pool.total.connections").tag("state", "available")
+                .gauge().value()).isEqualTo(1);
+        assertThat(registry.get("httpcomponents.httpclient.pool.total.max").gauge().value()).isEqualTo(4);
+        assertThat(registry.get("httpcomponents.httpclient.pool.route.max.default").gauge().value()).isEqualTo(2);
+    }
+
+    @Test
+    public void slowResponsesTimeOut() {
+        assertThatThrownBy(() -> restTemplate.getForObject(url("/slow"), String.class))
+                .isInstanceOf(ResourceAccessException.class);
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+}
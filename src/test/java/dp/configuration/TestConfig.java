@@ -5,6 +5,10 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 
+import dp.dedup.ExportIndex;
+import dp.dedup.InMemoryExportIndex;
+import dp.dedup.InMemoryProcessingRegistry;
+import dp.dedup.ProcessingRegistry;
 import dp.handler.Handler;
 import dp.xlsx.Converter;
 
@@ -22,4 +26,15 @@ public class TestConfig {
 	Converter getConverter() {
 		return new Converter();
 	}
+
+	@Bean
+	ExportIndex getExportIndex() {
+		return new InMemoryExportIndex(16);
+	}
+
+	// messages are not dropped as duplicates once completed, as tests export the same messages
+	@Bean
+	ProcessingRegistry getProcessingRegistry() {
+		return new InMemoryProcessingRegistry(0);
+	}
 }
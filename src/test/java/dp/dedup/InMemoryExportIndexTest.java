@@ -0,0 +1,55 @@
+package dp.dedup;
+
+import dp.api.dataset.models.Metadata;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InMemoryExportIndexTest {
+
+    @Test
+    public void getReturnsWorkbookPut() {
+        final InMemoryExportIndex index = new InMemoryExportIndex(2);
+        index.put("a", new ExportedWorkbook("bucket", "a.xlsx", 10));
+
+        assertThat(index.get("a").getKey()).isEqualTo("a.xlsx");
+        assertThat(index.get("a").getContentLength()).isEqualTo(10);
+        assertThat(index.get("b")).isNull();
+    }
+
+    @Test
+    public void leastRecentlyUsedWorkbookIsForgotten() {
+        final InMemoryExportIndex index = new InMemoryExportIndex(2);
+        index.put("a", new ExportedWorkbook("bucket", "a.xlsx", 10));
+        index.put("b", new ExportedWorkbook("bucket", "b.xlsx", 20));
+        index.get("a");
+        index.put("c", new ExportedWorkbook("bucket", "c.xlsx", 30));
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.get("a")).isNotNull();
+        assertThat(index.get("b")).isNull();
+        assertThat(index.get("c")).isNotNull();
+    }
+
+    @Test
+    public void removedWorkbookIsForgotten() {
+        final InMemoryExportIndex index = new InMemoryExportIndex(2);
+        index.put("a", new ExportedWorkbook("bucket", "a.xlsx", 10));
+        index.remove("a");
+
+        assertThat(index.get("a")).isNull();
+    }
+
+    @Test
+    public void contentKeyChangesWithETagAndMetadata() throws Exception {
+        final Metadata metadata = new Metadata();
+        final Metadata otherMetadata = new Metadata();
+        otherMetadata.setTitle("other");
+
+        final String key = ExportIndex.contentKeyOf("\"etag\"", metadata);
+
+        assertThat(ExportIndex.contentKeyOf("\"etag\"", new Metadata())).isEqualTo(key);
+        assertThat(ExportIndex.contentKeyOf("\"other\"", metadata)).isNotEqualTo(key);
+        assertThat(ExportIndex.contentKeyOf("\"etag\"", otherMetadata)).isNotEqualTo(key);
+    }
+}
@@ -0,0 +1,57 @@
+package dp.dedup;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InMemoryProcessingRegistryTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final InMemoryProcessingRegistry registry = new InMemoryProcessingRegistry(1000, now::get);
+
+    @Test
+    public void exportBeingProcessedIsDuplicate() {
+        assertThat(registry.tryStart("a")).isTrue();
+        assertThat(registry.tryStart("a")).isFalse();
+        assertThat(registry.tryStart("b")).isTrue();
+
+        now.addAndGet(5000);
+
+        assertThat(registry.tryStart("a")).isFalse();
+    }
+
+    @Test
+    public void completedExportIsDuplicateWithinWindow() {
+        registry.tryStart("a");
+        registry.complete("a");
+
+        now.addAndGet(999);
+        assertThat(registry.tryStart("a")).isFalse();
+
+        now.addAndGet(1);
+        assertThat(registry.tryStart("a")).isTrue();
+    }
+
+    @Test
+    public void abandonedExportIsNotDuplicate() {
+        registry.tryStart("a");
+        registry.abandon("a");
+
+        assertThat(registry.tryStart("a")).isTrue();
+    }
+
+    @Test
+    public void expiredExportsAreForgotten() {
+        registry.tryStart("a");
+        registry.complete("a");
+        registry.tryStart("b");
+
+        now.addAndGet(1000);
+        registry.tryStart("c");
+
+        assertThat(registry.size()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,67 @@
+package dp.deserializer;
+
+import dp.avro.ExportedFile;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the records per second deserialized from a typical ExportedFile message, creating the schema, reader and
+ * decoder for every record as the deserializer used to, and with the {@link AvroDeserializer} which creates them once.
+ * <p>
+ * Run with {@code make bench BENCH=AvroDeserializerBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class AvroDeserializerBenchmark {
+
+    private final AvroDeserializer<ExportedFile> deserializer = new AvroDeserializer<>(ExportedFile.class);
+
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ExportedFile message = new ExportedFile("", "s3://csv-exported/datasets/cpih01-time-series-v12.csv",
+                "7b3b4f3a-9a2e-4d52-8e3b-0d6a54f4b5f1", "cpih01", "time-series", "12", "cpih01-time-series-v12",
+                123456);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        new SpecificDatumWriter<ExportedFile>(ExportedFile.getClassSchema()).write(message, encoder);
+        encoder.flush();
+        data = out.toByteArray();
+    }
+
+    @Benchmark
+    public ExportedFile readerPerRecord() throws Exception {
+        final DatumReader<ExportedFile> datumReader =
+                new SpecificDatumReader<>(ExportedFile.class.getDeclaredConstructor().newInstance().getSchema());
+        final Decoder decoder = DecoderFactory.get().binaryDecoder(data, null);
+        return datumReader.read(null, decoder);
+    }
+
+    @Benchmark
+    public ExportedFile cachedReader() {
+        return deserializer.deserialize("common-output-created", data);
+    }
+}
@@ -1,13 +1,20 @@
 package dp.deserializer;
 
 import dp.avro.ExportedFile;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.message.BinaryMessageEncoder;
+import org.apache.avro.message.SchemaStore;
+import org.apache.avro.specific.SpecificData;
 import org.apache.avro.specific.SpecificDatumWriter;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -41,6 +48,60 @@ public class AvroDeserializerTest {
         assertThat(exportedFile.getRowCount()).isEqualTo(rowCount);
     }
 
+    @Test
+    public void singleObjectEncodedMessageWithCurrentSchema() throws Exception {
+        AvroDeserializer<ExportedFile> resolving = new AvroDeserializer<>(ExportedFile.class, new SchemaStore.Cache());
+        ExportedFile f = new ExportedFile(filterID, s3URL, instanceID, datasetID, edition, version, filename, rowCount);
+
+        byte[] data = toBytes(new BinaryMessageEncoder<ExportedFile>(SpecificData.get(), ExportedFile.getClassSchema()).encode(f));
+
+        final ExportedFile exportedFile = resolving.deserialize("test", data);
+        assertThat(exportedFile).isEqualTo(f);
+    }
+
+    @Test
+    public void singleObjectEncodedMessageIsResolvedFromWriterSchema() throws Exception {
+        Schema olderSchema = SchemaBuilder.record("ExportedFile").namespace("dp.avro").fields()
+                .requiredString("filterId")
+                .requiredString("retired")
+                .requiredString("filename")
+                .endRecord();
+        SchemaStore.Cache writerSchemas = new SchemaStore.Cache();
+        writerSchemas.addSchema(olderSchema);
+        AvroDeserializer<ExportedFile> resolving = new AvroDeserializer<>(ExportedFile.class, writerSchemas);
+
+        GenericData.Record older = new GenericData.Record(olderSchema);
+        older.put("filterId", filterID);
+        older.put("retired", "no longer read");
+        older.put("filename", filename);
+        byte[] data = toBytes(new BinaryMessageEncoder<GenericData.Record>(GenericData.get(), olderSchema).encode(older));
+
+        final ExportedFile exportedFile = resolving.deserialize("test", data);
+        assertThat(exportedFile.getFilterId().toString()).isEqualTo(filterID);
+        assertThat(exportedFile.getFilename().toString()).isEqualTo(filename);
+        assertThat(exportedFile.getS3URL().toString()).isEmpty();
+        assertThat(exportedFile.getRowCount()).isZero();
+    }
+
+    @Test(expected = org.apache.kafka.common.errors.SerializationException.class)
+    public void singleObjectEncodedMessageWithUnknownSchema() throws Exception {
+        Schema unknownSchema = SchemaBuilder.record("ExportedFile").namespace("dp.avro").fields()
+                .requiredString("filterId")
+                .endRecord();
+        AvroDeserializer<ExportedFile> resolving = new AvroDeserializer<>(ExportedFile.class, new SchemaStore.Cache());
+
+        GenericData.Record unknown = new GenericData.Record(unknownSchema);
+        unknown.put("filterId", filterID);
+        resolving.deserialize("test",
+                toBytes(new BinaryMessageEncoder<GenericData.Record>(GenericData.get(), unknownSchema).encode(unknown)));
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     private byte[] getValidMessageBytes() throws Exception {
         try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
@@ -0,0 +1,82 @@
+package dp.handler;
+
+import dp.avro.ExportedFile;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void estimateIsProportionalToRowCountUpToTheBudget() {
+        AdmissionController admission = new AdmissionController(1000, 10, 1000, 2000, 5);
+
+        assertThat(admission.estimate(new ExportedFile())).isEqualTo(new AdmissionController.Estimate(0, 0));
+        assertThat(admission.estimate(message(30))).isEqualTo(new AdmissionController.Estimate(300, 150));
+        assertThat(admission.estimate(message(500))).isEqualTo(new AdmissionController.Estimate(1000, 2000));
+    }
+
+    @Test
+    public void heapEstimateIsCappedAtTheSpillBudget() {
+        AdmissionController admission = new AdmissionController(1000, 10, 250, 100000, 5);
+
+        assertThat(admission.estimate(message(20)).heap()).isEqualTo(200);
+        assertThat(admission.estimate(message(100)).heap()).isEqualTo(250);
+        assertThat(admission.estimate(message(100)).disk()).isEqualTo(500);
+    }
+
+    @Test
+    public void heapOfDeflatedSheetIsAddedBeyondTheSpillBudget() {
+        AdmissionController admission = new AdmissionController(1000, 10, 250, 100000, 5, 2, 400);
+
+        assertThat(admission.estimate(message(20)).heap()).isEqualTo(240);
+        assertThat(admission.estimate(message(100)).heap()).isEqualTo(450);
+        assertThat(admission.estimate(message(400)).heap()).isEqualTo(1000);
+    }
+
+    @Test
+    public void sheetTooLargeToDeflateInParallelAddsNoHeap() {
+        AdmissionController admission = new AdmissionController(1000, 10, 250, 100000, 5, 2, 50);
+
+        assertThat(admission.estimate(message(50)).heap()).isEqualTo(350);
+        assertThat(admission.estimate(message(100)).heap()).isEqualTo(250);
+    }
+
+    @Test
+    public void reservationsAreBoundedByTheBudget() {
+        AdmissionController admission = new AdmissionController(1000, 10, 1000, 1000, 10);
+
+        assertThat(admission.tryReserve(heap(600))).isTrue();
+        assertThat(admission.tryReserve(heap(500))).isFalse();
+        assertThat(admission.tryReserve(heap(400))).isTrue();
+        assertThat(admission.getReserved()).isEqualTo(1000);
+
+        admission.release(heap(600));
+        assertThat(admission.tryReserve(heap(500))).isTrue();
+        assertThat(admission.getReserved()).isEqualTo(900);
+    }
+
+    @Test
+    public void reservationsAreBoundedByTheDiskBudget() {
+        AdmissionController admission = new AdmissionController(1000, 10, 1000, 1000, 10);
+
+        assertThat(admission.tryReserve(new AdmissionController.Estimate(100, 800))).isTrue();
+        assertThat(admission.tryReserve(new AdmissionController.Estimate(100, 300))).isFalse();
+        assertThat(admission.getReserved()).isEqualTo(100);
+        assertThat(admission.getReservedDisk()).isEqualTo(800);
+
+        admission.release(new AdmissionController.Estimate(100, 800));
+        assertThat(admission.tryReserve(new AdmissionController.Estimate(100, 300))).isTrue();
+        assertThat(admission.getReservedDisk()).isEqualTo(300);
+    }
+
+    private static AdmissionController.Estimate heap(long bytes) {
+        return new AdmissionController.Estimate(bytes, 0);
+    }
+
+    private static ExportedFile message(int rowCount) {
+        ExportedFile message = new ExportedFile();
+        message.setRowCount(rowCount);
+        return message;
+    }
+}
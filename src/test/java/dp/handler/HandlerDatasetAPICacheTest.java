@@ -0,0 +1,154 @@
+package dp.handler;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import dp.api.Link;
+import dp.api.dataset.CachingDatasetAPIClient;
+import dp.api.dataset.DatasetAPIClientImpl;
+import dp.api.dataset.models.Metadata;
+import dp.api.dataset.models.Version;
+import dp.api.filter.Filter;
+import dp.api.filter.FilterAPIClient;
+import dp.api.filter.FilterLinks;
+import dp.avro.ExportedFile;
+import dp.configuration.TestConfig;
+import dp.xlsx.CMDWorkbook;
+import dp.xlsx.Converter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.URL;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Exports through the handler with the dataset api responses cached by a {@link CachingDatasetAPIClient}, to check the
+ * metadata is held for as long as the state of its version allows in the order the handler makes its requests.
+ */
+@RunWith(SpringRunner.class)
+// metadata of an unpublished version is not cached, so each message which would fetch it again does
+@SpringBootTest(properties = {"S3_DOWNLOAD_CONCURRENCY=1", "DEDUPLICATE_EXPORTS=false",
+        "DATASET_API_UNPUBLISHED_CACHE_TTL=0"})
+@ContextConfiguration(classes = {TestConfig.class, CachingDatasetAPIClient.class})
+public class HandlerDatasetAPICacheTest {
+
+    private static final String VERSION_PATH = "/datasets/ds456/editions/2017/versions/1";
+
+    @MockBean
+    @Qualifier("s3-client")
+    private AmazonS3 s3Client;
+
+    @MockBean
+    private Converter converter;
+
+    @MockBean
+    private FilterAPIClient filterAPI;
+
+    @MockBean
+    private DatasetAPIClientImpl datasetAPI;
+
+    @Autowired
+    private CachingDatasetAPIClient cachingDatasetAPI;
+
+    @Autowired
+    private Handler handler;
+
+    @Mock
+    private Acknowledgment ack;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.invokeMethod(cachingDatasetAPI, "startCaches");
+
+        S3Object s3Object = mock(S3Object.class);
+        when(s3Object.getObjectContent()).thenReturn(mock(S3ObjectInputStream.class));
+        when(s3Client.getObject(anyString(), anyString())).thenReturn(s3Object);
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/datasets/morty.xlsx"));
+        when(converter.toXLSX(any(), any())).thenReturn(mock(CMDWorkbook.class));
+        when(datasetAPI.getMetadata(VERSION_PATH)).thenReturn(new Metadata());
+    }
+
+    @Test
+    public void metadataOfPublishedVersionIsCachedAcrossFilterMessages() throws Exception {
+        when(filterAPI.getFilter(any())).thenReturn(createFilter());
+        when(datasetAPI.getVersion(VERSION_PATH)).thenReturn(version("published"));
+
+        handler.listen(filterMessage("filter-1"), ack);
+        handler.listen(filterMessage("filter-2"), ack);
+
+        verify(datasetAPI, times(1)).getVersion(VERSION_PATH);
+        verify(datasetAPI, times(1)).getMetadata(VERSION_PATH);
+        verify(ack, times(2)).acknowledge();
+    }
+
+    @Test
+    public void metadataOfUnpublishedVersionIsFetchedForEachFilterMessage() throws Exception {
+        when(filterAPI.getFilter(any())).thenReturn(createFilter());
+        when(datasetAPI.getVersion(VERSION_PATH)).thenReturn(version("associated"));
+
+        handler.listen(filterMessage("filter-1"), ack);
+        handler.listen(filterMessage("filter-2"), ack);
+
+        verify(datasetAPI, times(2)).getVersion(VERSION_PATH);
+        verify(datasetAPI, times(2)).getMetadata(VERSION_PATH);
+        verify(ack, times(2)).acknowledge();
+    }
+
+    @Test
+    public void stateOfVersionIsLookedUpAtMetadataPathForFullDownload() throws Exception {
+        when(datasetAPI.getVersion("/instances/inst123")).thenReturn(version("published"));
+        when(datasetAPI.getVersion(VERSION_PATH)).thenReturn(version("published"));
+
+        final ExportedFile message = new ExportedFile("", "s3://bucket/datasets/v4.csv", "inst123", "ds456", "2017",
+                "1", "morty", 4);
+        handler.listen(message, ack);
+
+        // the state is known before the metadata is fetched, whichever path the handler asked for the state at
+        final InOrder order = inOrder(datasetAPI);
+        order.verify(datasetAPI).getVersion(VERSION_PATH);
+        order.verify(datasetAPI).getMetadata(VERSION_PATH);
+        verify(ack, times(1)).acknowledge();
+    }
+
+    private static ExportedFile filterMessage(String filterId) {
+        return new ExportedFile(filterId, "s3://bucket/v4.csv", "12345", "ds456", "2017", "1", "", 4);
+    }
+
+    private static Filter createFilter() {
+        Filter filter = new Filter();
+        FilterLinks filterLinks = new FilterLinks();
+        Link versionLink = new Link();
+        versionLink.setHref("http://localhost:22000" + VERSION_PATH);
+        versionLink.setId("666");
+        filterLinks.setVersion(versionLink);
+        filter.setLinks(filterLinks);
+        filter.setPublished(true);
+        return filter;
+    }
+
+    private static Version version(String state) {
+        Version version = new Version();
+        version.setState(state);
+        return version;
+    }
+}
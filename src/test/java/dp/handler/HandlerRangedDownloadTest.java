@@ -0,0 +1,211 @@
+package dp.handler;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import dp.api.dataset.DatasetAPIClientImpl;
+import dp.api.dataset.models.Metadata;
+import dp.api.dataset.models.Version;
+import dp.api.filter.FilterAPIClient;
+import dp.avro.ExportedFile;
+import dp.configuration.TestConfig;
+import dp.xlsx.Converter;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Exports V4 files through the handler and a real {@link Converter}, with the V4 file downloaded from a stand-in for
+ * S3 in many small byte ranges, as it is by default.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"S3_DOWNLOAD_PART_SIZE=100", "DEDUPLICATE_EXPORTS=false"})
+@ContextConfiguration(classes = TestConfig.class)
+public class HandlerRangedDownloadTest {
+
+    // rows out of display order, which are read into memory once downloaded
+    private static final String UNSORTED = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+            "88.5,Month,Jan-96,K02000001,,cpi1dim1A1,CPI (goods)\n" +
+            "90,Month,Jan-96,K02000001,,cpi1dim1A0,CPI (overall index)\n" +
+            "89,Month,Feb-96,K02000001,,cpi1dim1A1,CPI (goods)\n" +
+            "..,Month,Feb-96,K02000001,,cpi1dim1A0,CPI (overall index)\n";
+
+    // the same rows in display order, which are streamed from the download's spool
+    private static final String SORTED = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+            "88.5,Month,Jan-96,K02000001,,cpi1dim1A1,CPI (goods)\n" +
+            "89,Month,Feb-96,K02000001,,cpi1dim1A1,CPI (goods)\n" +
+            "90,Month,Jan-96,K02000001,,cpi1dim1A0,CPI (overall index)\n" +
+            "..,Month,Feb-96,K02000001,,cpi1dim1A0,CPI (overall index)\n";
+
+    @MockBean
+    @Qualifier("s3-client")
+    private AmazonS3 s3Client;
+
+    @MockBean
+    private FilterAPIClient filterAPI;
+
+    @MockBean
+    private DatasetAPIClientImpl datasetAPI;
+
+    @Autowired
+    private Handler handler;
+
+    @Mock
+    private Acknowledgment ack;
+
+    // the content of the V4 file served by the stand-in, the range of each request made to it, and what was uploaded
+    private byte[] content;
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final List<byte[]> uploads = new CopyOnWriteArrayList<>();
+
+    // the number of messages exported by the test
+    private int exports;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            long start = request.getRange()[0];
+            long end = Math.min(request.getRange()[1], content.length - 1);
+            ranges.add(start + "-" + end);
+            return object(Arrays.copyOfRange(content, (int) start, (int) end + 1), start);
+        });
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            PutObjectRequest request = invocation.getArgument(0);
+            uploads.add(request.getInputStream().readAllBytes());
+            return null;
+        });
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/datasets/morty.xlsx"));
+
+        Version version = new Version();
+        version.setState("associated");
+        when(datasetAPI.getVersion(anyString())).thenReturn(version);
+
+        Metadata metadata = new Metadata();
+        metadata.setTitle("ranged download");
+        metadata.setDimensions(new ArrayList<>());
+        when(datasetAPI.getMetadata(anyString())).thenReturn(metadata);
+    }
+
+    @Test
+    public void unsortedFileDownloadedInRangesIsExported() throws Exception {
+        content = UNSORTED.getBytes(StandardCharsets.UTF_8);
+
+        export();
+
+        assertThat(ranges).hasSize((content.length + 99) / 100);
+        assertDatasetSheet();
+    }
+
+    @Test
+    public void sortedFileDownloadedInRangesIsExported() throws Exception {
+        content = SORTED.getBytes(StandardCharsets.UTF_8);
+
+        export();
+
+        assertThat(ranges).hasSize((content.length + 99) / 100);
+        assertDatasetSheet();
+    }
+
+    @Test
+    public void fileExportedBeforeOnlyHasItsFirstPartDownloaded() throws Exception {
+        content = SORTED.getBytes(StandardCharsets.UTF_8);
+        final int parts = (content.length + 99) / 100;
+
+        ReflectionTestUtils.setField(handler, "deduplicateExports", true);
+        try {
+            export();
+            export();
+        } finally {
+            ReflectionTestUtils.setField(handler, "deduplicateExports", false);
+        }
+
+        // the second export is identified by the ETag of its first part, and the workbook exported before reused
+        assertThat(ranges).hasSize(parts + 1);
+        assertThat(ranges.get(parts)).isEqualTo("0-99");
+        verify(s3Client, never()).getObjectMetadata(anyString(), anyString());
+        assertDatasetSheet();
+    }
+
+    private void export() throws Exception {
+        final ExportedFile message = new ExportedFile("", "s3://bucket/datasets/v4.csv", "inst123", "ds456", "2017",
+                "1", "morty", 4);
+        handler.listen(message, ack);
+
+        exports++;
+        verify(datasetAPI, times(exports)).putVersionDownloads(any(), any());
+        verify(ack, times(exports)).acknowledge();
+    }
+
+    private void assertDatasetSheet() throws IOException {
+        assertThat(uploads).hasSize(1);
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(uploads.get(0)))) {
+            final XSSFSheet sheet = workbook.getSheet("Dataset");
+
+            final List<String> rows = new ArrayList<>();
+            for (int i = 2; i <= 4; i++) {
+                final Row row = sheet.getRow(i);
+                final StringBuilder cells = new StringBuilder();
+                row.forEach(cell -> cells.append(cell.toString()).append('|'));
+                rows.add(cells.toString());
+            }
+
+            assertThat(rows).containsExactly(
+                    "Geography|Geography code|Aggregate|Jan-96|Feb-96|",
+                    "K02000001|K02000001|CPI (goods)|88.5|89.0|",
+                    "K02000001|K02000001|CPI (overall index)|90.0||");
+        }
+    }
+
+    private S3Object object(byte[] range, long start) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(range.length);
+        metadata.setHeader(Headers.ETAG, "etag-1");
+        metadata.setHeader(Headers.CONTENT_RANGE,
+                "bytes " + start + "-" + (start + range.length - 1) + "/" + content.length);
+
+        S3Object object = new S3Object();
+        object.setBucketName("bucket");
+        object.setKey("datasets/v4.csv");
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(range), new HttpGet()));
+        return object;
+    }
+}
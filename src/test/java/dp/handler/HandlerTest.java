@@ -2,6 +2,7 @@ package dp.handler;
 
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
@@ -16,6 +17,7 @@ import dp.api.filter.FilterAPIClient;
 import dp.api.filter.FilterLinks;
 import dp.avro.ExportedFile;
 import dp.configuration.TestConfig;
+import dp.dedup.InMemoryProcessingRegistry;
 import dp.exceptions.FilterAPIException;
 import dp.xlsx.CMDWorkbook;
 import dp.xlsx.Converter;
@@ -33,13 +35,25 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.containsString;
@@ -57,7 +71,8 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(SpringRunner.class)
-@SpringBootTest
+// the s3 client is mocked with whole objects, so download them with a single GET rather than in ranges
+@SpringBootTest(properties = {"S3_DOWNLOAD_CONCURRENCY=1", "OVERLAP_EXPORT_IO=false"})
 @ContextConfiguration(classes = TestConfig.class)
 public class HandlerTest {
 
@@ -98,6 +113,41 @@ public class HandlerTest {
         MockitoAnnotations.initMocks(this);
     }
 
+    @Test(expected = IllegalStateException.class)
+    public void outOfRangeCompressionLevelFailsAtStartup() {
+        Handler handler = new Handler();
+        ReflectionTestUtils.setField(handler, "filterCompressionLevel", -1);
+        ReflectionTestUtils.setField(handler, "fullDownloadCompressionLevel", 10);
+
+        handler.startExecutors();
+    }
+
+    @Test
+    public void filteredFilenamesBuiltAtOnceAreEachWellFormed() throws Exception {
+        final Pattern name = Pattern.compile(
+                "filtered-datasets/filter-1/ds-2017-v1-filtered-(\\d{4}-\\d{2}-\\d{2}T\\d{2}-\\d{2}-\\d{2}Z)\\.xlsx");
+        final DateTimeFormatter df = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH-mm-ss'Z'").withZone(ZoneOffset.UTC);
+
+        final Instant before = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        final ExecutorService threads = Executors.newFixedThreadPool(8);
+        final List<Future<String>> filenames = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                filenames.add(threads.submit(() -> handler.getFilteredFilename("filter-1", "ds", "2017", "1")));
+            }
+            for (Future<String> filename : filenames) {
+                Matcher matcher = name.matcher(filename.get());
+                assertThat("malformed filename " + filename.get(), matcher.matches(), equalTo(true));
+
+                Instant time = Instant.from(df.parse(matcher.group(1)));
+                assertThat("filename in the past " + filename.get(), time.isBefore(before), equalTo(false));
+                assertThat("filename in the future " + filename.get(), time.isAfter(Instant.now()), equalTo(false));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
     @Test
     public void validFullDownloadWithNonPublishedState() throws Exception {
         S3Object s3Object = mock(S3Object.class);
@@ -195,6 +245,220 @@ public class HandlerTest {
         handler.setBucketUrl("");
     }
 
+    @Test
+    public void fullDownloadWithOverlappedCalls() throws Exception {
+        S3Object s3Object = mock(S3Object.class);
+        S3ObjectInputStream stream = mock(S3ObjectInputStream.class);
+        ArgumentCaptor<DownloadsList> downLoadArguments = ArgumentCaptor.forClass(DownloadsList.class);
+
+        Metadata datasetMetadata = new Metadata();
+        Version ver = new Version();
+        ver.setState("published");
+
+        when(datasetAPI.getVersion("/instances/inst123")).thenReturn(ver);
+        when(datasetAPI.getMetadata(versionURL)).thenReturn(datasetMetadata);
+        when(s3Object.getObjectContent()).thenReturn(stream);
+        when(s3Client.getObject(bucketURL, "v4.csv")).thenReturn(s3Object);
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/datasets/morty.xlsx"));
+        when(converter.toXLSX(stream, datasetMetadata)).thenReturn(workbookMock);
+
+        final ExportedFile exportedFile = new ExportedFile("", "s3://bucket/v4.csv", instanceID, datasetID, edition,
+                version, filename, rowCount);
+
+        ReflectionTestUtils.setField(handler, "overlapIO", true);
+        try {
+            handler.listen(exportedFile, ack);
+        } finally {
+            ReflectionTestUtils.setField(handler, "overlapIO", false);
+        }
+
+        verify(datasetAPI, times(1)).getVersion("/instances/" + instanceID);
+        verify(datasetAPI, times(1)).getMetadata(versionURL);
+        verify(converter, times(1)).toXLSX(stream, datasetMetadata);
+        verify(datasetAPI, times(1)).putVersionDownloads(any(), downLoadArguments.capture());
+        verify(ack, times(1)).acknowledge();
+
+        assertThat("public URL should be set", downLoadArguments.getValue().getXls().getPublicState(),
+                equalTo("https://amazon.com/datasets/morty.xlsx"));
+    }
+
+    @Test
+    public void fullDownloadExportedBeforeIsCopied() throws Exception {
+        S3Object s3Object = mock(S3Object.class);
+        S3ObjectInputStream stream = mock(S3ObjectInputStream.class);
+        ArgumentCaptor<DownloadsList> downLoadArguments = ArgumentCaptor.forClass(DownloadsList.class);
+
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader("ETag", "\"copied-etag\"");
+
+        Metadata datasetMetadata = new Metadata();
+        Version associated = new Version();
+        associated.setState("associated");
+        Version published = new Version();
+        published.setState("published");
+
+        when(datasetAPI.getVersion("/instances/inst123")).thenReturn(associated, published);
+        when(datasetAPI.getMetadata(versionURL)).thenReturn(datasetMetadata);
+        when(s3Object.getObjectContent()).thenReturn(stream);
+        when(s3Object.getObjectMetadata()).thenReturn(objectMetadata);
+        when(s3Client.getObject(bucketURL, "copied.csv")).thenReturn(s3Object);
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/datasets/morty.xlsx"));
+        when(converter.toXLSX(any(), any())).thenReturn(workbookMock);
+
+        final ExportedFile exportedFile = new ExportedFile("", "s3://bucket/copied.csv", instanceID, datasetID, edition,
+                version, filename, rowCount);
+
+        ReflectionTestUtils.setField(handler, "privateBucket", "csv-exported-private");
+        try {
+            handler.listen(exportedFile, ack);
+            handler.listen(exportedFile, ack);
+        } finally {
+            ReflectionTestUtils.setField(handler, "privateBucket", "csv-exported");
+        }
+
+        verify(converter, times(1)).toXLSX(any(), any());
+        verify(s3Client, times(1)).putObject(any());
+        verify(s3Client, times(1)).copyObject("csv-exported-private", "full-datasets/morty.xlsx",
+                "csv-exported", "full-datasets/morty.xlsx");
+        // the file is identified by its download, which is aborted once it is known to have been exported before
+        verify(s3Client, never()).getObjectMetadata(anyString(), anyString());
+        verify(stream, times(1)).close();
+        verify(stream, times(1)).abort();
+        verify(datasetAPI, times(2)).putVersionDownloads(any(), downLoadArguments.capture());
+
+        assertThat("size should be that of the copied workbook", downLoadArguments.getAllValues().get(1).getXls().getSize(),
+                equalTo(downLoadArguments.getAllValues().get(0).getXls().getSize()));
+        assertThat("public URL should be set", downLoadArguments.getAllValues().get(1).getXls().getPublicState(),
+                equalTo("https://amazon.com/datasets/morty.xlsx"));
+    }
+
+    @Test
+    public void fullDownloadIsConvertedAgainIfCopyFails() throws Exception {
+        S3Object s3Object = mock(S3Object.class);
+        S3ObjectInputStream stream = mock(S3ObjectInputStream.class);
+
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader("ETag", "\"missing-etag\"");
+
+        Version ver = new Version();
+        ver.setState("published");
+
+        when(datasetAPI.getVersion("/instances/inst123")).thenReturn(ver);
+        when(datasetAPI.getMetadata(versionURL)).thenReturn(new Metadata());
+        when(s3Object.getObjectContent()).thenReturn(stream);
+        when(s3Object.getObjectMetadata()).thenReturn(objectMetadata);
+        when(s3Client.getObject(bucketURL, "missing.csv")).thenReturn(s3Object);
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/datasets/morty.xlsx"));
+        when(s3Client.copyObject(anyString(), anyString(), anyString(), anyString()))
+                .thenThrow(new SdkClientException("no such key"));
+        when(converter.toXLSX(any(), any())).thenReturn(workbookMock);
+
+        handler.listen(new ExportedFile("", "s3://bucket/missing.csv", instanceID, datasetID, edition,
+                version, "first", rowCount), ack);
+        handler.listen(new ExportedFile("", "s3://bucket/missing.csv", instanceID, datasetID, edition,
+                version, "second", rowCount), ack);
+
+        verify(s3Client, times(1)).copyObject("csv-exported", "full-datasets/first.xlsx",
+                "csv-exported", "full-datasets/second.xlsx");
+        verify(converter, times(2)).toXLSX(any(), any());
+        verify(datasetAPI, times(2)).putVersionDownloads(any(), any());
+    }
+
+    @Test
+    public void duplicateFilterMessageIsDropped() throws Exception {
+        S3Object s3Object = mock(S3Object.class);
+        S3ObjectInputStream stream = mock(S3ObjectInputStream.class);
+
+        when(s3Object.getObjectContent()).thenReturn(stream);
+        when(s3Client.getObject(bucketURL, "v4.csv")).thenReturn(s3Object);
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/sdfsdf"));
+        Filter filter = createFilter(true);
+        when(filterAPI.getFilter(any())).thenReturn(filter);
+        when(datasetAPI.getMetadata(any())).thenReturn(new Metadata());
+        when(converter.toXLSX(any(), any())).thenReturn(workbookMock);
+
+        final ExportedFile exportedFile = new ExportedFile("duplicate-filter", "s3://bucket/v4.csv", "12345", "cpih", "2018", "1", "", rowCount);
+
+        final Object registry = ReflectionTestUtils.getField(handler, "processingRegistry");
+        ReflectionTestUtils.setField(handler, "processingRegistry", new InMemoryProcessingRegistry(60000));
+        try {
+            handler.listen(exportedFile, ack);
+            handler.listen(exportedFile, ack);
+        } finally {
+            ReflectionTestUtils.setField(handler, "processingRegistry", registry);
+        }
+
+        verify(filterAPI, times(1)).getFilter("duplicate-filter");
+        verify(converter, times(1)).toXLSX(any(), any());
+        verify(filterAPI, times(1)).addXLSXFile(any(), any(), any(), anyLong(), anyBoolean());
+        verify(ack, times(2)).acknowledge();
+    }
+
+    @Test
+    public void fullDownloadIsExportedAgainOncePublished() throws Exception {
+        S3Object s3Object = mock(S3Object.class);
+        S3ObjectInputStream stream = mock(S3ObjectInputStream.class);
+
+        Version associated = new Version();
+        associated.setState("associated");
+        Version published = new Version();
+        published.setState("published");
+
+        when(datasetAPI.getVersion("/instances/inst123")).thenReturn(associated, associated, published);
+        when(datasetAPI.getMetadata(versionURL)).thenReturn(new Metadata());
+        when(s3Object.getObjectContent()).thenReturn(stream);
+        when(s3Client.getObject(bucketURL, "v4.csv")).thenReturn(s3Object);
+        when(s3Client.getUrl(anyString(), anyString())).thenReturn(new URL("https://amazon.com/datasets/morty.xlsx"));
+        when(converter.toXLSX(any(), any())).thenReturn(workbookMock);
+
+        final ExportedFile exportedFile = new ExportedFile("", "s3://bucket/v4.csv", instanceID, datasetID, edition,
+                version, filename, rowCount);
+
+        final Object registry = ReflectionTestUtils.getField(handler, "processingRegistry");
+        ReflectionTestUtils.setField(handler, "processingRegistry", new InMemoryProcessingRegistry(60000));
+        try {
+            handler.listen(exportedFile, ack);
+            handler.listen(exportedFile, ack);
+            handler.listen(exportedFile, ack);
+        } finally {
+            ReflectionTestUtils.setField(handler, "processingRegistry", registry);
+        }
+
+        verify(converter, times(2)).toXLSX(any(), any());
+        verify(datasetAPI, times(2)).putVersionDownloads(any(), any());
+        // the duplicate is dropped before its V4 file is downloaded or its metadata fetched
+        verify(s3Client, times(2)).getObject(bucketURL, "v4.csv");
+        verify(datasetAPI, times(2)).getMetadata(versionURL);
+        verify(stream, times(2)).close();
+        verify(stream, never()).abort();
+    }
+
+    @Test
+    public void filterMessageGetMetadataErrorWithOverlappedCalls() throws Exception {
+        S3Object s3Object = mock(S3Object.class);
+        S3ObjectInputStream stream = mock(S3ObjectInputStream.class);
+
+        when(s3Object.getObjectContent()).thenReturn(stream);
+        when(s3Client.getObject(bucketURL, "v4.csv")).thenReturn(s3Object);
+        Filter filter = createFilter(true);
+        when(filterAPI.getFilter(any())).thenReturn(filter);
+        when(datasetAPI.getMetadata(versionURL)).thenThrow(new FilterAPIException("flubba wubba dub dub", null));
+
+        final ExportedFile exportedFile = new ExportedFile("inst123", "s3://bucket/v4.csv", "12345", "cpih", "2018", "1", "", rowCount);
+
+        ReflectionTestUtils.setField(handler, "overlapIO", true);
+        try {
+            handler.listen(exportedFile, ack);
+        } finally {
+            ReflectionTestUtils.setField(handler, "overlapIO", false);
+        }
+
+        verify(s3Client, times(1)).getObject(bucketURL, "v4.csv");
+        verify(stream, times(1)).abort();
+        verify(converter, never()).toXLSX(any(), any());
+        verify(s3Client, never()).putObject(any());
+    }
+
     @Test
     public void validFilterWithPublishedStateAndBucketUrl() throws Exception {
         S3Object s3Object = mock(S3Object.class);
@@ -0,0 +1,414 @@
+package dp.handler;
+
+import dp.api.APIGuard;
+import dp.avro.ExportedFile;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.ConsumerSeekAware.ConsumerSeekCallback;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MessageDispatcherTest {
+
+    private final Handler handler = mock(Handler.class);
+    private final KafkaListenerEndpointRegistry registry = mock(KafkaListenerEndpointRegistry.class);
+    private final MessageListenerContainer container = mock(MessageListenerContainer.class);
+    private final APIGuard apiGuard = mock(APIGuard.class);
+    private final ConsumerSeekCallback seekCallback = mock(ConsumerSeekCallback.class);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final AtomicBoolean paused = new AtomicBoolean();
+
+    // the latch each message waits on before it completes, by filter ID
+    private final Map<String, CountDownLatch> releases = new HashMap<>();
+
+    private MessageDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        when(registry.getListenerContainer(MessageDispatcher.LISTENER_ID)).thenReturn(container);
+        when(container.isPauseRequested()).thenAnswer(invocation -> paused.get());
+        doAnswer(invocation -> {
+            paused.set(true);
+            return null;
+        }).when(container).pause();
+        doAnswer(invocation -> {
+            paused.set(false);
+            return null;
+        }).when(container).resume();
+        doAnswer(invocation -> {
+            ExportedFile message = invocation.getArgument(0);
+            releases.get(nameOf(message)).await(10, TimeUnit.SECONDS);
+            invocation.<Acknowledgment>getArgument(1).acknowledge();
+            return null;
+        }).when(handler).listen(any(ExportedFile.class), any(Acknowledgment.class));
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.stopWorkers();
+    }
+
+    @Test
+    public void singleWorkerProcessesMessagesInline() {
+        dispatcher = dispatcher(1);
+        Acknowledgment ack = mock(Acknowledgment.class);
+        releases.put("a", new CountDownLatch(0));
+
+        dispatcher.receive(record(0, "a"), ack);
+
+        verify(ack).acknowledge();
+        verify(container, never()).pause();
+    }
+
+    @Test
+    public void outOfOrderCompletionIsCommittedInOrder() throws Exception {
+        dispatcher = dispatcher(2);
+        Acknowledgment first = mock(Acknowledgment.class);
+        Acknowledgment second = mock(Acknowledgment.class);
+        releases.put("a", new CountDownLatch(1));
+        releases.put("b", new CountDownLatch(1));
+
+        dispatcher.receive(record(0, "a"), first);
+        dispatcher.receive(record(1, "b"), second);
+        verify(container).pause();
+
+        releases.get("b").countDown();
+        verify(container, timeout(5000)).resume();
+        verify(second, never()).acknowledge();
+
+        releases.get("a").countDown();
+        verify(second, timeout(5000)).acknowledge();
+        verify(first, never()).acknowledge();
+    }
+
+    @Test
+    public void exportsAreDeferredUntilTheirMemoryIsAvailable() throws Exception {
+        dispatcher = dispatcher(2);
+        Acknowledgment first = mock(Acknowledgment.class);
+        Acknowledgment second = mock(Acknowledgment.class);
+        releases.put("large", new CountDownLatch(1));
+        releases.put("medium", new CountDownLatch(0));
+
+        dispatcher.receive(record(0, "large", 80), first);
+        dispatcher.receive(record(1, "medium", 50), second);
+
+        assertThat(dispatcher.getActive("default")).isEqualTo(1);
+        assertThat(dispatcher.getQueued("default")).isEqualTo(1);
+        assertThat(meterRegistry.get("exporter.admission.reserved").gauge().value()).isEqualTo(800);
+        verify(container).pause();
+
+        releases.get("large").countDown();
+        verify(second, timeout(5000)).acknowledge();
+        verify(container, timeout(5000)).resume();
+        assertThat(dispatcher.getQueued("default")).isZero();
+    }
+
+    @Test
+    public void smallFiltersAreNotHeldUpByFullDownloads() throws Exception {
+        dispatcher = dispatcher(1, 1, 1);
+        Acknowledgment fullDownload = mock(Acknowledgment.class);
+        Acknowledgment queuedFullDownload = mock(Acknowledgment.class);
+        Acknowledgment filter = mock(Acknowledgment.class);
+        releases.put("full-1", new CountDownLatch(1));
+        releases.put("full-2", new CountDownLatch(0));
+        releases.put("small", new CountDownLatch(0));
+
+        dispatcher.receive(fullDownload(0, 0, "full-1", 10), fullDownload);
+        dispatcher.receive(fullDownload(0, 1, "full-2", 10), queuedFullDownload);
+        dispatcher.receive(record(1, 0, "small", 10), filter);
+
+        verify(filter, timeout(5000)).acknowledge();
+        assertThat(dispatcher.getActive("throughput")).isEqualTo(1);
+        assertThat(dispatcher.getQueued("throughput")).isEqualTo(1);
+        assertThat(meterRegistry.get("exporter.lane.queued").tag("lane", "throughput").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("exporter.lane.queued").tag("lane", "latency").gauge().value()).isZero();
+        verify(container, never()).pause();
+
+        releases.get("full-1").countDown();
+        verify(queuedFullDownload, timeout(5000)).acknowledge();
+    }
+
+    @Test
+    public void fullThroughputLanePausesOnlyThePartitionOfTheNextRecord() throws Exception {
+        dispatcher = dispatcher(1, 1, 1, 1);
+        releases.put("full-1", new CountDownLatch(1));
+        releases.put("full-2", new CountDownLatch(0));
+        releases.put("full-3", new CountDownLatch(0));
+        releases.put("behind", new CountDownLatch(0));
+        releases.put("other", new CountDownLatch(0));
+
+        Consumer consumer = new Consumer();
+        consumer.add(fullDownload(0, 0, "full-1", 10));
+        consumer.add(fullDownload(0, 1, "full-2", 10));
+        consumer.add(fullDownload(0, 2, "full-3", 10));
+        consumer.add(record(0, 3, "behind", 10));
+        consumer.add(record(1, 0, "other", 10));
+
+        // the third full download finds the lane full, so its partition is sought back to it and paused
+        consumer.pollUntil(() -> !consumer.pausedPartitions.isEmpty());
+        verify(seekCallback).seek("common-output-created", 0, 2);
+        assertThat(consumer.pausedPartitions).containsExactly(new TopicPartition("common-output-created", 0));
+        verify(consumer.ack("other"), timeout(5000)).acknowledge();
+        assertThat(consumer.received).containsExactly("full-1", "other", "full-2", "full-3");
+        verify(container, never()).pause();
+
+        consumer.poll(3);
+        assertThat(consumer.received).containsExactly("full-1", "other", "full-2", "full-3");
+
+        // once the lane has room the partition is resumed, and the full download received again
+        releases.get("full-1").countDown();
+        consumer.pollUntil(() -> consumer.received.contains("behind"));
+        verify(consumer.ack("behind"), timeout(5000)).acknowledge();
+        assertThat(consumer.received).containsExactly("full-1", "other", "full-2", "full-3", "full-3", "behind");
+        assertThat(consumer.pausedPartitions).isEmpty();
+        verify(container, never()).pause();
+    }
+
+    @Test
+    public void filtersAreReceivedWhileTheThroughputLaneIsBusy() throws Exception {
+        dispatcher = dispatcher(1, 1, 1, 16);
+        releases.put("full", new CountDownLatch(1));
+        releases.put("filter", new CountDownLatch(0));
+
+        Consumer consumer = new Consumer();
+        consumer.add(fullDownload(0, 0, "full", 10));
+        consumer.add(record(0, 1, "filter", 10));
+
+        // the filter is exported behind the full download, and committed once the full download is
+        consumer.pollUntil(() -> consumer.received.contains("filter"));
+        verify(handler, timeout(5000)).listen(argThat(message -> "filter".contentEquals(message.getFilterId())),
+                any(Acknowledgment.class));
+        verify(container, never()).pause();
+        verify(consumer.ack("filter"), never()).acknowledge();
+
+        releases.get("full").countDown();
+        verify(consumer.ack("filter"), timeout(5000)).acknowledge();
+    }
+
+    @Test
+    public void latencyLaneKeepsAShareOfTheMemoryBudget() throws Exception {
+        dispatcher = dispatcher(1, 1, 0);
+        Acknowledgment fullDownload = mock(Acknowledgment.class);
+        Acknowledgment filter = mock(Acknowledgment.class);
+        releases.put("full", new CountDownLatch(1));
+        releases.put("filter", new CountDownLatch(0));
+
+        // the full download would need the whole budget, but the latency lane keeps enough for its largest filter
+        dispatcher.receive(fullDownload(0, 0, "full", 100), fullDownload);
+        assertThat(meterRegistry.get("exporter.admission.reserved").gauge().value()).isEqualTo(500);
+
+        dispatcher.receive(record(1, 0, "filter", 50), filter);
+        verify(filter, timeout(5000)).acknowledge();
+        verify(fullDownload, never()).acknowledge();
+
+        releases.get("full").countDown();
+        verify(fullDownload, timeout(5000)).acknowledge();
+    }
+
+    @Test
+    public void recordOfRevokedPartitionDoesNotAcknowledgeItsRedelivery() throws Exception {
+        dispatcher = dispatcher(2);
+        Acknowledgment revoked = mock(Acknowledgment.class);
+        Acknowledgment redelivered = mock(Acknowledgment.class);
+        releases.put("revoked", new CountDownLatch(1));
+        releases.put("redelivered", new CountDownLatch(1));
+
+        dispatcher.receive(record(7, "revoked"), revoked);
+        dispatcher.onPartitionsRevoked(List.of(new TopicPartition("common-output-created", 0)));
+        dispatcher.receive(record(7, "redelivered"), redelivered);
+
+        releases.get("revoked").countDown();
+        verify(container, timeout(5000)).resume();
+        verify(revoked, never()).acknowledge();
+        verify(redelivered, never()).acknowledge();
+
+        releases.get("redelivered").countDown();
+        verify(redelivered, timeout(5000)).acknowledge();
+        verify(revoked, never()).acknowledge();
+    }
+
+    @Test
+    public void recordsAreRewoundWhileACircuitIsOpen() {
+        dispatcher = dispatcher(2);
+        when(apiGuard.isOpen()).thenReturn(true);
+        when(apiGuard.getRemainingOpenMillis()).thenReturn(100L);
+        Acknowledgment first = mock(Acknowledgment.class);
+        Acknowledgment second = mock(Acknowledgment.class);
+
+        dispatcher.receive(record(5, "a"), first);
+        dispatcher.receive(record(6, "b"), second);
+
+        verify(seekCallback).seek("common-output-created", 0, 5);
+        verify(seekCallback, never()).seek("common-output-created", 0, 6);
+        verify(handler, never()).listen(any(ExportedFile.class), any(Acknowledgment.class));
+        verify(first, never()).acknowledge();
+        verify(container).pause();
+
+        when(apiGuard.isOpen()).thenReturn(false);
+        verify(container, timeout(5000)).resume();
+    }
+
+    private MessageDispatcher dispatcher(int workers) {
+        return dispatcher(workers, 0, 0);
+    }
+
+    private MessageDispatcher dispatcher(int workers, int filterLaneWorkers, int queueSize) {
+        return dispatcher(workers, filterLaneWorkers, queueSize, queueSize);
+    }
+
+    private MessageDispatcher dispatcher(int workers, int filterLaneWorkers, int queueSize, int throughputQueueSize) {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "workers", workers);
+        ReflectionTestUtils.setField(dispatcher, "queueSize", queueSize);
+        ReflectionTestUtils.setField(dispatcher, "throughputQueueSize", throughputQueueSize);
+        ReflectionTestUtils.setField(dispatcher, "filterLaneWorkers", filterLaneWorkers);
+        ReflectionTestUtils.setField(dispatcher, "filterLaneMaxRows", 50);
+        ReflectionTestUtils.setField(dispatcher, "memoryBudget", 1000L);
+        ReflectionTestUtils.setField(dispatcher, "memoryPerRow", 10L);
+        ReflectionTestUtils.setField(dispatcher, "spillBudget", 1000L);
+        ReflectionTestUtils.setField(dispatcher, "diskBudget", 1000L);
+        ReflectionTestUtils.setField(dispatcher, "diskPerRow", 1L);
+        ReflectionTestUtils.setField(dispatcher, "deflateParallelism", 1);
+        ReflectionTestUtils.setField(dispatcher, "deflatedPerRow", 1L);
+        ReflectionTestUtils.setField(dispatcher, "deflateMaxRows", 1L);
+        ReflectionTestUtils.setField(dispatcher, "handler", handler);
+        ReflectionTestUtils.setField(dispatcher, "registry", registry);
+        ReflectionTestUtils.setField(dispatcher, "apiGuard", apiGuard);
+        dispatcher.startWorkers(meterRegistry);
+        dispatcher.registerSeekCallback(seekCallback);
+        return dispatcher;
+    }
+
+    private ConsumerRecord<String, ExportedFile> record(long offset, String filterId) {
+        return record(offset, filterId, 1);
+    }
+
+    private ConsumerRecord<String, ExportedFile> record(long offset, String filterId, int rowCount) {
+        return record(0, offset, filterId, rowCount);
+    }
+
+    private ConsumerRecord<String, ExportedFile> record(int partition, long offset, String filterId, int rowCount) {
+        ExportedFile message = new ExportedFile();
+        message.setFilterId(filterId);
+        message.setRowCount(rowCount);
+        return new ConsumerRecord<>("common-output-created", partition, offset, null, message);
+    }
+
+    private ConsumerRecord<String, ExportedFile> fullDownload(int partition, long offset, String filename,
+                                                              int rowCount) {
+        ConsumerRecord<String, ExportedFile> record = record(partition, offset, "", rowCount);
+        record.value().setFilename(filename);
+        return record;
+    }
+
+    /**
+     * @return the name a message is released and received by - its filter ID, or the filename of a full download.
+     */
+    private static String nameOf(ExportedFile message) {
+        return message.getFilterId().length() > 0 ? message.getFilterId().toString() : message.getFilename().toString();
+    }
+
+    /**
+     * Delivers records to the dispatcher the way the listener container does: a poll at a time, each delivering the
+     * next record of every partition which is not paused, from where the partition was last sought to. Nothing is
+     * delivered while the consumer is paused.
+     */
+    private class Consumer {
+
+        private final Map<Integer, List<ConsumerRecord<String, ExportedFile>>> partitions = new TreeMap<>();
+        private final Map<Integer, Long> positions = new HashMap<>();
+        private final Map<String, Acknowledgment> acks = new HashMap<>();
+        private final Set<TopicPartition> pausedPartitions = ConcurrentHashMap.newKeySet();
+        private final List<String> received = new ArrayList<>();
+
+        private Consumer() {
+            doAnswer(invocation -> {
+                positions.put(invocation.getArgument(1), invocation.getArgument(2));
+                return null;
+            }).when(seekCallback).seek(anyString(), anyInt(), anyLong());
+            doAnswer(invocation -> pausedPartitions.add(invocation.getArgument(0)))
+                    .when(container).pausePartition(any(TopicPartition.class));
+            doAnswer(invocation -> pausedPartitions.remove(invocation.getArgument(0)))
+                    .when(container).resumePartition(any(TopicPartition.class));
+            when(container.isPartitionPauseRequested(any(TopicPartition.class)))
+                    .thenAnswer(invocation -> pausedPartitions.contains(invocation.getArgument(0)));
+        }
+
+        private void add(ConsumerRecord<String, ExportedFile> record) {
+            partitions.computeIfAbsent(record.partition(), p -> new ArrayList<>()).add(record);
+            acks.put(nameOf(record.value()), mock(Acknowledgment.class));
+        }
+
+        private Acknowledgment ack(String name) {
+            return acks.get(name);
+        }
+
+        private void poll(int times) {
+            for (int i = 0; i < times; i++) {
+                poll();
+            }
+        }
+
+        private void pollUntil(BooleanSupplier condition) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!condition.getAsBoolean()) {
+                assertThat(System.currentTimeMillis()).isLessThan(deadline);
+                poll();
+                Thread.sleep(10);
+            }
+        }
+
+        private void poll() {
+            if (paused.get()) {
+                return;
+            }
+            partitions.forEach((partition, records) -> {
+                if (pausedPartitions.contains(new TopicPartition("common-output-created", partition))) {
+                    return;
+                }
+                final long position = positions.getOrDefault(partition, 0L);
+                if (position >= records.size()) {
+                    return;
+                }
+                final ConsumerRecord<String, ExportedFile> record = records.get((int) position);
+                positions.put(partition, position + 1);
+                received.add(nameOf(record.value()));
+                dispatcher.receive(record, ack(nameOf(record.value())));
+            });
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package dp.handler;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class OffsetTrackerTest {
+
+    private final TopicPartition partition = new TopicPartition("common-output-created", 0);
+    private final TopicPartition other = new TopicPartition("common-output-created", 1);
+
+    @Test
+    public void recordsAreCommittedOnlyOnceEarlierRecordsComplete() {
+        OffsetTracker offsets = new OffsetTracker();
+        Acknowledgment first = mock(Acknowledgment.class);
+        Acknowledgment second = mock(Acknowledgment.class);
+        Acknowledgment third = mock(Acknowledgment.class);
+        OffsetTracker.Record tenth = offsets.start(partition, 10, first);
+        OffsetTracker.Record eleventh = offsets.start(partition, 11, second);
+        OffsetTracker.Record twelfth = offsets.start(partition, 12, third);
+
+        assertThat(offsets.complete(twelfth)).isNull();
+        assertThat(offsets.complete(eleventh)).isNull();
+        assertThat(offsets.complete(tenth)).isSameAs(third);
+        assertThat(offsets.size()).isZero();
+    }
+
+    @Test
+    public void partitionsAreTrackedIndependently() {
+        OffsetTracker offsets = new OffsetTracker();
+        Acknowledgment first = mock(Acknowledgment.class);
+        Acknowledgment second = mock(Acknowledgment.class);
+        Acknowledgment otherFirst = mock(Acknowledgment.class);
+        OffsetTracker.Record tenth = offsets.start(partition, 10, first);
+        offsets.start(partition, 11, second);
+        OffsetTracker.Record otherThird = offsets.start(other, 3, otherFirst);
+
+        assertThat(offsets.complete(otherThird)).isSameAs(otherFirst);
+        assertThat(offsets.complete(tenth)).isSameAs(first);
+        assertThat(offsets.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void revokedPartitionsAreNotCommitted() {
+        OffsetTracker offsets = new OffsetTracker();
+        OffsetTracker.Record revoked = offsets.start(partition, 10, mock(Acknowledgment.class));
+        OffsetTracker.Record kept = offsets.start(other, 3, mock(Acknowledgment.class));
+
+        offsets.revoke(List.of(partition));
+
+        assertThat(offsets.complete(revoked)).isNull();
+        assertThat(offsets.complete(kept)).isNotNull();
+    }
+
+    @Test
+    public void recordOfRevokedPartitionDoesNotCompleteItsRedelivery() {
+        OffsetTracker offsets = new OffsetTracker();
+        OffsetTracker.Record revoked = offsets.start(partition, 10, mock(Acknowledgment.class));
+        offsets.revoke(List.of(partition));
+
+        // the partition is assigned back and the record received again while the first worker is still processing it
+        Acknowledgment redeliveredAck = mock(Acknowledgment.class);
+        OffsetTracker.Record redelivered = offsets.start(partition, 10, redeliveredAck);
+
+        assertThat(offsets.complete(revoked)).isNull();
+        assertThat(offsets.size()).isEqualTo(1);
+        assertThat(offsets.complete(redelivered)).isSameAs(redeliveredAck);
+    }
+}
@@ -0,0 +1,162 @@
+package dp.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static dp.s3.MultipartUploadOutputStream.MIN_PART_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MultipartUploadOutputStreamTest {
+
+    private static final String BUCKET = "csv-exported";
+    private static final String KEY = "full-datasets/morty.xlsx";
+
+    private AmazonS3 s3Client;
+    private ExecutorService executor;
+
+    // the content of each uploaded part, keyed by part number
+    private final Map<Integer, byte[]> uploadedParts = Collections.synchronizedMap(new TreeMap<>());
+
+    @Before
+    public void setUp() {
+        s3Client = mock(AmazonS3.class);
+        executor = Executors.newFixedThreadPool(2);
+
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId("upload-1");
+        when(s3Client.initiateMultipartUpload(any())).thenReturn(initiated);
+
+        when(s3Client.uploadPart(any())).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            uploadedParts.put(request.getPartNumber(), IOUtils.toByteArray(request.getInputStream()));
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void smallContentUsesSinglePut() throws IOException {
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        byte[] content = "a small xlsx file".getBytes();
+
+        MultipartUploadOutputStream stream = newStream();
+        stream.write(content);
+        stream.close();
+
+        verify(s3Client, times(1)).putObject(request.capture());
+        verify(s3Client, never()).initiateMultipartUpload(any());
+
+        assertThat(request.getValue().getBucketName()).isEqualTo(BUCKET);
+        assertThat(request.getValue().getKey()).isEqualTo(KEY);
+        assertThat(request.getValue().getMetadata().getContentLength()).isEqualTo(content.length);
+        assertThat(IOUtils.toByteArray(request.getValue().getInputStream())).isEqualTo(content);
+        assertThat(stream.getContentLength()).isEqualTo(content.length);
+    }
+
+    @Test
+    public void largeContentUsesMultipartUpload() throws IOException {
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+                ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        byte[] content = content(MIN_PART_SIZE * 3 + 1234);
+
+        MultipartUploadOutputStream stream = newStream();
+        // write in uneven chunks to exercise writes which span part boundaries
+        for (int offset = 0; offset < content.length; offset += 999_999) {
+            stream.write(content, offset, Math.min(999_999, content.length - offset));
+        }
+        stream.close();
+
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+        verify(s3Client, times(1)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(s3Client, times(4)).uploadPart(any());
+        verify(s3Client, times(1)).completeMultipartUpload(complete.capture());
+
+        List<Integer> partNumbers = complete.getValue().getPartETags().stream().map(p -> p.getPartNumber()).toList();
+        assertThat(partNumbers).containsExactly(1, 2, 3, 4);
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (byte[] part : uploadedParts.values()) {
+            reassembled.write(part);
+        }
+        assertThat(reassembled.toByteArray()).isEqualTo(content);
+        assertThat(stream.getContentLength()).isEqualTo(content.length);
+    }
+
+    @Test
+    public void failedPartAbortsUpload() throws IOException {
+        doThrow(new SdkClientException("flubba wubba dub dub")).when(s3Client).uploadPart(any());
+
+        MultipartUploadOutputStream stream = newStream();
+
+        // the failure may surface from either write or close depending on when the part upload completes
+        try {
+            stream.write(content(MIN_PART_SIZE * 3));
+            stream.close();
+        } catch (SdkClientException e) {
+            verify(s3Client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+            verify(s3Client, never()).completeMultipartUpload(any());
+            return;
+        }
+        throw new AssertionError("expected close to throw");
+    }
+
+    @Test
+    public void abortBeforeCloseDiscardsParts() throws IOException {
+        MultipartUploadOutputStream stream = newStream();
+        stream.write(content(MIN_PART_SIZE + 1));
+        stream.abort();
+        stream.close();
+
+        verify(s3Client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any());
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    private MultipartUploadOutputStream newStream() {
+        return new MultipartUploadOutputStream(s3Client, BUCKET, KEY, MIN_PART_SIZE, 2, executor);
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,145 @@
+package dp.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RangedDownloadInputStreamTest {
+
+    private static final String BUCKET = "csv-exported";
+    private static final String KEY = "datasets/v4.csv";
+    private static final int PART_SIZE = 1000;
+
+    private AmazonS3 s3Client;
+    private ExecutorService executor;
+
+    // the content served by the stand-in for S3, and the etag it has when each part is requested
+    private byte[] content;
+    private final List<String> eTags = new CopyOnWriteArrayList<>();
+
+    // the range of each request made to the stand-in
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        s3Client = mock(AmazonS3.class);
+        executor = Executors.newFixedThreadPool(3);
+
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            String eTag = eTags.get(Math.min(ranges.size(), eTags.size() - 1));
+            if (!request.getMatchingETagConstraints().isEmpty()
+                    && !request.getMatchingETagConstraints().contains(eTag)) {
+                ranges.add("precondition failed");
+                return null;
+            }
+
+            long start = request.getRange()[0];
+            long end = Math.min(request.getRange()[1], content.length - 1);
+            ranges.add(start + "-" + end);
+            return object(Arrays.copyOfRange(content, (int) start, (int) end + 1), start, eTag);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void smallObjectIsReadFromFirstRange() throws IOException {
+        content = content(PART_SIZE);
+        eTags.add("etag-1");
+
+        try (InputStream stream = open()) {
+            assertThat(stream).isNotInstanceOf(RangedDownloadInputStream.class);
+            assertThat(IOUtils.toByteArray(stream)).isEqualTo(content);
+        }
+
+        assertThat(ranges).containsExactly("0-999");
+    }
+
+    @Test
+    public void largeObjectIsDownloadedInRanges() throws IOException {
+        content = content(PART_SIZE * 4 + 123);
+        eTags.add("etag-1");
+
+        Path spool;
+        try (InputStream stream = open()) {
+            assertThat(stream).isInstanceOf(RangedDownloadInputStream.class);
+            assertThat(((RangedDownloadInputStream) stream).getContentLength()).isEqualTo(content.length);
+            assertThat(IOUtils.toByteArray(stream)).isEqualTo(content);
+
+            spool = ((RangedDownloadInputStream) stream).await();
+            assertThat(Files.readAllBytes(spool)).isEqualTo(content);
+        }
+
+        assertThat(ranges).containsExactlyInAnyOrder("0-999", "1000-1999", "2000-2999", "3000-3999", "4000-4122");
+        assertThat(spool).doesNotExist();
+    }
+
+    @Test
+    public void objectChangedDuringDownloadFailsRead() throws IOException {
+        content = content(PART_SIZE * 3);
+        eTags.add("etag-1");
+        eTags.add("etag-2");
+
+        try (InputStream stream = open()) {
+            assertThatThrownBy(() -> IOUtils.toByteArray(stream))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("part 2");
+        }
+    }
+
+    private InputStream open() throws IOException {
+        return RangedDownloadInputStream.open(s3Client, BUCKET, KEY, PART_SIZE, executor);
+    }
+
+    private S3Object object(byte[] range, long start, String eTag) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(range.length);
+        metadata.setHeader(Headers.ETAG, eTag);
+        metadata.setHeader(Headers.CONTENT_RANGE,
+                "bytes " + start + "-" + (start + range.length - 1) + "/" + content.length);
+
+        S3Object object = new S3Object();
+        object.setBucketName(BUCKET);
+        object.setKey(KEY);
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(range), new HttpGet()));
+        return object;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + 7);
+        }
+        return content;
+    }
+}
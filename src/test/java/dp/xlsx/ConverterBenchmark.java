@@ -0,0 +1,165 @@
+package dp.xlsx;
+
+import dp.api.dataset.models.CodeList;
+import dp.api.dataset.models.Metadata;
+import org.apache.poi.util.DefaultTempFileCreationStrategy;
+import org.apache.poi.util.TempFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures converting a synthetic 500,000 row V4 file to a XLSX end to end - parsing, formatting and writing the
+ * package - with the data sheet written through POI's streaming workbook or straight into the package.
+ * <p>
+ * The file has 25,000 groups (250 geographies x 100 aggregates) over 20 time periods, with a data marking column. It is
+ * written either in display order, so its groups are streamed from disk, or out of order, so it is read into memory.
+ * The most disk used by POI's temporary files while each workbook is written, and the size of the workbook, are printed
+ * after each iteration.
+ * <p>
+ * The package can also be deflated at another level, and the data sheet deflated on several threads - for example
+ * {@code -p writer=direct -p sorted=false -p compressionLevel=-1,1 -p deflateParallelism=1,4}.
+ * <p>
+ * Run with {@code make bench BENCH=ConverterBenchmark}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class ConverterBenchmark {
+
+    private static final int GEOGRAPHIES = 250;
+    private static final int AGGREGATES = 100;
+    private static final int TIMES = 20;
+    private static final int GROUPS = GEOGRAPHIES * AGGREGATES;
+
+    private static final String[] MONTHS =
+            {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    @Param({"poi", "direct"})
+    public String writer;
+
+    @Param({"true", "false"})
+    public boolean sorted;
+
+    @Param({"-1"})
+    public int compressionLevel;
+
+    @Param({"1"})
+    public int deflateParallelism;
+
+    private Path file;
+    private Path tempDirectory;
+    private Converter converter;
+    private Metadata metadata;
+    private long tempBytes;
+    private long workbookBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("v4-benchmark-", ".csv");
+        tempDirectory = Files.createTempDirectory("poi-benchmark-");
+        TempFile.setTempFileCreationStrategy(new DefaultTempFileCreationStrategy(tempDirectory.toFile()));
+
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("V4_1,Data Marking,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n");
+
+            for (int i = 0; i < GROUPS * TIMES; i++) {
+                final int group = sorted ? i / TIMES : (int) ((i * 7919L) % GROUPS);
+                final int time = sorted ? i % TIMES : i / GROUPS;
+                final int geography = group / AGGREGATES;
+                final int aggregate = group % AGGREGATES;
+
+                out.write(i % 50 == 0 ? ".." : Integer.toString(i % 1000) + "." + (i % 10));
+                out.write(i % 7 == 0 ? ",p" : ",");
+                out.write(",Month," + MONTHS[time % 12] + "-" + (90 + time / 12));
+                out.write(String.format(",E%08d,Local authority district %04d", geography, geography));
+                out.write(",cpi1dim1G" + (10000 + aggregate) + ",Consumer price index aggregate " + (100 + aggregate));
+                out.write('\n');
+            }
+        }
+
+        metadata = new Metadata();
+        metadata.setTitle("Consumer price inflation");
+        metadata.setDimensions(List.of(new CodeList("cpi1dim1aggid", "Aggregate", "aggregates", "href")));
+
+        converter = new Converter();
+        ReflectionTestUtils.setField(converter, "directWriter", "direct".equals(writer));
+        ReflectionTestUtils.setField(converter, "deflateParallelism", deflateParallelism);
+        converter.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printTempBytes() {
+        System.out.println("most disk used by temporary files: " + tempBytes + " bytes, workbook: " + workbookBytes
+                + " bytes");
+        tempBytes = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        converter.stop();
+        Files.deleteIfExists(file);
+        try (Stream<Path> files = Files.walk(tempDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void convert() throws IOException {
+        try (InputStream v4File = Files.newInputStream(file);
+             CMDWorkbook workbook = converter.toXLSX(v4File, metadata)) {
+            final CountingOutputStream out = new CountingOutputStream();
+            workbook.setCompressionLevel(compressionLevel);
+            workbook.write(out);
+            tempBytes = Math.max(tempBytes, getTempBytes());
+            workbookBytes = out.count;
+        }
+    }
+
+    private long getTempBytes() throws IOException {
+        try (Stream<Path> files = Files.walk(tempDirectory)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -3,11 +3,17 @@ package dp.xlsx;
 import dp.api.dataset.DatasetAPIClientImpl;
 import dp.api.dataset.models.CodeList;
 import dp.api.dataset.models.Metadata;
+import dp.api.dataset.models.UsageNotes;
 import dp.api.filter.FilterAPIClient;
 import dp.configuration.TestConfig;
 import dp.handler.Handler;
 
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -21,10 +27,23 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import com.amazonaws.services.s3.AmazonS3;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -69,4 +88,237 @@ public class ConverterTest {
 
 			}
 		}
+
+	@Test
+	public void metadataSheetIsReusedForSameMetadata() throws IOException {
+		List<CodeList> codeLists = new ArrayList<>();
+		codeLists.add(new CodeList("1234", "a code list name", "a description", "a codelist href"));
+
+		Metadata datasetMetadata = new Metadata();
+		datasetMetadata.setTitle("reused metadata title");
+		datasetMetadata.setUri("https://www.ons.gov.uk/datasets/reused");
+		datasetMetadata.setDimensions(codeLists);
+
+		MetadataSheetCache metadataSheets = (MetadataSheetCache) getField(converter, "metadataSheets");
+
+		XSSFSheet rendered = writeMetadataSheet(datasetMetadata);
+		Assertions.assertThat(metadataSheets.get(MetadataSheetCache.keyOf(datasetMetadata))).isNotNull();
+		XSSFSheet reused = writeMetadataSheet(datasetMetadata);
+
+		Assertions.assertThat(reused.getLastRowNum()).isEqualTo(rendered.getLastRowNum());
+		for (int i = 0; i <= rendered.getLastRowNum(); i++) {
+			Row expected = rendered.getRow(i);
+			Row actual = reused.getRow(i);
+			for (int j = 0; expected != null && j < expected.getLastCellNum(); j++) {
+				Assertions.assertThat(actual.getCell(j).getStringCellValue())
+						.isEqualTo(expected.getCell(j).getStringCellValue());
+				Assertions.assertThat(actual.getCell(j).getCellStyle().getIndex())
+						.isEqualTo(expected.getCell(j).getCellStyle().getIndex());
+			}
+		}
+		Assertions.assertThat(reused.getHyperlinkList()).hasSize(1);
+		Assertions.assertThat(reused.getHyperlinkList().get(0).getAddress())
+				.isEqualTo("https://www.ons.gov.uk/datasets/reused");
+	}
+
+	@Test
+	public void directWriterWritesSameDataSheetAsPoi() throws IOException {
+		List<CodeList> codeLists = new ArrayList<>();
+		codeLists.add(new CodeList("1234", "a code list name", "a description", "a codelist href"));
+
+		UsageNotes notes = new UsageNotes();
+		notes.setTitle("usage note");
+		notes.setNotes("  notes with <markup> & surrounding spaces ");
+
+		Metadata datasetMetadata = new Metadata();
+		datasetMetadata.setTitle("direct writer title");
+		datasetMetadata.setDimensions(codeLists);
+		datasetMetadata.setUsageNotes(new UsageNotes[]{notes});
+
+		// the groups are held in memory
+		setField(converter, "streamingPivot", false);
+		XSSFSheet expected;
+		XSSFSheet actual;
+		try {
+			setField(converter, "directWriter", false);
+			expected = writeDataSheet(datasetMetadata);
+			setField(converter, "directWriter", true);
+			actual = writeDataSheet(datasetMetadata);
+		} finally {
+			setField(converter, "directWriter", true);
+			setField(converter, "streamingPivot", true);
+		}
+
+		assertSameSheet(actual, expected);
+	}
+
+	@Test
+	public void directWriterWritesSameDataSheetForGroupsReadFromDisk() throws IOException {
+		Metadata datasetMetadata = new Metadata();
+		datasetMetadata.setTitle("groups read from disk");
+		datasetMetadata.setDimensions(new ArrayList<>());
+
+		// v4_2.csv sorted by its dimension options, so its groups are streamed from the spool
+		final byte[] sorted = ("V4_2,Data markings, CV, Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+				"90.3,,2,Month,Jan-96,K02000001,,cpi1dim1G10100,01.1 Food\n" +
+				"91.1,,2,Month,Feb-96,K02000001,,cpi1dim1G10100,01.1 Food\n" +
+				"95.6,,5,Month,Jan-96,K02000001,,cpi1dim1G20100,02.1 Alcoholic beverages\n" +
+				"..,x,,Month,Feb-96,K02000001,,cpi1dim1G20100,02.1 Alcoholic beverages\n" +
+				"86.8,r,7,Month,Jan-96,K02000001,,cpi1dim1A0,CPI (overall index)\n" +
+				"12345.678,,7,Month,Feb-96,K02000001,,cpi1dim1A0,CPI (overall index)\n").getBytes(StandardCharsets.UTF_8);
+
+		XSSFSheet expected;
+		XSSFSheet streamed;
+		XSSFSheet spilled;
+		try {
+			setField(converter, "streamingPivot", false);
+			setField(converter, "directWriter", false);
+			expected = writeDataSheet(sorted, datasetMetadata);
+
+			setField(converter, "directWriter", true);
+			setField(converter, "heapBudget", 1L);
+			spilled = writeDataSheet(sorted, datasetMetadata);
+			setField(converter, "heapBudget", V4File.DEFAULT_HEAP_BUDGET);
+
+			setField(converter, "streamingPivot", true);
+			streamed = writeDataSheet(sorted, datasetMetadata);
+		} finally {
+			setField(converter, "directWriter", true);
+			setField(converter, "streamingPivot", true);
+			setField(converter, "heapBudget", V4File.DEFAULT_HEAP_BUDGET);
+		}
+
+		assertSameSheet(streamed, expected);
+		assertSameSheet(spilled, expected);
+	}
+
+	@Test
+	public void parallelDeflateWritesSameWorkbook() throws IOException {
+		Metadata datasetMetadata = new Metadata();
+		datasetMetadata.setTitle("parallel deflate title");
+		datasetMetadata.setDimensions(List.of(new CodeList("1234", "a code list name", "a description", "href")));
+
+		byte[] expected = writeXlsx(datasetMetadata, -1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		byte[] actual;
+		try {
+			setField(converter, "deflateParallelism", 2);
+			setField(converter, "deflateExecutor", executor);
+			actual = writeXlsx(datasetMetadata, -1);
+		} finally {
+			setField(converter, "deflateExecutor", null);
+			setField(converter, "deflateParallelism", 1);
+			executor.shutdownNow();
+		}
+
+		assertSameSheet(readSheet(actual, "Dataset"), readSheet(expected, "Dataset"));
+		assertSameSheet(readSheet(actual, "Metadata"), readSheet(expected, "Metadata"));
+	}
+
+	@Test
+	public void sheetOfTooManyRowsIsNotDeflatedInParallel() throws IOException {
+		Metadata datasetMetadata = new Metadata();
+		datasetMetadata.setTitle("parallel deflate title");
+		datasetMetadata.setDimensions(List.of(new CodeList("1234", "a code list name", "a description", "href")));
+
+		byte[] expected = writeXlsx(datasetMetadata, -1);
+		ExecutorService executor = spy(Executors.newFixedThreadPool(2));
+		byte[] actual;
+		try {
+			setField(converter, "deflateParallelism", 2);
+			setField(converter, "deflateExecutor", executor);
+			setField(converter, "deflateMaxRows", 1L);
+			actual = writeXlsx(datasetMetadata, -1);
+		} finally {
+			setField(converter, "deflateMaxRows", 1000000L);
+			setField(converter, "deflateExecutor", null);
+			setField(converter, "deflateParallelism", 1);
+			executor.shutdownNow();
+		}
+
+		verify(executor, never()).submit(any(Callable.class));
+		assertSameSheet(readSheet(actual, "Dataset"), readSheet(expected, "Dataset"));
+	}
+
+	@Test
+	public void compressionLevelTradesSizeOfWorkbook() throws IOException {
+		Metadata datasetMetadata = new Metadata();
+		datasetMetadata.setTitle("compression level title");
+		datasetMetadata.setDimensions(List.of(new CodeList("1234", "a code list name", "a description", "href")));
+
+		byte[] stored = writeXlsx(datasetMetadata, 0);
+		byte[] deflated = writeXlsx(datasetMetadata, 9);
+
+		Assertions.assertThat(stored.length).isGreaterThan(deflated.length * 2);
+		assertSameSheet(readSheet(stored, "Dataset"), readSheet(deflated, "Dataset"));
+	}
+
+	private static void assertSameSheet(XSSFSheet actual, XSSFSheet expected) {
+		Assertions.assertThat(actual.getLastRowNum()).isEqualTo(expected.getLastRowNum());
+		Assertions.assertThat(actual.getDefaultColumnWidth()).isEqualTo(expected.getDefaultColumnWidth());
+		for (int i = 0; i <= expected.getLastRowNum(); i++) {
+			Row expectedRow = expected.getRow(i);
+			Row actualRow = actual.getRow(i);
+			if (expectedRow == null) {
+				Assertions.assertThat(actualRow).isNull();
+				continue;
+			}
+			Assertions.assertThat(actualRow.getLastCellNum()).isEqualTo(expectedRow.getLastCellNum());
+			for (int j = 0; j < expectedRow.getLastCellNum(); j++) {
+				Assertions.assertThat(actual.getColumnWidth(j)).isEqualTo(expected.getColumnWidth(j));
+
+				Cell expectedCell = expectedRow.getCell(j);
+				Cell actualCell = actualRow.getCell(j);
+				if (expectedCell == null) {
+					Assertions.assertThat(actualCell).isNull();
+					continue;
+				}
+				Assertions.assertThat(actualCell.getCellType()).isEqualTo(expectedCell.getCellType());
+				Assertions.assertThat(actualCell.getCellStyle().getIndex())
+						.isEqualTo(expectedCell.getCellStyle().getIndex());
+				if (expectedCell.getCellType() == CellType.NUMERIC) {
+					Assertions.assertThat(actualCell.getNumericCellValue()).isEqualTo(expectedCell.getNumericCellValue());
+				} else {
+					Assertions.assertThat(actualCell.getStringCellValue()).isEqualTo(expectedCell.getStringCellValue());
+				}
+			}
+		}
+	}
+
+	private byte[] writeXlsx(Metadata datasetMetadata, int compressionLevel) throws IOException {
+		ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+		try (final InputStream csv = ConverterTest.class.getResourceAsStream("v4_2.csv");
+			 CMDWorkbook workbook = converter.toXLSX(csv, datasetMetadata)) {
+			workbook.setCompressionLevel(compressionLevel);
+			workbook.write(xlsx);
+		}
+		return xlsx.toByteArray();
+	}
+
+	private static XSSFSheet readSheet(byte[] xlsx, String name) throws IOException {
+		return new XSSFWorkbook(new ByteArrayInputStream(xlsx)).getSheet(name);
+	}
+
+	private XSSFSheet writeDataSheet(Metadata datasetMetadata) throws IOException {
+		try (final InputStream csv = ConverterTest.class.getResourceAsStream("v4_2.csv")) {
+			return writeDataSheet(csv.readAllBytes(), datasetMetadata);
+		}
+	}
+
+	private XSSFSheet writeDataSheet(byte[] csv, Metadata datasetMetadata) throws IOException {
+		ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+		try (Workbook workbook = converter.toXLSX(new ByteArrayInputStream(csv), datasetMetadata)) {
+			workbook.write(xlsx);
+		}
+		return new XSSFWorkbook(new ByteArrayInputStream(xlsx.toByteArray())).getSheet("Dataset");
+	}
+
+	private XSSFSheet writeMetadataSheet(Metadata datasetMetadata) throws IOException {
+		ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+		try (final InputStream csv = ConverterTest.class.getResourceAsStream("v4_0.csv");
+			 Workbook workbook = converter.toXLSX(csv, datasetMetadata)) {
+			workbook.write(xlsx);
+		}
+		return new XSSFWorkbook(new ByteArrayInputStream(xlsx.toByteArray())).getSheet("Metadata");
 	}
+}
@@ -4,14 +4,19 @@ import dp.api.dataset.models.Metadata;
 import dp.api.dataset.models.UsageNotes;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -27,6 +32,9 @@ public class DatasetFormatterTest {
     private final Sheet sheet = wb.createSheet("Test");
     private final WorkBookStyles workBookStyles = new WorkBookStyles(wb);
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void timeValuesAreOrderedAlphabeticallyWhenUnrecognised() throws IOException {
 
@@ -272,4 +280,74 @@ public class DatasetFormatterTest {
             assertThat(sheet.getPhysicalNumberOfRows()).isEqualTo(metadataRows + 13);
         }
     }
+
+    @Test
+    public void format_SpilledFileMatchesInMemoryFile() throws IOException {
+
+        final Sheet inMemory = sheet;
+        try (final InputStream stream = V4FileTest.class.getResourceAsStream("v4_2.csv")) {
+            final V4File file = new V4File(stream, null);
+            new DatasetFormatter(workBookStyles, inMemory, file, datasetMetadata).format();
+        }
+
+        // a budget of one byte spills every row to a run of its own
+        final Sheet spilled = wb.createSheet("Spilled");
+        try (final InputStream stream = V4FileTest.class.getResourceAsStream("v4_2.csv");
+             final V4File file = new V4File(stream, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, 1)) {
+            assertThat(file.isSpilled()).isTrue();
+            new DatasetFormatter(workBookStyles, spilled, file, datasetMetadata).format();
+        }
+
+        assertSheetsEqual(inMemory, spilled);
+    }
+
+    @Test
+    public void format_StreamedFileMatchesInMemoryFile() throws IOException {
+
+        // Given a v4 file which is already in display order
+        String csvContent = csvHeader +
+                "45.2,Month,Jan-96,K02000001,England,cpi1dim1A0,AAA\n" +
+                "46.1,Month,Feb-96,K02000001,England,cpi1dim1A0,AAA\n" +
+                "x,Month,Jan-96,K02000001,England,cpi1dim1A1,BBB\n" +
+                "86.9,Month,Feb-96,K02000002,Wales,cpi1dim1A0,AAA\n";
+
+        final Sheet inMemory = sheet;
+        final V4File file = new V4File(new ByteArrayInputStream(csvContent.getBytes()), null);
+        new DatasetFormatter(workBookStyles, inMemory, file, datasetMetadata).format();
+
+        final Path path = temporaryFolder.newFile("v4.csv").toPath();
+        Files.write(path, csvContent.getBytes());
+
+        // When the file is opened from disk and formatted
+        final Sheet streamed = wb.createSheet("Streamed");
+        try (final V4File streamedFile = V4File.open(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE,
+                V4File.DEFAULT_HEAP_BUDGET, 1, null)) {
+            assertThat(streamedFile.isStreamed()).isTrue();
+            new DatasetFormatter(workBookStyles, streamed, streamedFile, datasetMetadata).format();
+        }
+
+        // Then the groups are streamed from the file into the same sheet
+        assertSheetsEqual(inMemory, streamed);
+    }
+
+    private static void assertSheetsEqual(Sheet expectedSheet, Sheet actualSheet) {
+        assertThat(actualSheet.getPhysicalNumberOfRows()).isEqualTo(expectedSheet.getPhysicalNumberOfRows());
+        for (int r = 0; r <= expectedSheet.getLastRowNum(); r++) {
+            final Row expected = expectedSheet.getRow(r);
+            final Row actual = actualSheet.getRow(r);
+            assertThat(actual.getLastCellNum()).isEqualTo(expected.getLastCellNum());
+
+            for (int c = 0; c < expected.getLastCellNum(); c++) {
+                final Cell expectedCell = expected.getCell(c);
+                final Cell actualCell = actual.getCell(c);
+                if (expectedCell == null) {
+                    assertThat(actualCell).isNull();
+                    continue;
+                }
+                assertThat(actualCell.getCellType()).isEqualTo(expectedCell.getCellType());
+                assertThat(actualCell.getCellStyle()).isEqualTo(expectedCell.getCellStyle());
+                assertThat(actualCell.toString()).isEqualTo(expectedCell.toString());
+            }
+        }
+    }
 }
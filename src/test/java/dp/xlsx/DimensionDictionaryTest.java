@@ -0,0 +1,56 @@
+package dp.xlsx;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DimensionDictionaryTest {
+
+    @Test
+    public void sameOptionIsEncodedOnce() {
+        final DimensionDictionary dictionary = new DimensionDictionary(DimensionType.OTHER);
+
+        final int food = dictionary.encode("cpi1dim1G10100", "01.1 Food");
+        final int clothing = dictionary.encode("cpi1dim1G30100", "03.1 Clothing");
+
+        assertThat(dictionary.encode(new String("cpi1dim1G10100"), new String("01.1 Food"))).isEqualTo(food);
+        assertThat(clothing).isNotEqualTo(food);
+        assertThat(dictionary.size()).isEqualTo(2);
+        assertThat(dictionary.get(food)).isEqualTo(new DimensionData(DimensionType.OTHER, "01.1 Food", "cpi1dim1G10100"));
+    }
+
+    @Test
+    public void codeWithDifferentLabelsIsEncodedSeparately() {
+        final DimensionDictionary dictionary = new DimensionDictionary(DimensionType.GEOGRAPHY);
+
+        final int first = dictionary.encode("K02000001", "United Kingdom");
+        final int second = dictionary.encode("K02000001", "UK");
+
+        assertThat(second).isNotEqualTo(first);
+        assertThat(dictionary.encode("K02000001", "UK")).isEqualTo(second);
+        assertThat(dictionary.encode("K02000001", "United Kingdom")).isEqualTo(first);
+        assertThat(dictionary.get(second).getValue()).isEqualTo("UK");
+    }
+
+    @Test
+    public void emptyLabelFallsBackToCode() {
+        final DimensionDictionary dictionary = new DimensionDictionary(DimensionType.GEOGRAPHY);
+
+        final int id = dictionary.encode("K02000001", "");
+
+        assertThat(dictionary.encode("K02000001", "")).isEqualTo(id);
+        assertThat(dictionary.get(id).getValue()).isEqualTo("K02000001");
+    }
+
+    @Test
+    public void widestValueAndCodeAreTrackedAsOptionsAreAdded() {
+        final DimensionDictionary dictionary = new DimensionDictionary(DimensionType.GEOGRAPHY);
+
+        dictionary.encode("K02000001", "United Kingdom");
+        dictionary.encode("E92000001", "");
+        dictionary.encode("W1", "Wales");
+
+        assertThat(dictionary.getWidestValue()).isEqualTo("United Kingdom".length());
+        assertThat(dictionary.getWidestCode()).isEqualTo("K02000001".length());
+    }
+}
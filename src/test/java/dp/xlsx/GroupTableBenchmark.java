@@ -0,0 +1,120 @@
+package dp.xlsx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares grouping the rows of a synthetic 5M row V4 file with a {@code HashMap<Group, Group>} (the original
+ * approach) against dictionary encoding the rows into a {@link GroupTable}.
+ * <p>
+ * The file has 100,000 groups (1,000 geographies x 100 aggregates) over 50 time periods. Each row's codes and labels
+ * are created as new strings, as they would be by the CSV parser, so neither approach benefits from cached hashes.
+ * <p>
+ * Run with {@code make bench BENCH=GroupTableBenchmark}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class GroupTableBenchmark {
+
+    private static final int ROWS = 5_000_000;
+    private static final int GEOGRAPHIES = 1_000;
+    private static final int AGGREGATES = 100;
+    private static final int GROUPS = GEOGRAPHIES * AGGREGATES;
+
+    private static final int OFFSET = 1; // V4_0
+
+    private final String[] header = {"V4_0", "Time_codelist", "Time", "Geography_codelist", "Geography",
+            "cpi1dim1aggid", "Aggregate"};
+
+    private char[][] geographyCodes;
+    private char[][] geographyLabels;
+    private char[][] aggregateCodes;
+    private char[][] aggregateLabels;
+
+    @Setup
+    public void setUp() {
+        geographyCodes = new char[GEOGRAPHIES][];
+        geographyLabels = new char[GEOGRAPHIES][];
+        for (int i = 0; i < GEOGRAPHIES; i++) {
+            geographyCodes[i] = String.format("E%08d", i).toCharArray();
+            geographyLabels[i] = ("Local authority district " + i).toCharArray();
+        }
+
+        aggregateCodes = new char[AGGREGATES][];
+        aggregateLabels = new char[AGGREGATES][];
+        for (int i = 0; i < AGGREGATES; i++) {
+            aggregateCodes[i] = ("cpi1dim1G" + (10000 + i)).toCharArray();
+            aggregateLabels[i] = ("Consumer price index aggregate " + i).toCharArray();
+        }
+    }
+
+    @Benchmark
+    public int groupMap() {
+        final Map<Group, Group> groups = new HashMap<>();
+        final String[] row = new String[header.length];
+
+        for (int i = 0; i < ROWS; i++) {
+            fillRow(row, i);
+
+            final Group group = new Group(row, OFFSET, null);
+            if (groups.containsKey(group)) {
+                groups.get(group);
+            } else {
+                groups.put(group, group);
+            }
+        }
+        return groups.size();
+    }
+
+    @Benchmark
+    public int groupTable() {
+        final GroupTable groups = new GroupTable();
+        final GroupExtractor extractor = new GroupExtractor();
+        extractor.extractHeaderRow(header, OFFSET, null);
+
+        final String[] row = new String[header.length];
+        final int[] ids = new int[extractor.getDimensionCount()];
+
+        for (int i = 0; i < ROWS; i++) {
+            fillRow(row, i);
+
+            extractor.extractObsRow(row, OFFSET, ids);
+            final int hash = GroupKey.hash(ids);
+            if (groups.get(ids, hash) == null) {
+                final GroupKey key = new GroupKey(ids.clone(), hash);
+                groups.put(key, extractor.createGroup(key, groups.size(), null));
+            }
+        }
+        return groups.size();
+    }
+
+    private void fillRow(String[] row, int i) {
+        final int group = i % GROUPS;
+        final int geography = group / AGGREGATES;
+        final int aggregate = group % AGGREGATES;
+
+        row[0] = "100.0";
+        row[1] = "Month";
+        row[2] = "Jan-" + (i / GROUPS);
+        row[3] = new String(geographyCodes[geography]);
+        row[4] = new String(geographyLabels[geography]);
+        row[5] = new String(aggregateCodes[aggregate]);
+        row[6] = new String(aggregateLabels[aggregate]);
+    }
+}
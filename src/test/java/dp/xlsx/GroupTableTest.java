@@ -0,0 +1,68 @@
+package dp.xlsx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GroupTableTest {
+
+    @Test
+    public void getReturnsGroupWithMatchingIds() {
+        final GroupTable table = new GroupTable();
+        final Group group = newGroup(1, 2, 3);
+        table.put(group.getKey(), group);
+
+        final int[] ids = {1, 2, 3};
+        assertThat(table.get(ids, GroupKey.hash(ids))).isSameAs(group);
+
+        final int[] otherIds = {1, 3, 2};
+        assertThat(table.get(otherIds, GroupKey.hash(otherIds))).isNull();
+    }
+
+    @Test
+    public void putReplacesGroupWithEqualKey() {
+        final GroupTable table = new GroupTable();
+        final Group first = newGroup(7, 7);
+        final Group second = newGroup(7, 7);
+
+        table.put(first.getKey(), first);
+        table.put(second.getKey(), second);
+
+        final int[] ids = {7, 7};
+        assertThat(table.size()).isEqualTo(1);
+        assertThat(table.get(ids, GroupKey.hash(ids))).isSameAs(second);
+    }
+
+    @Test
+    public void tableGrowsToHoldAllGroups() {
+        final GroupTable table = new GroupTable(4);
+        final Set<Group> added = new HashSet<>();
+
+        for (int geography = 0; geography < 300; geography++) {
+            for (int aggregate = 0; aggregate < 50; aggregate++) {
+                final Group group = newGroup(geography, aggregate);
+                table.put(group.getKey(), group);
+                added.add(group);
+            }
+        }
+
+        assertThat(table.size()).isEqualTo(15000);
+        assertThat(table.groups()).hasSize(15000);
+        assertThat(new HashSet<>(table.groups())).isEqualTo(added);
+
+        final int[] ids = {299, 49};
+        assertThat(table.get(ids, GroupKey.hash(ids)).getKey().getIds()).containsExactly(299, 49);
+    }
+
+    private static Group newGroup(int... ids) {
+        final ArrayList<DimensionData> values = new ArrayList<>();
+        for (int id : ids) {
+            values.add(new DimensionData(DimensionType.OTHER, "label " + id, "code" + id));
+        }
+        return new Group(new GroupKey(ids), -1, values, null);
+    }
+}
@@ -0,0 +1,51 @@
+package dp.xlsx;
+
+import dp.api.dataset.models.Metadata;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetadataSheetCacheTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void keyChangesWithMetadata() {
+        Metadata first = new Metadata();
+        first.setTitle("CPIH");
+        Metadata same = new Metadata();
+        same.setTitle("CPIH");
+        Metadata other = new Metadata();
+        other.setTitle("CPI");
+
+        assertThat(MetadataSheetCache.keyOf(first)).isEqualTo(MetadataSheetCache.keyOf(same));
+        assertThat(MetadataSheetCache.keyOf(first)).isNotEqualTo(MetadataSheetCache.keyOf(other));
+    }
+
+    @Test
+    public void leastRecentlyUsedSheetsAreEvictedOverBudget() {
+        MetadataSheetCache cache = new MetadataSheetCache(250, registry);
+        cache.put("a", sheet(100));
+        cache.put("b", sheet(100));
+        cache.get("a");
+        cache.put("c", sheet(100));
+
+        assertThat(cache.get("a")).isNotNull();
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("c")).isNotNull();
+        assertThat(cache.getBytes()).isEqualTo(200);
+
+        cache.put("d", sheet(300));
+        assertThat(cache.get("d")).isNull();
+
+        assertThat(registry.get("cache.gets").tag("result", "hit").counter().count()).isEqualTo(3);
+        assertThat(registry.get("cache.gets").tag("result", "miss").counter().count()).isEqualTo(2);
+        assertThat(registry.get("cache.evictions").counter().count()).isEqualTo(1);
+    }
+
+    private static RenderedSheet sheet(int size) {
+        return new RenderedSheet(new byte[size - 10], new byte[10]);
+    }
+}
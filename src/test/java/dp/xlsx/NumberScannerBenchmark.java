@@ -0,0 +1,88 @@
+package dp.xlsx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures classifying and parsing 1,000,000 observation values with a {@link NumberScanner}, against parsing each
+ * with {@link Double#parseDouble} and catching the exception thrown for a marker, as they were parsed before.
+ * <p>
+ * The values are drawn as ONS observations are: counts, indices to one decimal place, rates to two or three, and a
+ * share of markers for suppressed, unavailable or not applicable values, from 0 to half of them.
+ * <p>
+ * Run with {@code make bench BENCH=NumberScannerBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class NumberScannerBenchmark {
+
+    private static final int VALUES = 1_000_000;
+
+    private static final String[] MARKERS = {"..", "x", "c", ":", "z", ".", "-"};
+
+    @Param({"0", "0.05", "0.5"})
+    public double markerShare;
+
+    private String[] values;
+
+    private final NumberScanner scanner = new NumberScanner();
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        values = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            if (random.nextDouble() < markerShare) {
+                values[i] = MARKERS[random.nextInt(MARKERS.length)];
+                continue;
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    values[i] = Integer.toString(random.nextInt(1_000_000));
+                    break;
+                case 1:
+                    values[i] = String.format("%.1f", 50 + random.nextDouble() * 100);
+                    break;
+                default:
+                    values[i] = String.format("%." + (2 + random.nextInt(2)) + "f", random.nextDouble() * 20 - 5);
+            }
+        }
+    }
+
+    @Benchmark
+    public void scanner(Blackhole blackhole) {
+        for (String value : values) {
+            final int kind = scanner.scan(value);
+            blackhole.consume(kind == NumberScanner.MARKER ? kind : scanner.getNumber());
+        }
+    }
+
+    @Benchmark
+    public void parseDouble(Blackhole blackhole) {
+        for (String value : values) {
+            final boolean decimalPoint = value.indexOf('.') >= 0;
+            try {
+                blackhole.consume(Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                blackhole.consume(decimalPoint);
+            }
+        }
+    }
+}
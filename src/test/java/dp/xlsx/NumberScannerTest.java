@@ -0,0 +1,81 @@
+package dp.xlsx;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NumberScannerTest {
+
+    private final NumberScanner scanner = new NumberScanner();
+
+    @Test
+    public void valuesAreClassified() {
+        assertThat(scanner.scan(null)).isEqualTo(NumberScanner.EMPTY);
+        assertThat(scanner.scan("")).isEqualTo(NumberScanner.EMPTY);
+        assertThat(scanner.scan("14854")).isEqualTo(NumberScanner.INTEGER);
+        assertThat(scanner.scan("-3")).isEqualTo(NumberScanner.INTEGER);
+        assertThat(scanner.scan("1e5")).isEqualTo(NumberScanner.INTEGER);
+        assertThat(scanner.scan("95.6")).isEqualTo(NumberScanner.DECIMAL);
+        assertThat(scanner.scan(".5")).isEqualTo(NumberScanner.DECIMAL);
+        assertThat(scanner.scan("5.")).isEqualTo(NumberScanner.DECIMAL);
+        assertThat(scanner.scan(" 1.5 ")).isEqualTo(NumberScanner.DECIMAL);
+    }
+
+    @Test
+    public void markersAreNotNumbers() {
+        for (String marker : new String[]{"..", ".", "x", ":", "-", "+", "c", "z", " ", "1.2.3", "1,000", "e5", "1e",
+                "1e+", "1 2", "--1", "NaN", "Infinity", "-Infinity", "1d", "2.5f", "0x10"}) {
+            assertThat(scanner.scan(marker)).as(marker).isEqualTo(NumberScanner.MARKER);
+        }
+    }
+
+    @Test
+    public void numbersAreParsedAsDoubleParsesThem() {
+        for (String number : new String[]{"0", "-0", "0.0", "95.6", "0.05", "-12.345", "+7", "1e5", "2.5E-3",
+                "123456789012345678", "1234567890123456789012", "0.1000000000000000055511151231257827",
+                "9007199254740993", "1e22", "1e23", "4.9e-324", "1e-400", "1.7976931348623157e308", "1e400",
+                "000123.4500", " 42 "}) {
+            assertThat(scanner.scan(number)).as(number).isNotEqualTo(NumberScanner.MARKER);
+            assertThat(Double.doubleToRawLongBits(scanner.getNumber())).as(number)
+                    .isEqualTo(Double.doubleToRawLongBits(Double.parseDouble(number)));
+        }
+    }
+
+    @Test
+    public void randomNumbersAreParsedAsDoubleParsesThem() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final String number = randomNumber(random);
+            assertThat(scanner.scan(number)).as(number).isNotEqualTo(NumberScanner.MARKER);
+            assertThat(scanner.getNumber()).as(number).isEqualTo(Double.parseDouble(number));
+        }
+    }
+
+    @Test
+    public void digitsAreFound() {
+        assertThat(NumberScanner.isDigits("")).isTrue();
+        assertThat(NumberScanner.isDigits("0123")).isTrue();
+        assertThat(NumberScanner.isDigits("12.3")).isFalse();
+        assertThat(NumberScanner.isDigits("p")).isFalse();
+    }
+
+    private static String randomNumber(Random random) {
+        final StringBuilder number = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            number.append('-');
+        }
+        number.append(random.nextInt(random.nextBoolean() ? 1000 : Integer.MAX_VALUE));
+        if (random.nextBoolean()) {
+            number.append('.');
+            for (int digits = random.nextInt(20); digits > 0; digits--) {
+                number.append((char) ('0' + random.nextInt(10)));
+            }
+        }
+        if (random.nextInt(10) == 0) {
+            number.append('e').append(random.nextInt(60) - 30);
+        }
+        return number.toString();
+    }
+}
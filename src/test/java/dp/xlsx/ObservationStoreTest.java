@@ -0,0 +1,112 @@
+package dp.xlsx;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ObservationStoreTest {
+
+    @Test
+    public void valuesAreClassifiedAsTheyAreAdded() {
+        final ObservationStore store = new ObservationStore(1);
+        store.add(0, "Jan-96", "95.6", row("95.6", "p"), 1);
+        store.add(0, "Feb-96", "14854", row("14854", "12"), 1);
+        store.add(0, "Mar-96", "..", row("..", "x"), 1);
+        store.add(0, "Apr-96", "", row("", ""), 1);
+        store.seal(1);
+
+        final int decimal = find(store, 0, "Jan-96");
+        assertThat(store.isNumber(decimal)).isTrue();
+        assertThat(store.hasDecimalPoint(decimal)).isTrue();
+        assertThat(store.getNumber(decimal)).isEqualTo(95.6);
+        assertThat(store.getValue(decimal)).isEqualTo("95.6");
+        assertThat(store.getAdditionalValue(decimal, 0)).isEqualTo("p");
+
+        final int integer = find(store, 0, "Feb-96");
+        assertThat(store.isNumber(integer)).isTrue();
+        assertThat(store.hasDecimalPoint(integer)).isFalse();
+        assertThat(store.getValue(integer)).isEqualTo("14854");
+        assertThat(store.getWidestValue()).isEqualTo(5);
+
+        final int marker = find(store, 0, "Mar-96");
+        assertThat(store.isNumber(marker)).isFalse();
+        assertThat(store.isEmpty(marker)).isFalse();
+        assertThat(store.hasDecimalPoint(marker)).isTrue();
+        assertThat(store.getValue(marker)).isEqualTo("..");
+
+        final int empty = find(store, 0, "Apr-96");
+        assertThat(store.isEmpty(empty)).isTrue();
+        assertThat(store.getValue(empty)).isEqualTo("");
+    }
+
+    @Test
+    public void additionalValuesOfDigitsAreFound() {
+        final ObservationStore store = new ObservationStore(1);
+        store.add(0, "2000", "1", row("1", "12"), 1);
+        store.add(0, "2001", "2", row("2", "p"), 1);
+        store.add(0, "2002", "3", row("3", ""), 1);
+        store.add(0, "2003", "4", row("4", "12"), 1);
+        store.seal(1);
+
+        assertThat(store.isAdditionalValueDigits(find(store, 0, "2000"), 0)).isTrue();
+        assertThat(store.isAdditionalValueDigits(find(store, 0, "2001"), 0)).isFalse();
+        assertThat(store.isAdditionalValueDigits(find(store, 0, "2002"), 0)).isTrue();
+        assertThat(store.isAdditionalValueDigits(find(store, 0, "2003"), 0)).isTrue();
+    }
+
+    @Test
+    public void observationsAreFoundByGroupAndTime() {
+        final ObservationStore store = new ObservationStore(0);
+        store.add(1, "2001", "1", row("1"), 1);
+        store.add(0, "2002", "2", row("2"), 1);
+        store.add(1, "2000", "3", row("3"), 1);
+        store.add(0, "2000", "4", row("4"), 1);
+        store.seal(3);
+
+        assertThat(store.getValue(find(store, 0, "2000"))).isEqualTo("4");
+        assertThat(store.getValue(find(store, 0, "2002"))).isEqualTo("2");
+        assertThat(store.getValue(find(store, 1, "2000"))).isEqualTo("3");
+        assertThat(store.getValue(find(store, 1, "2001"))).isEqualTo("1");
+        assertThat(find(store, 0, "2001")).isEqualTo(ObservationStore.MISSING);
+        assertThat(find(store, 2, "2000")).isEqualTo(ObservationStore.MISSING);
+        assertThat(store.getObservation(1, "1999")).isNull();
+    }
+
+    @Test
+    public void lastObservationForATimeIsKept() {
+        final ObservationStore store = new ObservationStore(0);
+        store.add(0, "2000", "1", row("1"), 1);
+        store.add(0, "2000", "2", row("2"), 1);
+        store.add(0, "2001", "3", row("3"), 1);
+        store.add(0, "2000", "4", row("4"), 1);
+        store.seal(1);
+
+        assertThat(store.getObservation(0, "2000").getValue()).isEqualTo("4");
+        assertThat(store.getObservation(0, "2001").getValue()).isEqualTo("3");
+    }
+
+    @Test
+    public void heapSizeCountsCapacityKeptWhenCleared() {
+        final ObservationStore store = new ObservationStore(0);
+        final long empty = store.getHeapSize();
+        assertThat(empty).isPositive();
+
+        for (int i = 0; i < 1025; i++) {
+            store.add(0, Integer.toString(i), "1", row("1"), 1);
+        }
+        assertThat(store.getHeapSize()).isEqualTo(2 * empty);
+        assertThat(store.getHeapSize(1024)).isEqualTo(4 * empty);
+
+        store.clear();
+        assertThat(store.size()).isZero();
+        assertThat(store.getHeapSize()).isEqualTo(2 * empty);
+    }
+
+    private static int find(ObservationStore store, int group, String timeLabel) {
+        return store.find(group, store.getTimeLabels().idOf(timeLabel));
+    }
+
+    private static String[] row(String... values) {
+        return values;
+    }
+}
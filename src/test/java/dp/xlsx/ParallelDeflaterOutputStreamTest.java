@@ -0,0 +1,121 @@
+package dp.xlsx;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ParallelDeflaterOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 32768;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void blocksInflateToWhatWasWritten() throws Exception {
+        final byte[] content = sheetLikeContent(10 * BLOCK_SIZE + 123);
+
+        try (ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(6, BLOCK_SIZE, 3, executor)) {
+            // written in pieces which straddle blocks
+            for (int offset = 0; offset < content.length; offset += 1000) {
+                out.write(content, offset, Math.min(1000, content.length - offset));
+            }
+            out.finish();
+
+            final byte[] compressed = out.getCompressed().readAllBytes();
+            assertThat(compressed).hasSize((int) out.getCompressedSize());
+            assertThat(inflate(compressed)).isEqualTo(content);
+            assertThat(out.getSize()).isEqualTo(content.length);
+
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+            assertThat(out.getCrc()).isEqualTo(crc.getValue());
+        }
+    }
+
+    @Test
+    public void blocksAreCompressedNearlyAsWellAsOneStream() throws Exception {
+        final byte[] content = sheetLikeContent(20 * BLOCK_SIZE);
+
+        try (ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(6, BLOCK_SIZE, 3, executor)) {
+            out.write(content);
+            out.finish();
+
+            final ByteArrayOutputStream single = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(single, new Deflater(6, true))) {
+                deflater.write(content);
+            }
+            assertThat(out.getCompressedSize()).isLessThan(single.size() * 105L / 100);
+        }
+    }
+
+    @Test
+    public void emptyStreamIsValid() throws Exception {
+        try (ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(6, BLOCK_SIZE, 3, executor)) {
+            out.finish();
+
+            assertThat(inflate(out.getCompressed().readAllBytes())).isEmpty();
+            assertThat(out.getCrc()).isZero();
+        }
+    }
+
+    @Test
+    public void cannotWriteOnceFinished() throws Exception {
+        try (ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(6, BLOCK_SIZE, 3, executor)) {
+            out.finish();
+
+            assertThatThrownBy(() -> out.write(1)).isInstanceOf(IOException.class);
+        }
+    }
+
+    /**
+     * @return rows of repetitive markup and varying numbers, as a sheet is.
+     */
+    private static byte[] sheetLikeContent(int length) {
+        final Random random = new Random(42);
+        final StringBuilder content = new StringBuilder(length);
+        for (int row = 1; content.length() < length; row++) {
+            content.append("<row r=\"").append(row).append("\"><c r=\"A").append(row)
+                    .append("\" t=\"n\"><v>").append(random.nextInt(100000)).append("</v></c></row>\n");
+        }
+        content.setLength(length);
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] inflate(byte[] compressed) throws DataFormatException {
+        final Inflater inflater = new Inflater(true);
+        // an inflater of a raw stream needs a byte of input past its end
+        inflater.setInput(Arrays.copyOf(compressed, compressed.length + 1));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+            final int length = inflater.inflate(buffer);
+            if (length == 0 && inflater.needsInput()) {
+                throw new DataFormatException("deflate stream not finished");
+            }
+            out.write(buffer, 0, length);
+        }
+        assertThat(inflater.getRemaining()).isLessThanOrEqualTo(1);
+        inflater.end();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+package dp.xlsx;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class V4ChunkTest {
+
+    private static final String HEADER = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void splitBreaksOnlyBetweenRows() throws IOException {
+
+        // Given a v4 file with a quoted value spanning lines
+        final String row1 = "88,Month,Jan-96,K02000001,,cpi1dim1A0,\"CPI\n(overall index)\"\n";
+        final String row2 = "89,Month,Feb-96,K02000001,,cpi1dim1A0,\"CPI\n(overall index)\"\n";
+        final Path file = write(HEADER + row1 + row2);
+
+        // When it is split into the smallest possible chunks
+        final long[] boundaries = V4Chunk.split(file, 1, executor);
+
+        // Then each chunk is a whole row
+        final long headerEnd = HEADER.length();
+        assertThat(boundaries).containsExactly(headerEnd, headerEnd + row1.length(),
+                headerEnd + row1.length() + row2.length());
+    }
+
+    @Test
+    public void chunkParsesOnlyItsRows() throws IOException {
+
+        // Given a v4 file split into chunks
+        final String row1 = "88,Month,Jan-96,K02000001,,cpi1dim1A0,AAA\n";
+        final String row2 = "89,Month,Feb-96,K02000001,,cpi1dim1A1,BBB\n";
+        final Path file = write(HEADER + row1 + row2);
+        final long[] boundaries = V4Chunk.split(file, 1, executor);
+        final String[] header = HEADER.trim().split(",");
+
+        // When the second chunk is parsed
+        final V4Chunk chunk = V4Chunk.parse(file, boundaries[1], boundaries[2], header, 1,
+                V4File.DEFAULT_INPUT_BUFFER_SIZE);
+
+        // Then it only holds the second row
+        assertThat(chunk.getRowCount()).isEqualTo(1);
+        assertThat(chunk.getGroups().size()).isEqualTo(1);
+        assertThat(chunk.getObservations().getTimeLabels().values()).containsExactly("Feb-96");
+    }
+
+    private Path write(String content) throws IOException {
+        final Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,93 @@
+package dp.xlsx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing a synthetic 2M row V4 file from disk with an increasing number of chunks parsed at once.
+ * <p>
+ * The file has 100,000 groups (1,000 geographies x 100 aggregates) over 20 time periods, with a data marking column,
+ * and its rows are not in display order so it is always parsed into memory rather than streamed.
+ * <p>
+ * Run with {@code make bench BENCH=V4FileParseBenchmark}. The speedup is bounded by the cores available to the fork.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class V4FileParseBenchmark {
+
+    private static final int ROWS = 2_000_000;
+    private static final int GEOGRAPHIES = 1_000;
+    private static final int AGGREGATES = 100;
+    private static final int GROUPS = GEOGRAPHIES * AGGREGATES;
+
+    private static final String[] MONTHS =
+            {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    private Path file;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(parallelism);
+        file = Files.createTempFile("v4-benchmark-", ".csv");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("V4_1,Data Marking,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n");
+
+            for (int i = 0; i < ROWS; i++) {
+                final int group = (int) ((i * 7919L) % GROUPS);
+                final int time = i / GROUPS;
+                final int geography = group % GEOGRAPHIES;
+                final int aggregate = group / GEOGRAPHIES;
+
+                writer.write(i % 50 == 0 ? ".." : Integer.toString(i % 1000) + "." + (i % 10));
+                writer.write(i % 7 == 0 ? ",p" : ",");
+                writer.write(",Month," + MONTHS[time % 12] + "-" + (90 + time / 12));
+                writer.write(String.format(",E%08d,Local authority district %d", geography, geography));
+                writer.write(",cpi1dim1G" + (10000 + aggregate) + ",Consumer price index aggregate " + aggregate);
+                writer.write('\n');
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int parse() throws IOException {
+        try (V4File v4File = V4File.read(file, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, Long.MAX_VALUE, parallelism,
+                executor)) {
+            return v4File.groupData().size();
+        }
+    }
+}
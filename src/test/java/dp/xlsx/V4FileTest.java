@@ -1,14 +1,23 @@
 package dp.xlsx;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static dp.xlsx.DebugUtil.dimMatcher;
 import static dp.xlsx.DebugUtil.filterGroups;
@@ -16,6 +25,12 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class V4FileTest {
 
+    private static final String[] MONTHS =
+            {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void groupSize() throws IOException {
         try (final InputStream stream = V4FileTest.class.getResourceAsStream("v4_0.csv")) {
@@ -59,6 +74,7 @@ public class V4FileTest {
         // Then the labels are provided in chronological order with the blank row ignored
         assertThat(labels.get(0)).isEqualTo("Oct-00");
         assertThat(labels.get(1)).isEqualTo("Apr-17");
+        assertThat(file.getRowCount()).isEqualTo(2);
     }
 
     @Test
@@ -176,4 +192,246 @@ public class V4FileTest {
         }
     }
 
+    @Test
+    public void v4File_QuotedLabelsSpanningLines() throws IOException {
+
+        // Given v4 data where a quoted label contains a comma and a line break
+        String csvHeader = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n";
+        String csvRow1 = "88,Month,Oct-00,K02000001,,cpi1dim1A0,\"Food, fresh\nand chilled\"\n";
+        String csvRow2 = "89,Month,Nov-00,K02000001,,cpi1dim1A0,\"Food, fresh\nand chilled\"\n";
+        String csvContent = csvHeader + csvRow1 + csvRow2;
+
+        InputStream inputStream = new ByteArrayInputStream(csvContent.getBytes(StandardCharsets.UTF_8));
+
+        // When the V4File constructor is called
+        final V4File file = new V4File(inputStream, null);
+
+        // Then both rows belong to the same group with the label intact
+        assertThat(file.groupData().size()).isEqualTo(1);
+        final Group group = file.groupData().iterator().next();
+        assertThat(group.getGroupValues().get(1).getValue()).isEqualTo("Food, fresh\nand chilled");
+        assertThat(group.getObservation("Nov-00").getValue()).isEqualTo("89");
+    }
+
+    @Test
+    public void v4File_DecodesUTF8() throws IOException {
+
+        // Given v4 data with non ASCII labels
+        String csvHeader = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n";
+        String csvRow1 = "88,Month,Oct-00,W06000001,Ynys Môn,cpi1dim1A0,CPI (overall index)\n";
+        String csvContent = csvHeader + csvRow1;
+
+        InputStream inputStream = new ByteArrayInputStream(csvContent.getBytes(StandardCharsets.UTF_8));
+
+        // When the V4File constructor is called with a small input buffer
+        final V4File file = new V4File(inputStream, null, 16);
+
+        // Then the label is decoded as UTF-8
+        final Group group = file.groupData().iterator().next();
+        assertThat(group.getGroupValues().get(0).getValue()).isEqualTo("Ynys Môn");
+    }
+
+    @Test
+    public void dimensionOptionsAreShared() throws IOException {
+        try (final InputStream stream = V4FileTest.class.getResourceAsStream("v4_0.csv")) {
+            final V4File file = new V4File(stream, null);
+
+            // every group in the file has the same geography, which should be held once
+            final List<Group> groups = new ArrayList<>(file.groupData());
+            final DimensionData geography = groups.get(0).getGroupValues().get(0);
+            for (Group group : groups) {
+                assertThat(group.getGroupValues().get(0)).isSameAs(geography);
+            }
+        }
+    }
+
+    @Test
+    public void groupOrderMatchesGroupCompareTo() throws IOException {
+        try (final InputStream stream = V4FileTest.class.getResourceAsStream("v4_2_generational_income.csv")) {
+            final V4File file = new V4File(stream, null);
+
+            final List<Group> byRank = new ArrayList<>(file.groupData());
+            byRank.sort(file.getGroupOrder());
+
+            final List<Group> byValue = new ArrayList<>(file.groupData());
+            byValue.sort(Group::compareTo);
+
+            assertThat(byRank).containsExactlyElementsOf(byValue);
+        }
+    }
+
+
+    @Test
+    public void open_UnsortedFileIsReadIntoMemory() throws IOException {
+
+        // Given a v4 file where the rows of a group are not together
+        String csvContent = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+                "88,Month,Jan-96,K02000001,,cpi1dim1A0,AAA\n" +
+                "89,Month,Jan-96,K02000001,,cpi1dim1A1,BBB\n" +
+                "90,Month,Feb-96,K02000001,,cpi1dim1A0,AAA\n";
+        final Path path = temporaryFolder.newFile("v4.csv").toPath();
+        Files.write(path, csvContent.getBytes(StandardCharsets.UTF_8));
+
+        // When the file is opened
+        try (final V4File file = V4File.open(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, V4File.DEFAULT_HEAP_BUDGET, 1, null)) {
+
+            // Then it is read into memory rather than streamed
+            assertThat(file.isStreamed()).isFalse();
+            assertThat(file.groupData()).hasSize(2);
+            assertThat(file.getOrderedTimeLabels()).containsExactly("Jan-96", "Feb-96");
+        }
+    }
+
+    @Test
+    public void open_SortedFileIsStreamed() throws IOException {
+
+        // Given a v4 file already ordered by its dimension options
+        String csvContent = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+                "88,Month,Jan-96,K02000001,,cpi1dim1A0,AAA\n" +
+                "90,Month,Feb-96,K02000001,,cpi1dim1A0,AAA\n" +
+                "89,Month,Jan-96,K02000001,,cpi1dim1A1,BBB\n";
+        final Path path = temporaryFolder.newFile("v4.csv").toPath();
+        Files.write(path, csvContent.getBytes(StandardCharsets.UTF_8));
+
+        // When the file is opened
+        try (final V4File file = V4File.open(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, V4File.DEFAULT_HEAP_BUDGET, 1, null)) {
+
+            // Then the time labels are known up front and the groups are read from the file in order
+            assertThat(file.isStreamed()).isTrue();
+            assertThat(file.getRowCount()).isEqualTo(3);
+            assertThat(file.getOrderedTimeLabels()).containsExactly("Jan-96", "Feb-96");
+
+            final List<String> groups = new ArrayList<>();
+            for (Group group : file.orderedGroups()) {
+                groups.add(group.getGroupValues().get(1).getValue() + "=" + group.getObservations().size());
+            }
+            assertThat(groups).containsExactly("AAA=2", "BBB=1");
+        }
+    }
+
+    @Test
+    public void open_FileBeingWrittenIsScannedBeforeItIsWaitedFor() throws IOException {
+
+        // Given a v4 file already ordered by its dimension options, whose content arrives before the file is complete
+        String csvContent = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+                "88,Month,Jan-96,K02000001,,cpi1dim1A0,AAA\n" +
+                "89,Month,Jan-96,K02000001,,cpi1dim1A1,BBB\n";
+        final Path path = temporaryFolder.newFile("v4.csv").toPath();
+        Files.write(path, csvContent.getBytes(StandardCharsets.UTF_8));
+        final ByteArrayInputStream input = new ByteArrayInputStream(csvContent.getBytes(StandardCharsets.UTF_8));
+
+        // When it is opened
+        try (final V4File file = V4File.open(input, () -> {
+            // Then the whole content has been scanned before the file is waited for
+            assertThat(input.available()).isZero();
+            return path;
+        }, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, V4File.DEFAULT_HEAP_BUDGET, 1, null)) {
+
+            assertThat(file.isStreamed()).isTrue();
+            assertThat(file.getOrderedTimeLabels()).containsExactly("Jan-96");
+        }
+    }
+
+    @Test
+    public void widestValuesAreKnownBeforeGroupsAreRead() throws IOException {
+
+        // Given a v4 file already ordered by its dimension options
+        String csvContent = "V4_0,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n" +
+                "88,Month,Jan-96,K02000001,United Kingdom,cpi1dim1A0,AAA\n" +
+                "90.125,Month,Feb-96,K02000001,United Kingdom,cpi1dim1A0,AAA\n" +
+                "..,Month,Jan-96,W1,,cpi1dim1A10,BBBBB\n";
+        final Path path = temporaryFolder.newFile("v4.csv").toPath();
+        Files.write(path, csvContent.getBytes(StandardCharsets.UTF_8));
+
+        // When the file is streamed or read into memory
+        try (final V4File streamed = V4File.open(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, V4File.DEFAULT_HEAP_BUDGET, 1, null);
+             final V4File read = V4File.read(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, V4File.DEFAULT_HEAP_BUDGET, 1, null)) {
+
+            // Then the longest option, code and observation are known without reading the groups
+            assertThat(streamed.isStreamed()).isTrue();
+            for (V4File file : List.of(streamed, read)) {
+                assertThat(file.getWidestOption(0)).isEqualTo("United Kingdom".length());
+                assertThat(file.getWidestCode(0)).isEqualTo("K02000001".length());
+                assertThat(file.getWidestOption(1)).isEqualTo("BBBBB".length());
+                assertThat(file.getWidestObservation()).isEqualTo("90.125".length());
+            }
+        }
+    }
+
+    @Test
+    public void read_ParallelChunksMatchSequentialParse() throws IOException {
+
+        // Given a v4 file large enough to be split into chunks, with quoted labels spanning lines and rows of each
+        // group spread through the file
+        final Path path = writeChunkedFile();
+
+        // When it is parsed in parallel chunks and sequentially
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (final V4File parallel = V4File.read(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE,
+                V4File.DEFAULT_HEAP_BUDGET, 4, executor);
+             final V4File sequential = V4File.read(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE,
+                     V4File.DEFAULT_HEAP_BUDGET, 1, null)) {
+
+            // Then the groups and observations are the same
+            assertThat(parallel.getOrderedTimeLabels()).containsExactlyElementsOf(sequential.getOrderedTimeLabels());
+            assertSameGroups(parallel, sequential);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void read_ParallelChunksCountAgainstHeapBudget() throws IOException {
+
+        // Given a v4 file split into chunks, and a heap budget which just holds its groups
+        final Path path = writeChunkedFile();
+        final long heapBudget = 3 * 1024 * 1024;
+
+        // When it is parsed in parallel chunks and sequentially
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (final V4File parallel = V4File.read(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, heapBudget, 4, executor);
+             final V4File sequential = V4File.read(path, null, V4File.DEFAULT_INPUT_BUFFER_SIZE, heapBudget, 1, null)) {
+
+            // Then the chunks waiting to be merged leave too little of the budget to hold the groups, which are
+            // spilled, but are the same
+            assertThat(sequential.isSpilled()).isFalse();
+            assertThat(parallel.isSpilled()).isTrue();
+            assertSameGroups(parallel, sequential);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Path writeChunkedFile() throws IOException {
+        final StringBuilder csv = new StringBuilder(
+                "V4_1,Data Marking,Time_codelist,Time,Geography_codelist,Geography,cpi1dim1aggid,Aggregate\n");
+        for (int i = 0; csv.length() < 3 * 1024 * 1024; i++) {
+            final int group = (i * 7919) % 2000;
+            csv.append(i % 13 == 0 ? ".." : Integer.toString(i)).append('.').append(i % 10)
+                    .append(",").append(i % 3 == 0 ? "p" : "")
+                    .append(",Month,").append(MONTHS[i % 12]).append('-').append(70 + i % 30)
+                    .append(",K0").append(group % 40)
+                    .append(",\"Area ").append(group % 40).append("\n(all)\"")
+                    .append(",agg").append(group / 40).append(",Aggregate ").append(group / 40).append('\n');
+        }
+        final Path path = temporaryFolder.newFile("v4.csv").toPath();
+        Files.write(path, csv.toString().getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private static void assertSameGroups(V4File actualFile, V4File expectedFile) {
+        final List<String> expected = new ArrayList<>();
+        expectedFile.orderedGroups().forEach(g -> expected.add(describe(g)));
+        final List<String> actual = new ArrayList<>();
+        actualFile.orderedGroups().forEach(g -> actual.add(describe(g)));
+
+        assertThat(actual).hasSize(2000);
+        assertThat(actual).containsExactlyElementsOf(expected);
+    }
+
+    private static String describe(Group group) {
+        return group.getGroupValues() + " " + group.getObservations().entrySet().stream()
+                .map(e -> e.getKey() + "=" + e.getValue().getValue() + Arrays.toString(e.getValue().getAdditionalValues()))
+                .collect(Collectors.joining(","));
+    }
 }
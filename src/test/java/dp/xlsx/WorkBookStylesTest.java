@@ -0,0 +1,75 @@
+package dp.xlsx;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class WorkBookStylesTest {
+
+    @Test
+    public void equalFontsAreCreatedOnce() throws IOException {
+        try (Workbook workbook = new XSSFWorkbook()) {
+            final int defaultStyles = workbook.getNumCellStyles();
+            final int defaultFonts = workbook.getNumberOfFonts();
+
+            final WorkBookStyles styles = new WorkBookStyles(workbook);
+
+            assertThat(workbook.getNumCellStyles()).isEqualTo(defaultStyles + 7);
+            assertThat(workbook.getNumberOfFonts()).isEqualTo(defaultFonts + 4);
+            assertThat(styles.getValueStyle().getFontIndex()).isEqualTo(styles.getNoteStyle().getFontIndex());
+            assertThat(styles.getHeadingStyle().getFontIndex())
+                    .isEqualTo(styles.getHeaderRightAlignStyle().getFontIndex());
+        }
+    }
+
+    @Test
+    public void stylesAreCreatedInTheSameOrderInEveryWorkbook() throws IOException {
+        try (Workbook first = new XSSFWorkbook(); Workbook second = new XSSFWorkbook()) {
+            final WorkBookStyles firstStyles = new WorkBookStyles(first);
+            final WorkBookStyles secondStyles = new WorkBookStyles(second);
+
+            assertThat(secondStyles.getHeadingStyle().getIndex()).isEqualTo(firstStyles.getHeadingStyle().getIndex());
+            assertThat(secondStyles.getNumberStyle().getIndex()).isEqualTo(firstStyles.getNumberStyle().getIndex());
+            assertThat(secondStyles.getLinkStyle().getIndex()).isEqualTo(firstStyles.getLinkStyle().getIndex());
+        }
+    }
+
+    @Test
+    public void stylesAreCreatedAsSpecified() throws IOException {
+        try (Workbook workbook = new XSSFWorkbook()) {
+            final WorkBookStyles styles = new WorkBookStyles(workbook);
+
+            final CellStyle link = styles.get(WorkBookStyles.LINK);
+            final Font linkFont = workbook.getFontAt(link.getFontIndex());
+            assertThat(linkFont.getFontName()).isEqualTo("Arial-Link");
+            assertThat(linkFont.getUnderline()).isEqualTo(Font.U_SINGLE);
+            assertThat(link.getWrapText()).isFalse();
+
+            final CellStyle number = styles.getNumberStyle();
+            assertThat(number.getDataFormatString()).isEqualTo("0.0############################");
+            assertThat(number.getWrapText()).isTrue();
+
+            assertThat(styles.getValueRightAlignStyle().getAlignment()).isEqualTo(HorizontalAlignment.RIGHT);
+            assertThat(workbook.getFontAt(styles.getHeadingStyle().getFontIndex()).getBold()).isTrue();
+        }
+    }
+
+    @Test
+    public void unregisteredSpecHasNoStyle() throws IOException {
+        try (Workbook workbook = new XSSFWorkbook()) {
+            final WorkBookStyles styles = new WorkBookStyles(workbook);
+            final CellStyleSpec spec = new CellStyleSpec(WorkBookStyles.VALUE.font(), false,
+                    HorizontalAlignment.CENTER, null);
+
+            assertThatThrownBy(() -> styles.get(spec)).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package dp.xlsx;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class XmlSheetWriterTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final XmlSheetWriter writer = new XmlSheetWriter(out, true);
+
+    @Test
+    public void writesColumnWidthsBeforeRows() {
+        writer.setColumnWidths(9, Map.of(2, 512, 0, 256));
+        writer.startRow(0);
+        writer.finish();
+
+        assertThat(written()).contains("<sheetFormatPr defaultRowHeight=\"15.0\" baseColWidth=\"9\"/>"
+                + "<cols><col min=\"1\" max=\"1\" width=\"1.0\" customWidth=\"true\"/>"
+                + "<col min=\"3\" max=\"3\" width=\"2.0\" customWidth=\"true\"/></cols><sheetData>\n<row r=\"1\">");
+    }
+
+    @Test
+    public void columnWidthsCannotFollowRows() {
+        writer.startRow(0);
+
+        assertThatThrownBy(() -> writer.setColumnWidths(9, Map.of())).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void writesCellsWithReferencesAndStyles() throws Exception {
+        try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+            workbook.createCellStyle();
+            final CellStyle style = workbook.createCellStyle();
+
+            writer.startRow(0);
+            writer.blankCell(0, null);
+            writer.stringCell(1, style, "value");
+            writer.numberCell(27, style, 1.5);
+            writer.stringCell(28, null, null);
+            writer.startRow(2);
+            writer.finish();
+
+            assertThat(written()).contains("<row r=\"1\"><c r=\"A1\"/>"
+                    + "<c r=\"B1\" s=\"" + style.getIndex() + "\" t=\"inlineStr\"><is><t>value</t></is></c>"
+                    + "<c r=\"AB1\" s=\"" + style.getIndex() + "\" t=\"n\"><v>1.5</v></c>"
+                    + "<c r=\"AC1\"/></row>\n<row r=\"3\"></row>\n</sheetData>");
+            assertThat(written()).endsWith("</worksheet>");
+        }
+    }
+
+    @Test
+    public void escapesStrings() {
+        writer.startRow(0);
+        writer.stringCell(0, null, " a<b>&\"c\"\nd\u0001 ");
+        writer.finish();
+
+        assertThat(written()).contains(
+                "<t xml:space=\"preserve\"> a&lt;b&gt;&amp;&quot;c&quot;&#xa;d? </t>");
+    }
+
+    private String written() {
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}